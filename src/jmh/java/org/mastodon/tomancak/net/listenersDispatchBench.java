@@ -0,0 +1,65 @@
+package org.mastodon.tomancak.net;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** notifying of the DatasetListeners, measured until all listeners have been
+    notified (as the notifications are dispatched off the notifying thread) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class listenersDispatchBench
+{
+    /** notifications sent in one go before waiting for them */
+    static final int batchSize = 1000;
+
+    @Param({"1", "10"})
+    public int listeners;
+
+    DatasetListeners datasetListeners;
+    final AtomicLong delivered = new AtomicLong(0);
+    long sent = 0;
+
+    @Setup
+    public void setup()
+    {
+        datasetListeners = new DatasetListeners("bench");
+        for (int i = 0; i < listeners; ++i)
+        {
+            datasetListeners.addFileArrivedListeners( f -> delivered.incrementAndGet() );
+            datasetListeners.addLineageArrivedListeners( (d,u,s,l) -> delivered.incrementAndGet() );
+        }
+    }
+
+    /** reports time per ONE arrived file, that is, per two notifications */
+    @Benchmark
+    @OperationsPerInvocation(batchSize)
+    public void fileAndLineageArrived()
+    {
+        final LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < batchSize; ++i)
+        {
+            datasetListeners.notifyFileArrivedListeners("file");
+            datasetListeners.notifyLineageArrivedListeners(now, "user", i, i);
+        }
+        sent += 2L * batchSize * listeners;
+        while (delivered.get() < sent) Thread.yield();
+    }
+}
@@ -0,0 +1,81 @@
+package org.mastodon.tomancak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.tomancak.monitors.ProgressStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** one report of a progress into a ProgressStore that has the HTML output on (the output
+    itself is only scheduled), and one rendering of the output, when the store has already
+    seen the given number of reports of several users */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class progressStoreBench
+{
+    @Param({"5", "50"})
+    public int users;
+
+    @Param({"100", "10000"})
+    public int reportsPerUser;
+
+    ProgressStore store;
+    Path folder;
+    LocalDateTime time = LocalDateTime.of(2020, 4, 6, 0, 0);
+    int reportsCnt = 0;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        folder = Files.createTempDirectory("progressStoreBench");
+        store = new ProgressStore("bench");
+
+        //the history is given without the HTML output, to have it quickly
+        for (int r = 0; r < reportsPerUser; ++r)
+        {
+            time = time.plusSeconds(60);
+            for (int u = 0; u < users; ++u) store.action(time, "user" + u, 10*r, 10*r);
+        }
+        store.htmlOutputFile = folder.resolve("status.html");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        store.stopRendering();
+        Files.deleteIfExists(store.htmlOutputFile);
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public void action()
+    {
+        time = time.plusSeconds(1);
+        ++reportsCnt;
+        store.action(time, "user" + (reportsCnt % users), reportsCnt, reportsCnt);
+    }
+
+    @Benchmark
+    public void render()
+    {
+        store.renderOutputs();
+    }
+}
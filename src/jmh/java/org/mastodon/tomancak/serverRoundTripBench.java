@@ -0,0 +1,105 @@
+package org.mastodon.tomancak;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.tomancak.net.DatasetServer;
+import org.mastodon.tomancak.net.FileTransfer;
+import org.mastodon.tomancak.util.LineageFiles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** uploads of a snapshot to, and listings of snapshots from,
+    an embedded DatasetServer on localhost */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class serverRoundTripBench
+{
+    @Param({"1000", "100000"})
+    public int spots;
+
+    /** how many snapshots the dataset has when it is listed */
+    @Param({"100"})
+    public int listedSnapshots;
+
+    static final String dataset = "bench";
+    static final String snapshotName = "2020-04-06__23-43-15__bench.mstdn";
+
+    DatasetServer server;
+    Path serverFolder;
+    Path clientFolder;
+    String datasetURL;
+    int links;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        final Model model = syntheticLineages.create(spots);
+        links = model.getGraph().edges().size();
+        clientFolder = Files.createTempDirectory("serverRoundTripBench-client");
+        LineageFiles.saveModelIntoLineageFile(model, clientFolder.resolve(snapshotName));
+
+        //the dataset with some snapshots already, the server discovers it when starting
+        serverFolder = Files.createTempDirectory("serverRoundTripBench-server");
+        final Path datasetFolder = Files.createDirectory(serverFolder.resolve(dataset));
+        for (int i = 0; i < listedSnapshots; ++i)
+            Files.copy(clientFolder.resolve(snapshotName),
+                       datasetFolder.resolve(String.format("2020-04-07__00-00-%02d__user%d.mstdn", i % 60, i)));
+
+        final int port;
+        try (ServerSocket s = new ServerSocket(0)) { port = s.getLocalPort(); }
+        server = new DatasetServer(serverFolder.toString()).setPort(port);
+        server.start();
+        server.awaitReady();
+        datasetURL = "http://localhost:" + port + "/" + dataset;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        server.stop();
+        deleteRecursively(serverFolder);
+        deleteRecursively(clientFolder);
+    }
+
+    static void deleteRecursively(final Path folder) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public void upload() throws IOException
+    {
+        FileTransfer.postParticularFile(datasetURL, snapshotName, spots, links, clientFolder);
+    }
+
+    @Benchmark
+    public Collection<String> list() throws IOException
+    {
+        return FileTransfer.listAvailableFiles(datasetURL);
+    }
+}
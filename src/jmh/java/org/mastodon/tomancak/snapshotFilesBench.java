@@ -0,0 +1,93 @@
+package org.mastodon.tomancak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.ZippedModelReader;
+import org.mastodon.tomancak.util.ZippedModelWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** saving and loading of snapshot files, via LineageFiles (what the plugins use)
+    and via the plain ZippedModelWriter/Reader (Mastodon's own zip streams) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class snapshotFilesBench
+{
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int spots;
+
+    Model model;
+    Path folder;
+    Path savedFile;
+    Path writtenFile;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        model = syntheticLineages.create(spots);
+        folder = Files.createTempDirectory("snapshotFilesBench");
+        writtenFile = folder.resolve("written.mstdn");
+        //a proper snapshot filename so that the snapshot gets its header
+        savedFile = folder.resolve("2020-04-06__23-43-15__bench.mstdn");
+        LineageFiles.saveModelIntoLineageFile(model, savedFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(savedFile);
+        Files.deleteIfExists(writtenFile);
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public void saveLineageFile() throws IOException
+    {
+        LineageFiles.saveModelIntoLineageFile(model, writtenFile);
+    }
+
+    @Benchmark
+    public Model loadLineageFile() throws IOException
+    {
+        final Model m = new Model();
+        LineageFiles.loadLineageFileIntoModel(savedFile, m);
+        return m;
+    }
+
+    @Benchmark
+    public void zippedModelWriter() throws IOException
+    {
+        final ZippedModelWriter w = new ZippedModelWriter(writtenFile);
+        model.saveRaw(w);
+        w.close();
+    }
+
+    @Benchmark
+    public Model zippedModelReader() throws IOException
+    {
+        final Model m = new Model();
+        final ZippedModelReader r = new ZippedModelReader(savedFile);
+        m.loadRaw(r);
+        r.close();
+        return m;
+    }
+}
@@ -0,0 +1,115 @@
+package org.mastodon.tomancak;
+
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.Parameter;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.log.LogService;
+import org.scijava.prefs.PrefService;
+
+import org.mastodon.mamut.plugin.MamutPluginAppModel;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.net.FileTransfer;
+import org.mastodon.tomancak.net.DatasetServer;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@Plugin( type = Command.class, name = "Mastodon AutoReportProgress plugin" )
+public class AutoReportProgress
+extends DynamicCommand
+{
+	// ----------------- necessary internal references -----------------
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private PrefService prefService;
+
+	@Parameter(persist = false)
+	private MamutPluginAppModel appModel;
+
+	// ----------------- when to report -----------------
+	@Parameter(label = "Report automatically:",
+		description = "Saves the current lineage (as \"Save Current Lineage\" would do) in the background whenever enough has been edited.",
+		initializer = "initUserName")
+	private boolean reportAutomatically = true;
+
+	@Parameter(label = "Identify yourself as:",
+		description = "Please, choose your nickname using only common characters -- this will be part of an output filename.")
+	private String userName = System.getProperty("user.name");
+
+	@Parameter(label = "Report after this many changes:",
+		description = "Every added or removed spot or link, and every moved spot (once till the next report), counts as one change.",
+		min = "1")
+	private int changesThreshold = 200;
+
+	@Parameter(label = "Report changes at least every minutes:",
+		description = "If less changes were made, they are reported after this time.",
+		min = "1")
+	private int maxIntervalMinutes = 10;
+
+	@Parameter(label = "Compression of the saved lineage:",
+		description = "The less the lineage is compressed, the faster it is saved (and loaded, if \"stored\"), but the larger the file is. \"Mastodon's writer\" is the slower single-threaded fallback.",
+		choices = { LineageFiles.COMPRESSION_STORED, LineageFiles.COMPRESSION_FAST, LineageFiles.COMPRESSION_DEFAULT,
+		            LineageFiles.COMPRESSION_MAX, LineageFiles.COMPRESSION_MASTODON },
+		persistKey = "snapshotsCompression")
+	private String compression = LineageFiles.COMPRESSION_DEFAULT;
+
+	private
+	void initUserName()
+	{
+		//share the nickname with the ReportProgress
+		final String newUserName = prefService.get(ReportProgress.class,"userName");
+		if (newUserName != null) userName = newUserName;
+	}
+
+	// ----------------- network options -----------------
+	@Parameter(label = "Report also to a remote monitor:",
+		description = "Request that the snapshots shall be saved also on a remote host.")
+	private boolean sendAlsoToRemoteMonitor = false;
+
+	@Parameter(label = "URL address of the remote monitor:",
+		description = "This entry is ignored if the above is not checked.",
+		persistKey = "remoteMonitorURL")
+	private String remoteMonitorURL = "setHereServerAddress:"+ DatasetServer.defaultPort;
+
+	@Parameter(label = "Project name on the remote monitor:",
+		description = "This entry is ignored if the above is not checked.",
+		persistKey = "projectName")
+	private String projectName = "setHereProjectName";
+
+
+	// ----------------- implementation -----------------
+	@Override
+	public void run()
+	{
+		//bail out if we are started incorrectly...
+		if (appModel == null) return;
+
+		final Model model = appModel.getAppModel().getModel();
+		if (!reportAutomatically)
+		{
+			AutoReporter.stop(model);
+			logService.info("Automatic reporting is off.");
+			return;
+		}
+
+		prefService.put(ReportProgress.class,"userName",userName);
+		LineageFiles.setCompression(compression);
+		//LoadEarlierProgress reads 'remoteMonitorURL' itsway... so we have to save thatway too
+		prefService.put(LoadEarlierProgress.class,"remoteMonitorURL",remoteMonitorURL);
+		prefService.put(LoadEarlierProgress.class,"projectName",projectName);
+
+		final Path projectRootFoldername = LineageFiles.getProjectRootFoldername(appModel);
+		final String URL = sendAlsoToRemoteMonitor
+			? FileTransfer.fixupURL(remoteMonitorURL) + "/" + projectName : null;
+
+		AutoReporter.start(model, projectRootFoldername, userName, URL,
+			changesThreshold, TimeUnit.MINUTES.toMillis(maxIntervalMinutes), logService);
+		logService.info("Automatic reporting is on: after "+changesThreshold+" changes or "
+			+ maxIntervalMinutes +" minutes, into "+projectRootFoldername
+			+ (URL != null ? " and "+URL : ""));
+	}
+}
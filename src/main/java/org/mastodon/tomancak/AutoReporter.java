@@ -0,0 +1,268 @@
+package org.mastodon.tomancak;
+
+import org.scijava.log.LogService;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.ModelCloner;
+import org.mastodon.tomancak.net.FileTransfer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reports the progress automatically: it counts the changes of the lineage (added and removed
+ * spots and links, and moved spots where every spot counts once no matter how many times it
+ * was moved) and saves (and possibly uploads) a snapshot when enough changes have been made,
+ * or when some changes have been made and the last snapshot is too old. A rebuilt graph (e.g.
+ * a whole lineage was loaded) is a new starting point, the counting starts anew from it.
+ * The listeners only count, only the raw serialization of the model into memory is done under
+ * its read lock (which is brief and no compression is involved), the copy is filled from it
+ * and then saved and uploaded on the background "auto reporting" thread after the lock is
+ * released, so the editing is not slowed down. Triggers that come while a
+ * snapshot is pending, or too soon after the last one, are merged into one snapshot.
+ */
+public class AutoReporter
+implements GraphListener<Spot,Link>, VertexPositionListener<Spot>
+{
+	/** the shortest time between two snapshots (the filenames have one-second resolution) */
+	public static long minPauseMillis = 30000;
+
+	/** how long to wait before trying again to copy the model that was being edited */
+	public static long lockRetryMillis = 500;
+
+	/** the one thread that makes the snapshots for all reporters */
+	private static final ScheduledExecutorService reportingThread
+		= Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread t = new Thread(r, "auto reporting");
+			t.setDaemon(true);
+			return t;
+		});
+
+	/** returns the reporter running on the model, or null if there is none */
+	public static synchronized
+	AutoReporter of(final Model model)
+	{
+		return reporters.get(model);
+	}
+	private static final Map<Model,AutoReporter> reporters = new HashMap<>();
+
+	/** starts a new reporter on the model (replacing the one that was running there),
+	    'remoteURL' is the full URL of the project on a server, or null to save only locally */
+	public static synchronized
+	AutoReporter start(final Model model, final Path projectRootFolder, final String userName,
+	                   final String remoteURL, final int changesThreshold, final long maxIntervalMillis,
+	                   final LogService logService)
+	{
+		stop(model);
+		final AutoReporter r = new AutoReporter(model, projectRootFolder, userName,
+		                                        remoteURL, changesThreshold, maxIntervalMillis, logService);
+		reporters.put(model, r);
+		return r;
+	}
+
+	/** stops the reporter running on the model, if there is one (a pending snapshot is not made) */
+	public static synchronized
+	void stop(final Model model)
+	{
+		final AutoReporter r = reporters.remove(model);
+		if (r != null) r.close();
+	}
+
+
+	private AutoReporter(final Model model, final Path projectRootFolder, final String userName,
+	                     final String remoteURL, final int changesThreshold, final long maxIntervalMillis,
+	                     final LogService logService)
+	{
+		this.model = model;
+		this.projectRootFolder = projectRootFolder;
+		this.userName = userName;
+		this.remoteURL = remoteURL;
+		this.changesThreshold = Math.max(changesThreshold, 1);
+		this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxIntervalMillis);
+		this.logService = logService;
+
+		model.getGraph().addGraphListener(this);
+		model.getGraph().addVertexPositionListener(this);
+
+		//checks regularly if the last snapshot is not too old
+		final long checkMillis = Math.max(Math.min(maxIntervalMillis / 4, 60000), 1000);
+		periodicCheck = reportingThread.scheduleWithFixedDelay(this::checkAge, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private final Model model;
+	private final Path projectRootFolder;
+	private final String userName;
+	private final String remoteURL;
+	private final int changesThreshold;
+	private final long maxIntervalNanos;
+	private final LogService logService;
+
+	/** changes since the last copy of the model */
+	private final AtomicInteger changes = new AtomicInteger(0);
+
+	/** pool indices of the spots moved since the last copy of the model */
+	private final BitSet movedSpots = new BitSet();
+
+	private final ScheduledFuture<?> periodicCheck;
+	private ScheduledFuture<?> scheduled = null;
+	private boolean closed = false;
+	private long lastSnapshotStart = System.nanoTime();
+
+	private
+	void close()
+	{
+		model.getGraph().removeGraphListener(this);
+		model.getGraph().removeVertexPositionListener(this);
+		periodicCheck.cancel(false);
+		synchronized (this)
+		{
+			closed = true;
+			if (scheduled != null) scheduled.cancel(false);
+			scheduled = null;
+		}
+	}
+
+
+	// --------------- counting the changes ---------------
+	/** NB: called while the model is being edited, so only the crossing of the threshold does more than counting */
+	private
+	void count(final int cnt)
+	{
+		final int now = changes.addAndGet(cnt);
+		if (now >= changesThreshold && now - cnt < changesThreshold) trigger();
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		changes.set(0);
+		synchronized (movedSpots) { movedSpots.clear(); }
+		synchronized (this) { lastSnapshotStart = System.nanoTime(); }
+	}
+
+	@Override
+	public void vertexAdded(final Spot spot)
+	{ count(1); }
+
+	@Override
+	public void vertexRemoved(final Spot spot)
+	{ count(1); }
+
+	@Override
+	public void edgeAdded(final Link link)
+	{ count(1); }
+
+	@Override
+	public void edgeRemoved(final Link link)
+	{ count(1); }
+
+	@Override
+	public void vertexPositionChanged(final Spot spot)
+	{
+		final int p = spot.getInternalPoolIndex();
+		synchronized (movedSpots)
+		{
+			if (movedSpots.get(p)) return;
+			movedSpots.set(p);
+		}
+		count(1);
+	}
+
+	private
+	void checkAge()
+	{
+		final boolean tooOld;
+		synchronized (this) { tooOld = System.nanoTime() - lastSnapshotStart >= maxIntervalNanos; }
+		if (tooOld && changes.get() > 0) trigger();
+	}
+
+
+	// --------------- making the snapshots ---------------
+	/** makes a snapshot as soon as the minPauseMillis since the last one allows,
+	    does nothing if one is already pending */
+	public synchronized
+	void trigger()
+	{
+		if (closed || scheduled != null) return;
+		final long delay = Math.max(lastSnapshotStart + TimeUnit.MILLISECONDS.toNanos(minPauseMillis) - System.nanoTime(), 0);
+		scheduled = reportingThread.schedule(this::snapshot, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private
+	void snapshot()
+	{
+		synchronized (this)
+		{
+			scheduled = null;
+			if (closed) return;
+		}
+
+		//the copy: if the model is being edited right now, come back a bit later rather than wait here
+		final Lock lock = model.getGraph().getLock().readLock();
+		if (!lock.tryLock())
+		{
+			synchronized (this)
+			{
+				if (!closed && scheduled == null)
+					scheduled = reportingThread.schedule(this::snapshot, lockRetryMillis, TimeUnit.MILLISECONDS);
+			}
+			return;
+		}
+		final ModelCloner.Serialized serialized;
+		int changed = 0;
+		try {
+			//NB: no change can happen under the read lock, the copy has exactly the counted changes
+			changed = changes.getAndSet(0);
+			synchronized (movedSpots) { movedSpots.clear(); }
+			if (changed == 0) return;
+			serialized = ModelCloner.serialize(model);
+		} catch (IOException e) {
+			//the changes are reported next time
+			changes.addAndGet(changed);
+			logService.error("Failed copying the lineage for the automatic report:"); e.printStackTrace();
+			return;
+		} finally {
+			lock.unlock();
+		}
+		synchronized (this) { lastSnapshotStart = System.nanoTime(); }
+
+		//the copy is filled only now, the original model can be edited meanwhile
+		final Model copy;
+		try {
+			copy = serialized.toModel();
+		} catch (IOException e) {
+			changes.addAndGet(changed);
+			logService.error("Failed copying the lineage for the automatic report:"); e.printStackTrace();
+			return;
+		}
+
+		//the saving and uploading, meanwhile the original model can be edited
+		final String lineageFilename = LineageFiles.lineageFilename(userName);
+		try {
+			LineageFiles.saveModelIntoLineageFile(copy, projectRootFolder.resolve(lineageFilename));
+			logService.info("Automatically saved "+changed+" changes into: "+projectRootFolder.resolve(lineageFilename));
+
+			if (remoteURL != null)
+			{
+				FileTransfer.postParticularFile(remoteURL, copy, lineageFilename, projectRootFolder);
+				logService.info("Automatically uploaded to: "+remoteURL);
+			}
+		} catch (IOException e) {
+			logService.error("Failed the automatic report of the lineage:"); e.printStackTrace();
+		}
+	}
+}
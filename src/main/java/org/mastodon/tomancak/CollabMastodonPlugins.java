@@ -26,6 +26,7 @@ import static org.mastodon.app.ui.ViewMenuBuilder.menu;
 public class CollabMastodonPlugins extends AbstractContextual implements MamutPlugin
 {
 	private static final String SAVE_MODEL_SNAPSHOT = "[collab] save current lineage";
+	private static final String AUTO_SAVE_MODEL_SNAPSHOT = "[collab] save lineage automatically";
 	private static final String LOAD_MODEL_SNAPSHOT = "[collab] load external lineage";
 	private static final String CREATE_SNAPSHOT_SPACE = "[collab] create project space";
 	private static final String DELETE_SNAPSHOT_SPACE = "[collab] delete project space";
@@ -33,6 +34,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	private static final String SHOW_DOCS_SITE = "[collab] show official documentation";
 
 	private static final String[] SAVE_MODEL_SNAPSHOT_KEYS = { "not mapped" };
+	private static final String[] AUTO_SAVE_MODEL_SNAPSHOT_KEYS = { "not mapped" };
 	private static final String[] LOAD_MODEL_SNAPSHOT_KEYS = { "not mapped" };
 	private static final String[] CREATE_SNAPSHOT_SPACE_KEYS = { "not mapped" };
 	private static final String[] DELETE_SNAPSHOT_SPACE_KEYS = { "not mapped" };
@@ -43,6 +45,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	static
 	{
 		menuTexts.put( SAVE_MODEL_SNAPSHOT, "Save Current Lineage" );
+		menuTexts.put( AUTO_SAVE_MODEL_SNAPSHOT, "Save Lineage Automatically" );
 		menuTexts.put( LOAD_MODEL_SNAPSHOT, "Load External Lineage" );
 		menuTexts.put( CREATE_SNAPSHOT_SPACE, "Create Project Space" );
 		menuTexts.put( DELETE_SNAPSHOT_SPACE, "Delete Project Space" );
@@ -63,6 +66,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 		public void getCommandDescriptions( final CommandDescriptions descriptions )
 		{
 			descriptions.add( SAVE_MODEL_SNAPSHOT, SAVE_MODEL_SNAPSHOT_KEYS, "Export the current complete lineage into file in the folder next to your .mastodon project file, possibly sends it away to a remote server." );
+			descriptions.add( AUTO_SAVE_MODEL_SNAPSHOT, AUTO_SAVE_MODEL_SNAPSHOT_KEYS, "Turns on (or off) saving the current complete lineage in the background whenever enough has been edited, possibly sends it away to a remote server." );
 			descriptions.add( LOAD_MODEL_SNAPSHOT, LOAD_MODEL_SNAPSHOT_KEYS, "Replaces the current complete lineage with that from a chosen file, or possibly from a remote server." );
 			descriptions.add( CREATE_SNAPSHOT_SPACE, CREATE_SNAPSHOT_SPACE_KEYS, "Opens a new project space on a remote server for storing lineage files." );
 			descriptions.add( DELETE_SNAPSHOT_SPACE, DELETE_SNAPSHOT_SPACE_KEYS, "Closes and deletes project space on a remote server." );
@@ -73,6 +77,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 
 
 	private final AbstractNamedAction saveModelSnapshotAction;
+	private final AbstractNamedAction autoSaveModelSnapshotAction;
 	private final AbstractNamedAction loadModelSnapshotAction;
 	private final AbstractNamedAction createSnapshotSpaceAction;
 	private final AbstractNamedAction deleteSnapshotSpaceAction;
@@ -82,6 +87,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	public CollabMastodonPlugins()
 	{
 		saveModelSnapshotAction = new RunnableAction( SAVE_MODEL_SNAPSHOT, this::saveModelSnapshot );
+		autoSaveModelSnapshotAction = new RunnableAction( AUTO_SAVE_MODEL_SNAPSHOT, this::autoSaveModelSnapshot );
 		loadModelSnapshotAction = new RunnableAction( LOAD_MODEL_SNAPSHOT, this::loadModelSnapshot );
 		createSnapshotSpaceAction = new RunnableAction( CREATE_SNAPSHOT_SPACE, this::createSnapshotSpace );
 		deleteSnapshotSpaceAction = new RunnableAction( DELETE_SNAPSHOT_SPACE, this::deleteSnapshotSpace );
@@ -95,6 +101,9 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	@Override
 	public void setAppPluginModel( final MamutPluginAppModel model )
 	{
+		//the automatic reporting does not outlive its project
+		if ( pluginAppModel != null && pluginAppModel != model && pluginAppModel.getAppModel() != null )
+			AutoReporter.stop( pluginAppModel.getAppModel().getModel() );
 		this.pluginAppModel = model;
 		updateEnabledActions();
 	}
@@ -106,6 +115,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 				menu("Plugins",
 						menu("Collaboration",
 								item(SAVE_MODEL_SNAPSHOT),
+								item(AUTO_SAVE_MODEL_SNAPSHOT),
 								item(LOAD_MODEL_SNAPSHOT),
 								item(CREATE_SNAPSHOT_SPACE),
 								item(DELETE_SNAPSHOT_SPACE),
@@ -123,6 +133,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	public void installGlobalActions( final Actions actions )
 	{
 		actions.namedAction( saveModelSnapshotAction, SAVE_MODEL_SNAPSHOT_KEYS );
+		actions.namedAction( autoSaveModelSnapshotAction, AUTO_SAVE_MODEL_SNAPSHOT_KEYS );
 		actions.namedAction( loadModelSnapshotAction, LOAD_MODEL_SNAPSHOT_KEYS );
 		actions.namedAction( createSnapshotSpaceAction, CREATE_SNAPSHOT_SPACE_KEYS );
 		actions.namedAction( deleteSnapshotSpaceAction, DELETE_SNAPSHOT_SPACE_KEYS );
@@ -134,6 +145,7 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	{
 		final MamutAppModel appModel = ( pluginAppModel == null ) ? null : pluginAppModel.getAppModel();
 		saveModelSnapshotAction.setEnabled( appModel != null );
+		autoSaveModelSnapshotAction.setEnabled( appModel != null );
 		loadModelSnapshotAction.setEnabled( appModel != null );
 		createSnapshotSpaceAction.setEnabled( appModel != null );
 		deleteSnapshotSpaceAction.setEnabled( appModel != null );
@@ -153,6 +165,17 @@ public class CollabMastodonPlugins extends AbstractContextual implements MamutPl
 	}
 
 
+	private void autoSaveModelSnapshot()
+	{
+		this.getContext().getService(CommandService.class).run(
+			AutoReportProgress.class, true,
+			"logService",  this.getContext().getService(LogService.class),
+			"prefService", this.getContext().getService(PrefService.class),
+			"appModel", pluginAppModel
+		);
+	}
+
+
 	private void loadModelSnapshot()
 	{
 		this.getContext().getService(CommandService.class).run(
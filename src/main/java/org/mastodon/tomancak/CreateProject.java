@@ -9,11 +9,9 @@ import org.scijava.prefs.PrefService;
 
 import org.mastodon.tomancak.net.FileTransfer;
 import org.mastodon.tomancak.net.DatasetServer;
+import org.mastodon.tomancak.net.TransferClient;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
@@ -52,13 +50,11 @@ public class CreateProject extends DynamicCommand
 
 		try {
 			remoteMonitorURL = FileTransfer.fixupURL(remoteMonitorURL);
-			final URL url = new URL(remoteMonitorURL
-				+ (secureURL ?  "/addSecret/" : "/add/")
-				+ projectName);
 
 			//now connect and read out the status
-			final String result = new BufferedReader(new InputStreamReader( url.openStream() )).readLine();
-			if (!result.startsWith("ERROR"))
+			final String result = TransferClient.await(
+				FileTransfer.addDatasetAsync(remoteMonitorURL, projectName, secureURL) );
+			if (result != null)
 			{
 				projectName = result;
 				logService.info("The project was registered with this name: "+projectName);
@@ -8,11 +8,9 @@ import org.scijava.prefs.PrefService;
 
 import org.mastodon.tomancak.net.FileTransfer;
 import org.mastodon.tomancak.net.DatasetServer;
+import org.mastodon.tomancak.net.TransferClient;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
@@ -59,11 +57,9 @@ public class DeleteProject implements Command
 
 		try {
 			remoteMonitorURL = FileTransfer.fixupURL(remoteMonitorURL);
-			final URL url = new URL(remoteMonitorURL + "/remove/" + projectName);
 
 			//now connect and read out the status
-			final String result = new BufferedReader(new InputStreamReader( url.openStream() )).readLine();
-			if (result.startsWith("OK"))
+			if (TransferClient.await( FileTransfer.removeDatasetAsync(remoteMonitorURL, projectName) ))
 			{
 				logService.info("Removed a project space here: " + remoteMonitorURL + "/" + projectName);
 			}
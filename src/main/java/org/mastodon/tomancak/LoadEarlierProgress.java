@@ -17,17 +17,30 @@ import org.mastodon.mamut.tomancak.merging.MergeDatasets;
 import org.mastodon.mamut.tomancak.merging.MergeModels;
 import org.mastodon.tomancak.util.MergeModelDialog;
 import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.ModelCloner;
+import org.mastodon.tomancak.util.ParallelModelsMerger;
+import org.mastodon.tomancak.util.SnapshotHeader;
 import org.mastodon.tomancak.net.FileTransfer;
 import org.mastodon.tomancak.net.DatasetServer;
+import org.mastodon.tomancak.net.SnapshotListing;
 
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.time.ZoneOffset;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
 import java.util.List;
+import java.util.Locale;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
 
 @Plugin( type = Command.class, name = "Mastodon LoadEarlierProgress plugin" )
 public class LoadEarlierProgress
@@ -131,6 +144,33 @@ extends DynamicCommand
 	@Parameter(label = "Choose from the detected files:", persist = false, choices = {})
 	private String lineageFilenameStr = "none available yet";
 
+	//choices that load several files at once (which are then merged together)
+	private static final String choiceLatestOfAuthors = "Several    : the latest file of every author";
+	private static final String choiceFiltered        = "Several    : the files chosen with the filter below";
+
+	@Parameter(label = "Filter: files of these authors:",
+		description = "Comma-separated nicknames, leave empty for all authors. The filter is used only with the \"files chosen with the filter\" above.",
+		required = false)
+	private String filterAuthors = "";
+
+	@Parameter(label = "Filter: files saved since:",
+		description = "E.g. 2020-04-06T23:43:15 or 2020-04-06__23-43-15, leave empty for no limit.",
+		required = false)
+	private String filterSince = "";
+
+	@Parameter(label = "Filter: files saved until:",
+		description = "E.g. 2020-04-06T23:43:15 or 2020-04-06__23-43-15, leave empty for no limit.",
+		required = false)
+	private String filterUntil = "";
+
+	@Parameter(label = "Filter: only the latest file of every author:",
+		description = "Older files of an author are mostly contained in the newer ones, merging them together would only duplicate the same spots.")
+	private boolean filterLatestPerAuthor = true;
+
+	//what has been detected, for the choices of several files
+	private final List<String> detectedAllFiles = new ArrayList<>();
+	private final Set<String> detectedServerFiles = new HashSet<>();
+
 	private
 	void enlistNewInputFile(final List<String> localOnlyFiles,
 	                        final List<String> syncedFiles,
@@ -180,11 +220,22 @@ extends DynamicCommand
 				  .forEach( p -> enlistNewInputFile(localOnlyFiles,syncedFiles,remoteOnlyFiles,p) );
 			}
 
+			detectedAllFiles.clear();
+			detectedAllFiles.addAll(localOnlyFiles);
+			detectedAllFiles.addAll(syncedFiles);
+			detectedAllFiles.addAll(remoteOnlyFiles);
+			detectedServerFiles.clear();
+			detectedServerFiles.addAll(syncedFiles);
+			detectedServerFiles.addAll(remoteOnlyFiles);
+
 			//merge (and prefix) the known input files into a single list
-			final List<String> choices = new ArrayList<>(localOnlyFiles.size()+syncedFiles.size()+remoteOnlyFiles.size());
-			localOnlyFiles.forEach(  f -> choices.add("Local only : "+f));
-			syncedFiles.forEach(     f -> choices.add("Synced     : "+f));
+			final List<String> choices = new ArrayList<>(localOnlyFiles.size()+syncedFiles.size()+remoteOnlyFiles.size()+2);
+			localOnlyFiles.forEach(  f -> choices.add("Local only : "+f+describeLocalFile(f)));
+			syncedFiles.forEach(     f -> choices.add("Synced     : "+f+describeLocalFile(f)));
 			remoteOnlyFiles.forEach( f -> choices.add("Remote only: "+f));
+			final int authors = latestFileOfEveryAuthor(detectedAllFiles).size();
+			if (authors > 1) choices.add(choiceLatestOfAuthors+" ("+authors+")");
+			if (detectedAllFiles.size() > 1) choices.add(choiceFiltered);
 			//choices.forEach(s -> System.out.println(">>"+s+"<<"));
 
 			getInfo().getMutableInput("lineageFilenameStr", String.class).setChoices( choices );
@@ -198,10 +249,64 @@ extends DynamicCommand
 		}
 	}
 
+	/** returns a short summary from the header of the local snapshot, or an empty string */
+	private
+	String describeLocalFile(final String filename)
+	{
+		try {
+			final SnapshotHeader header = LineageFiles.readSnapshotHeader(projectRootFoldername.resolve(filename));
+			if (header != null) return "  ("+header.spots+" spots, "+header.links+" links)";
+		} catch (IOException e) {
+			logService.warn("Cannot read header of "+filename+": "+e.getMessage());
+		}
+		return "";
+	}
+
+	/** returns the newest of the given files of every author */
+	private static
+	List<String> latestFileOfEveryAuthor(final Collection<String> filenames)
+	{
+		//NB: filenames start with their timestamps, the newest is thus the "largest" one
+		final Map<String,String> latest = new HashMap<>();
+		for (String f : filenames)
+			latest.merge(LineageFiles.authorOfLineageFile(f), f, (a,b) -> a.compareTo(b) > 0 ? a : b);
+		final List<String> files = new ArrayList<>(latest.values());
+		Collections.sort(files);
+		return files;
+	}
+
+	/** returns the detected files that pass the filter, throws RuntimeException if a time is not understood */
+	private
+	List<String> filteredFiles()
+	{
+		final Set<String> authors = new HashSet<>();
+		if (filterAuthors != null)
+			for (String a : filterAuthors.split(",")) if (!a.trim().isEmpty()) authors.add(a.trim());
+		final long since = filterSince == null || filterSince.trim().isEmpty() ? Long.MIN_VALUE
+		                 : SnapshotListing.parseTimestamp(filterSince.trim());
+		final long until = filterUntil == null || filterUntil.trim().isEmpty() ? Long.MAX_VALUE
+		                 : SnapshotListing.parseTimestamp(filterUntil.trim());
+
+		final List<String> files = new ArrayList<>();
+		for (String f : detectedAllFiles)
+		{
+			if (!authors.isEmpty() && !authors.contains(LineageFiles.authorOfLineageFile(f))) continue;
+			final long time = LineageFiles.dateTimeOfLineageFile(f).toEpochSecond(ZoneOffset.UTC);
+			if (time >= since && time <= until) files.add(f);
+		}
+		if (filterLatestPerAuthor) return latestFileOfEveryAuthor(files);
+		Collections.sort(files);
+		return files;
+	}
+
 	@Parameter(label = "What to do with the loaded file:",
 		choices = {"Replace the current lineage", "Merge with the current lineage"})
 	private String actionWithNewFile;
 
+	@Parameter(label = "Backup the current lineage before merging:",
+		description = "The backup is saved into the backupCurrentLineageBeforeMerge.mstdn, in the background while merging.")
+	private boolean backupBeforeMerge = true;
+
 
 	// ----------------- implementation -----------------
 	@Override
@@ -215,10 +320,36 @@ extends DynamicCommand
 			return;
 		}
 
-		final boolean doRemoteRead = lineageFilenameStr.startsWith("Remote");
+		if (lineageFilenameStr.startsWith(choiceLatestOfAuthors))
+		{
+			loadSeveralFiles(latestFileOfEveryAuthor(detectedAllFiles));
+			return;
+		}
+		if (lineageFilenameStr.startsWith(choiceFiltered))
+		{
+			final List<String> files;
+			try {
+				files = filteredFiles();
+			} catch (RuntimeException e) {
+				logService.error("Cannot understand the time in the filter: "+e.getMessage());
+				return;
+			}
+			logService.info("The filter has chosen "+files.size()+" files: "+files);
+			if (latestFileOfEveryAuthor(files).size() < files.size())
+				logService.warn("Several files of the same author are chosen, their common spots will be merged against themselves.");
+			loadSeveralFiles(files);
+			return;
+		}
 
-		//fixup the filename and test it for validity
+		//NB: also the synced files are fetched, which costs only a quick check
+		//with the server if the local copy is up-to-date (as it typically is)
+		final boolean doRemoteRead = lineageFilenameStr.startsWith("Remote")
+			|| (readAlsoFromRemoteMonitor && lineageFilenameStr.startsWith("Synced"));
+
+		//fixup the filename (strip the prefix and the optional summary) and test it for validity
 		lineageFilenameStr = lineageFilenameStr.substring(13);
+		final int extensionPos = lineageFilenameStr.lastIndexOf(".mstdn");
+		if (extensionPos > 0) lineageFilenameStr = lineageFilenameStr.substring(0, extensionPos+6);
 		if (!LineageFiles.lineageFilePattern.test(lineageFilenameStr)) return;
 
 		//reference on an existing/old and a new model that shall be filled from the file
@@ -235,12 +366,10 @@ extends DynamicCommand
 				final String URL = remoteMonitorURL + "/" + projectName;
 				logService.info("Loading from remote URL: " + URL);
 				FileTransfer.getParticularFile(URL, lineageFilenameStr, projectRootFoldername);
-				//files arrives to the local folder....
+				//file arrives to (or is confirmed in) the local folder....
 			}
 
-			final Path lineageFullFilename = projectRootFoldername.resolve(lineageFilenameStr);
-			logService.info("Loading: " + lineageFullFilename);
-			LineageFiles.loadLineageFileIntoModel(lineageFullFilename, newModel);
+			loadFile(lineageFilenameStr, newModel);
 		} catch (MalformedURLException | UnknownHostException e) {
 			logService.error("URL is probably wrong:"); e.printStackTrace();
 			return;
@@ -261,51 +390,198 @@ extends DynamicCommand
 		else
 		{
 			//merge... but first: need to mine some params!
-			MergeModelDialog mergeParams = null;
-			try {
-				mergeParams = (MergeModelDialog)context()
-						.getService(CommandService.class)
-						.run(MergeModelDialog.class,true)
-						.get().getCommand();
-			} catch (InterruptedException | ExecutionException e) {
-				logService.error("Couldn't create or read merging parameters:");
-				e.printStackTrace();
-				return;
+			final MergeModelDialog mergeParams = askForMergeParams();
+			if (mergeParams == null) return;
+			if (!mergeWithCurrentLineage(newModel, mergeParams)) return;
+		}
+		//
+		refModel.getGraph().notifyGraphChanged();
+		LineageFiles.finishImportingModel(newModel);
+	}
+
+	/** loads (and fetches first, if they are on the server) all given files, merges them together,
+	    and either replaces or merges the current lineage with the result (as the user has chosen) */
+	private
+	void loadSeveralFiles(final List<String> filenames)
+	{
+		if (filenames.isEmpty()) return;
+		final Model refModel = appModel.getAppModel().getModel();
+		final boolean doReplace = actionWithNewFile.startsWith("Replace");
+
+		final MergeModelDialog mergeParams = askForMergeParams();
+		if (mergeParams == null) return;
+
+		//the current lineage will be replaced with the first file, and
+		//the remaining files merged together will be merged with it
+		final List<String> filesToMerge = doReplace ? filenames.subList(1, filenames.size()) : filenames;
+
+		//the files are loaded and merged on the merger's pool
+		final ParallelModelsMerger merger = new ParallelModelsMerger(mergeParams);
+		final List<Model> models = new ArrayList<>(filesToMerge.size());
+		long time = System.nanoTime();
+		try {
+			if (readAlsoFromRemoteMonitor)
+			{
+				final List<String> remoteFiles = new ArrayList<>(filenames);
+				remoteFiles.retainAll(detectedServerFiles);
+				final String URL = remoteMonitorURL + "/" + projectName;
+				logService.info("Loading "+remoteFiles.size()+" files from remote URL: " + URL);
+				FileTransfer.getParticularFiles(URL, remoteFiles, projectRootFoldername);
+				time = reportStage("Downloading", time);
 			}
-			if (mergeParams == null || !mergeParams.wasExecuted)
+
+			//load all files at once, each into its own model
+			for (int i = 0; i < filesToMerge.size(); ++i) models.add(LineageFiles.createEmptyModelWithUnitsOf(refModel));
+			final List<ForkJoinTask<?>> loadings = new ArrayList<>(filenames.size());
+			if (doReplace) loadings.add( merger.pool.submit(() -> { loadModel(filenames.get(0), refModel); return null; }) );
+			for (int i = 0; i < filesToMerge.size(); ++i)
 			{
-				logService.info("User canceled dialog");
-				return;
+				final String f = filesToMerge.get(i);
+				final Model m = models.get(i);
+				loadings.add( merger.pool.submit(() -> { loadModel(f, m); return null; }) );
 			}
+			for (ForkJoinTask<?> l : loadings) l.get();
+			time = reportStage("Loading "+filenames.size()+" files", time);
+		} catch (InterruptedException | ExecutionException e) {
+			logService.error("Failed loading the lineage files!");
+			(e.getCause() != null ? e.getCause() : e).printStackTrace();
+			return;
+		} catch (MalformedURLException | UnknownHostException e) {
+			logService.error("URL is probably wrong:"); e.printStackTrace();
+			return;
+		} catch (ConnectException e) {
+			logService.error("Some connection error:"); e.printStackTrace();
+			return;
+		} catch (IOException e) {
+			logService.error("Failed loading the lineage files!"); e.printStackTrace();
+			return;
+		}
 
-			//create an extra copy (duplicate) of the current lineage,
-			//the current lineage 'refModel' will be filled with the merged data
-			//
-			//duplicate by exporting & importing -- which we sell as backup before the merge...
-			final Model copyModel = LineageFiles.createEmptyModelWithUnitsOf(refModel);
+		if (models.isEmpty())
+		{
+			refModel.getGraph().notifyGraphChanged();
+			return;
+		}
+
+		//merge the loaded files together, pairs of them in parallel...
+		final Model merged = merger.mergeAll(models);
+		for (int i = 0; i < merger.stages.size(); ++i)
+			logService.info("Merging stage "+(i+1)+": "+merger.stages.get(i));
+		time = reportStage("Merging "+models.size()+" loaded lineages together into a lineage with "
+			+ merged.getGraph().vertices().size() + " vertices and " + merged.getGraph().edges().size() +" edges", time);
+
+		//...and finally into the current lineage
+		if (!mergeWithCurrentLineage(merged, mergeParams)) return;
+		reportStage("Merging with the current lineage", time);
+		refModel.getGraph().notifyGraphChanged();
+	}
+
+	private
+	void loadModel(final String filename, final Model intoThisModel)
+	throws IOException
+	{
+		LineageFiles.startImportingModel(intoThisModel);
+		loadFile(filename, intoThisModel);
+		LineageFiles.finishImportingModel(intoThisModel);
+	}
+
+	/** logs how long the stage took, and returns the current time */
+	private
+	long reportStage(final String stage, final long startTime)
+	{
+		final long now = System.nanoTime();
+		logService.info(String.format(Locale.ROOT, "%s took %.2f s", stage, (now-startTime)/1e9));
+		return now;
+	}
+
+	private
+	void loadFile(final String filename, final Model intoThisModel)
+	throws IOException
+	{
+		final Path lineageFullFilename = projectRootFoldername.resolve(filename);
+		logService.info("Loading: " + lineageFullFilename);
+		final SnapshotHeader header = LineageFiles.readSnapshotHeader(lineageFullFilename);
+		if (header != null) logService.info("Snapshot of " + header);
+		LineageFiles.loadLineageFileIntoModel(lineageFullFilename, intoThisModel);
+	}
+
+	/** returns null if the user has canceled the dialog */
+	private
+	MergeModelDialog askForMergeParams()
+	{
+		MergeModelDialog mergeParams = null;
+		try {
+			mergeParams = (MergeModelDialog)context()
+					.getService(CommandService.class)
+					.run(MergeModelDialog.class,true)
+					.get().getCommand();
+		} catch (InterruptedException | ExecutionException e) {
+			logService.error("Couldn't create or read merging parameters:");
+			e.printStackTrace();
+			return null;
+		}
+		if (mergeParams == null || !mergeParams.wasExecuted)
+		{
+			logService.info("User canceled dialog");
+			return null;
+		}
+		return mergeParams;
+	}
+
+	/** the current lineage will be filled with the result of merging it with the 'newModel',
+	    returns false if that has failed */
+	private
+	boolean mergeWithCurrentLineage(final Model newModel, final MergeModelDialog mergeParams)
+	{
+		final Model refModel = appModel.getAppModel().getModel();
+
+		//create an extra copy (duplicate) of the current lineage,
+		//the current lineage 'refModel' will be filled with the merged data
+		final Model copyModel;
+		try {
+			copyModel = ModelCloner.clone(refModel);
+		} catch (IOException e) {
+			logService.error("Failed duplicating the current lineage!");
+			e.printStackTrace();
+			return false;
+		}
+
+		//the copy is what the current lineage was before the merge, we sell it as backup...
+		final Thread backup = backupBeforeMerge ? startBackingUp(copyModel) : null;
+
+		final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( refModel );
+		MergeModels.merge( copyModel, newModel, output,
+			mergeParams.distCutoff, mergeParams.mahalanobisDistCutoff, mergeParams.ratioThreshold );
+
+		logService.info("Merged the current lineage (A) with "+copyModel.getGraph().vertices().size()
+				+ " vertices and " + copyModel.getGraph().edges().size() +" edges together");
+		logService.info("  with the loaded lineage (B) with "+newModel.getGraph().vertices().size()
+				+ " vertices and " + newModel.getGraph().edges().size() +" edges");
+		logService.info("  to create a new lineage with "+refModel.getGraph().vertices().size()
+				+ " vertices and " + refModel.getGraph().edges().size() +" edges.");
+		if (backup != null && backup.isAlive()) logService.info("  (the backup of the lineage before the merge is still being saved)");
+		return true;
+	}
+
+	/** saves the model on a background thread (the model must not be changed meanwhile) */
+	private
+	Thread startBackingUp(final Model model)
+	{
+		final Path auxBackupFile = projectRootFoldername.resolve("backupCurrentLineageBeforeMerge.mstdn");
+		final Thread t = new Thread(() -> {
+			//NB: the merge may read the model meanwhile, which is fine
+			model.getGraph().getLock().readLock().lock();
 			try {
-				final Path auxBackupFile = projectRootFoldername.resolve("backupCurrentLineageBeforeMerge.mstdn");
-				LineageFiles.saveModelIntoLineageFile(refModel, auxBackupFile);
-				LineageFiles.loadLineageFileIntoModel(auxBackupFile, copyModel);
+				LineageFiles.saveModelIntoLineageFile(model, auxBackupFile);
+				logService.info("Backed up the lineage before the merge into: "+auxBackupFile);
 			} catch (IOException e) {
 				logService.error("Failed backing up the lineage file!");
 				e.printStackTrace();
-				return;
+			} finally {
+				model.getGraph().getLock().readLock().unlock();
 			}
-
-			final MergeDatasets.OutputDataSet output = new MergeDatasets.OutputDataSet( refModel );
-			MergeModels.merge( copyModel, newModel, output,
-				mergeParams.distCutoff, mergeParams.mahalanobisDistCutoff, mergeParams.ratioThreshold );
-
-			logService.info("Merged the current lineage (A) with "+copyModel.getGraph().vertices().size()
-					+ " vertices and " + copyModel.getGraph().edges().size() +" edges together");
-			logService.info("  with the loaded lineage (B) with "+newModel.getGraph().vertices().size()
-					+ " vertices and " + newModel.getGraph().edges().size() +" edges");
-			logService.info("  to create a new lineage with "+refModel.getGraph().vertices().size()
-					+ " vertices and " + refModel.getGraph().edges().size() +" edges.");
-		}
-		//
-		refModel.getGraph().notifyGraphChanged();
-		LineageFiles.finishImportingModel(newModel);
+		}, "lineage backup");
+		t.start();
+		return t;
 	}
 }
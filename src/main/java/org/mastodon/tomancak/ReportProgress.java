@@ -10,9 +10,12 @@ import org.scijava.prefs.PrefService;
 
 import org.mastodon.mamut.plugin.MamutPluginAppModel;
 import org.mastodon.mamut.model.Model;
+import org.mastodon.tomancak.util.LineageDelta;
 import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.ModelChangesRecorder;
 import org.mastodon.tomancak.net.FileTransfer;
 import org.mastodon.tomancak.net.DatasetServer;
+import org.mastodon.tomancak.net.SnapshotIndex;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -51,6 +54,13 @@ extends DynamicCommand
 	//a file name (without the path) as a derivative of the current 'userName'
 	private String lineageFilename;
 
+	@Parameter(label = "Compression of the saved lineage:",
+		description = "The less the lineage is compressed, the faster it is saved (and loaded, if \"stored\"), but the larger the file is. \"Mastodon's writer\" is the slower single-threaded fallback.",
+		choices = { LineageFiles.COMPRESSION_STORED, LineageFiles.COMPRESSION_FAST, LineageFiles.COMPRESSION_DEFAULT,
+		            LineageFiles.COMPRESSION_MAX, LineageFiles.COMPRESSION_MASTODON },
+		persistKey = "snapshotsCompression")
+	private String compression = LineageFiles.COMPRESSION_DEFAULT;
+
 	private
 	void initLineageFile()
 	{
@@ -88,6 +98,10 @@ extends DynamicCommand
 		persistKey = "projectName")
 	private String projectName = "setHereProjectName";
 
+	@Parameter(label = "Upload only changes since the last report:",
+		description = "Uploads only what has been edited since the previous report of this session (the server rebuilds the full lineage from it), the first report is always uploaded complete, and so is every report after tags or labels (of spots that were not moved) were modified.")
+	private boolean sendOnlyChanges = false;
+
 
 	// ----------------- implementation -----------------
 	@Override
@@ -111,10 +125,28 @@ extends DynamicCommand
 			return;
 		}
 
+		LineageFiles.setCompression(compression);
+
 		//ok, create-able, let's export data then
 		final Model model = appModel.getAppModel().getModel();
 		try {
-			LineageFiles.saveModelIntoLineageFile(model, lineageFullFilename);
+			//the recorder must see the very same state of the model as was saved;
+			//NB: a delta is cut only to be sent, a local save leaves the recorder's base as it is
+			final ModelChangesRecorder recorder = sendOnlyChanges && sendAlsoToRemoteMonitor
+				? ModelChangesRecorder.of(model) : null;
+			LineageDelta delta = null;
+			model.getGraph().getLock().readLock().lock();
+			try {
+				LineageFiles.saveModelIntoLineageFile(model, lineageFullFilename);
+				if (recorder != null)
+				{
+					final String hash = SnapshotIndex.hashOfFile(lineageFullFilename);
+					delta = recorder.cutDelta(hash);
+					if (delta == null) recorder.rebase(hash);
+				}
+			} finally {
+				model.getGraph().getLock().readLock().unlock();
+			}
 			logService.info("Saved: "+lineageFullFilename);
 
 			if (sendAlsoToRemoteMonitor)
@@ -122,7 +154,20 @@ extends DynamicCommand
 				remoteMonitorURL = FileTransfer.fixupURL(remoteMonitorURL);
 				final String URL = remoteMonitorURL + "/" + projectName;
 				logService.info("Saving also to remote URL: "+URL);
-				FileTransfer.postParticularFile(URL, model, lineageFilename, projectRootFoldername);
+				boolean deltaAccepted = false;
+				try {
+					if (delta != null && FileTransfer.postParticularDelta(URL, lineageFilename, delta))
+					{
+						deltaAccepted = true;
+						logService.info("Uploaded only "+delta.size()+" changes since the last report");
+					}
+					else
+						FileTransfer.postParticularFile(URL, model, lineageFilename, projectRootFoldername);
+				} finally {
+					//the recorder has moved its base to the order of spots of the delta chain, but unless
+					//the server has taken the delta, it holds (at best) the full file with its own order
+					if (delta != null && !deltaAccepted) recorder.invalidate();
+				}
 			}
 		} catch (MalformedURLException | UnknownHostException e) {
 			logService.error("URL is probably wrong:"); e.printStackTrace();
@@ -1,7 +1,9 @@
 package org.mastodon.tomancak.monitors;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Map;
@@ -14,7 +16,7 @@ import de.mpicbg.ulman.outputPresenters.HTML;
 public class LogsProcessor
 {
 	public
-	LogsProcessor(final Map<String, Map<Long,Long>> stats)
+	LogsProcessor(final Map<String, ProgressSeries> stats)
 	{
 		if (stats == null)
 			throw new RuntimeException("Cannot be instantiated with stats data = null");
@@ -22,8 +24,8 @@ public class LogsProcessor
 		parser = new InputParser();
 	}
 
-	/** reference on the actual data: maps Users to their Times-to-Progress maps */
-	final Map<String, Map<Long,Long>> stats;
+	/** reference on the actual data: maps Users to their progresses */
+	final Map<String, ProgressSeries> stats;
 
 	/** specialized parser that reads this.stats for the LogsProcessor */
 	final InputParser parser;
@@ -41,24 +43,29 @@ public class LogsProcessor
 		void restartParsing()
 		{
 			//NB: stats != null hopefully from the outter c'tor of LogsProcessor
-			usersIt = stats.keySet().iterator();
-			timeIt = null;
+			usersIt = stats.entrySet().iterator();
+			series = null;
+			index = 0;
 			moveToNextDatum();
 		}
 
 		void moveToNextDatum()
 		{
-			//if there is no time iterator yet or there is one at the end of its journey,
+			//if there is no series yet or there is one at the end of its journey,
 			//and we have next user to examine, we move on the first item of the next user
-			while ((timeIt == null || !timeIt.hasNext()) && usersIt.hasNext())
+			while ((series == null || index >= series.size()) && usersIt.hasNext())
 			{
-				nextUser = usersIt.next();
-				timeIt = stats.get( nextUser ).keySet().iterator();
+				final Map.Entry<String, ProgressSeries> user = usersIt.next();
+				nextUser = user.getKey();
+				series = user.getValue();
+				index = 0;
 			}
 
-			if (timeIt != null && timeIt.hasNext())
+			if (series != null && index < series.size())
 			{
-				nextTime = timeIt.next();
+				nextTime = series.timeAt(index);
+				nextProgress = series.progressAt(index);
+				++index;
 				isThereNext = true;
 			}
 			else
@@ -68,6 +75,7 @@ public class LogsProcessor
 
 		String nextUser;
 		long nextTime;
+		long nextProgress;
 
 		@Override
 		protected
@@ -80,7 +88,7 @@ public class LogsProcessor
 			currentEvent.x = nextUser;
 			currentEvent.y = nextTime / getTypicalTimeResolution();
 			currentEvent.msg.clear();
-			currentEvent.msg.add("reached "+stats.get(nextUser).get(nextTime)
+			currentEvent.msg.add("reached "+nextProgress
 				+" on "+ LocalDateTime.ofEpochSecond(nextTime,0, ZoneOffset.UTC).toString());
 
 			//2. try to move on the next piece of data
@@ -88,8 +96,9 @@ public class LogsProcessor
 			moveToNextDatum();
 		}
 
-		Iterator<String> usersIt;
-		Iterator<Long> timeIt;
+		Iterator<Map.Entry<String, ProgressSeries>> usersIt;
+		ProgressSeries series;
+		int index;
 
 		@Override
 		public
@@ -98,19 +107,23 @@ public class LogsProcessor
 	}
 
 
-	/** outputs to HTML file the current content of this.stats */
+	/** outputs to HTML file the current content of this.stats,
+	    the file is written aside first and then renamed so that readers never see it partial */
 	void writeHtmlTableFile(final Path htmlFile)
 	{
+		final Path tmpFile = htmlFile.resolveSibling(htmlFile.getFileName()+".tmp");
 		try {
 			final int columnWidth = 40;
 
 			parser.restartParsing();
-			final Presenter presenter = new HTML(htmlFile.toFile(), columnWidth, 2);
+			final Presenter presenter = new HTML(tmpFile.toFile(), columnWidth, 2);
 
 			final ShowLogsCompacted writer = new ShowLogsCompacted(parser,presenter,1);
 			//NB: this.parser.readNextXYMsg() already "granularizes" time stamps, so we set yTimeStep = 1
 			writer.msgWrap = columnWidth;
 			writer.process();
+
+			Files.move(tmpFile, htmlFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} catch (IOException e) {
 			System.out.println("Error producing output HTML file:");
 			e.printStackTrace();
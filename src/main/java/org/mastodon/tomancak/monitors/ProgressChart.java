@@ -0,0 +1,173 @@
+package org.mastodon.tomancak.monitors;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.imageio.ImageIO;
+
+/** Draws the progress curves of all users, as gnuplot used to do it, with plain Java2D
+    into an off-screen image (so neither a display nor any external program is needed). */
+public class ProgressChart
+{
+	public int width = 800;
+	public int height = 800;
+
+	/** colors of the curves, used in the alphabetical order of the users */
+	static final Color[] palette = {
+		new Color(148,  0,211), new Color(  0,158,115), new Color( 86,180,233), new Color(230,159,  0),
+		new Color(240,228, 66), new Color(  0,114,178), new Color(229, 30, 16), new Color(  0,  0,  0) };
+
+	static final DateTimeFormatter tickFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+	/** margins around the plotting area, the top one hosts the (rotated) time labels */
+	static final int marginLeft = 90, marginRight = 100, marginTop = 130, marginBottom = 30;
+
+
+	/** writes the chart into the given PNG file, the file is written aside first and
+	    then renamed so that readers never see it partial */
+	public
+	void writePng(final Map<String, ProgressSeries> stats, final Path pngFile)
+	throws IOException
+	{
+		final Path tmpFile = pngFile.resolveSibling(pngFile.getFileName()+".tmp");
+		if (!ImageIO.write(draw(stats), "png", tmpFile.toFile()))
+			throw new IOException("No PNG writer available.");
+		Files.move(tmpFile, pngFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** returns a new image with the chart of the given Users-to-their-progresses map */
+	public
+	BufferedImage draw(final Map<String, ProgressSeries> stats)
+	{
+		final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = img.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+		final FontMetrics fm = g.getFontMetrics();
+
+		//the ranges of the data
+		long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE, maxProgress = 0;
+		for (ProgressSeries series : stats.values())
+		{
+			if (series.size() == 0) continue;
+			minTime = Math.min(minTime, series.timeAt(0));
+			maxTime = Math.max(maxTime, series.lastTime());
+			for (int i = 0; i < series.size(); ++i) maxProgress = Math.max(maxProgress, series.progressAt(i));
+		}
+
+		final int plotWidth  = width  - marginLeft - marginRight;
+		final int plotHeight = height - marginTop - marginBottom;
+		if (minTime > maxTime)
+		{
+			g.setColor(Color.BLACK);
+			g.drawString("no progress reported yet", marginLeft, marginTop);
+			g.dispose();
+			return img;
+		}
+		//single points are drawn in the middle
+		if (minTime == maxTime) { --minTime; ++maxTime; }
+		final long progressStep = niceStep(Math.max(maxProgress,1), 10);
+		final long maxAxisProgress = ((maxProgress / progressStep) + 1) * progressStep;
+
+		final double xScale = plotWidth / (double)(maxTime - minTime);
+		final double yScale = plotHeight / (double)maxAxisProgress;
+
+		//y axis: the grid, the tics and the label
+		g.setStroke(new BasicStroke(1f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 1f, new float[] {2f,3f}, 0f));
+		for (long p = 0; p <= maxAxisProgress; p += progressStep)
+		{
+			final int y = marginTop + plotHeight - (int)Math.round(p * yScale);
+			g.setColor(Color.LIGHT_GRAY);
+			g.drawLine(marginLeft, y, marginLeft+plotWidth, y);
+			g.setColor(Color.BLACK);
+			final String label = Long.toString(p);
+			g.drawString(label, marginLeft - 6 - fm.stringWidth(label), y + fm.getAscent()/2);
+		}
+		drawRotated(g, "progress (spots+links)", 18, marginTop + plotHeight/2 + fm.stringWidth("progress (spots+links)")/2, -Math.PI/2);
+
+		//x axis (on top): the grid, the tics and the label
+		final int timeTics = 8;
+		for (int i = 0; i <= timeTics; ++i)
+		{
+			final long time = minTime + (maxTime - minTime) * i / timeTics;
+			final int x = marginLeft + (int)Math.round((time - minTime) * xScale);
+			g.setColor(Color.LIGHT_GRAY);
+			g.drawLine(x, marginTop, x, marginTop+plotHeight);
+			g.setColor(Color.BLACK);
+			drawRotated(g, LocalDateTime.ofEpochSecond(time,0,ZoneOffset.UTC).format(tickFormat), x, marginTop - 6, -Math.PI/4);
+		}
+		g.drawString("time", marginLeft + plotWidth/2 - fm.stringWidth("time")/2, fm.getAscent() + 4);
+
+		g.setStroke(new BasicStroke(1f));
+		g.setColor(Color.BLACK);
+		g.drawRect(marginLeft, marginTop, plotWidth, plotHeight);
+
+		//the curves, and the key in the left top corner
+		g.setStroke(new BasicStroke(1.5f));
+		int colorIdx = 0;
+		int keyY = marginTop + 8 + fm.getAscent();
+		for (Map.Entry<String, ProgressSeries> user : new TreeMap<>(stats).entrySet())
+		{
+			g.setColor(palette[colorIdx++ % palette.length]);
+
+			int lastX = -1, lastY = -1;
+			final ProgressSeries series = user.getValue();
+			for (int i = 0; i < series.size(); ++i)
+			{
+				final int x = marginLeft + (int)Math.round((series.timeAt(i) - minTime) * xScale);
+				final int y = marginTop + plotHeight - (int)Math.round(series.progressAt(i) * yScale);
+				if (lastX >= 0) g.drawLine(lastX, lastY, x, y);
+				g.drawRect(x-3, y-3, 6, 6);
+				lastX = x;
+				lastY = y;
+			}
+
+			g.drawLine(marginLeft + 8, keyY - fm.getAscent()/2, marginLeft + 38, keyY - fm.getAscent()/2);
+			g.drawRect(marginLeft + 20, keyY - fm.getAscent()/2 - 3, 6, 6);
+			g.setColor(Color.BLACK);
+			g.drawString(user.getKey(), marginLeft + 46, keyY);
+			keyY += fm.getHeight() + 2;
+		}
+
+		g.dispose();
+		return img;
+	}
+
+	private static
+	void drawRotated(final Graphics2D g, final String text, final int x, final int y, final double angle)
+	{
+		final AffineTransform orig = g.getTransform();
+		g.translate(x, y);
+		g.rotate(angle);
+		g.drawString(text, 0, 0);
+		g.setTransform(orig);
+	}
+
+	/** returns 1, 2 or 5 times a power of ten such that about 'tics' steps cover the 'range' */
+	static
+	long niceStep(final long range, final int tics)
+	{
+		final double rough = range / (double)tics;
+		final double power = Math.pow(10, Math.floor(Math.log10(rough)));
+		final double fraction = rough / power;
+		final double nice = fraction < 1.5 ? 1 : fraction < 3.5 ? 2 : fraction < 7.5 ? 5 : 10;
+		return Math.max((long)(nice * power), 1);
+	}
+}
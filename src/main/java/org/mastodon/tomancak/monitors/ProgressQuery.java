@@ -0,0 +1,157 @@
+package org.mastodon.tomancak.monitors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.mastodon.tomancak.net.SnapshotListing.jsonQuote;
+
+/** One question about the progresses in a ProgressStore: which users (or all of them),
+    in which time range (or all of it), aggregated into buckets of which length. The answer
+    is a JSON document with, for every user, the latest progress, the contributions (the
+    growth of the progress) in every bucket and the rates per hour, and a leaderboard of
+    the users ordered by their contributions in the whole time range. */
+public class ProgressQuery
+{
+	public static final long defaultBucketSeconds = 3600;
+
+	/** more buckets than this is refused */
+	public static final int maxBuckets = 10000;
+
+	/** 'users', 'since' and 'until' may be null to mean "all of them", times are in seconds
+	    since the epoch (UTC) and are both inclusive */
+	public ProgressQuery(final Collection<String> users, final Long since, final Long until, final long bucketSeconds)
+	{
+		if (bucketSeconds <= 0) throw new IllegalArgumentException("Bucket must be positive, got "+bucketSeconds);
+		if (since != null && until != null && since > until)
+			throw new IllegalArgumentException("Since is after until.");
+		this.users = users != null ? new TreeSet<>(users) : null;
+		this.since = since;
+		this.until = until;
+		this.bucketSeconds = bucketSeconds;
+	}
+
+	final SortedSet<String> users;
+	final Long since, until;
+	final long bucketSeconds;
+
+	/** equal queries have equal strings, used as the key of the cached answers */
+	@Override
+	public String toString()
+	{
+		return users+"|"+since+"|"+until+"|"+bucketSeconds;
+	}
+
+
+	/** returns the answer as a JSON document, throws IllegalArgumentException if there would be too many buckets */
+	String evaluate(final String dataset, final Map<String, ProgressSeries> stats)
+	{
+		//the users, alphabetically
+		final Map<String, ProgressSeries> selected = new TreeMap<>();
+		stats.forEach( (user,series) -> { if (users == null || users.contains(user)) selected.put(user,series); } );
+
+		long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+		for (ProgressSeries s : selected.values())
+		{
+			if (s.size() == 0) continue;
+			from = Math.min(from, s.timeAt(0));
+			to = Math.max(to, s.lastTime());
+		}
+		if (since != null) from = since;
+		if (until != null) to = until;
+
+		final StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\"dataset\":").append(jsonQuote(dataset));
+		if (from > to)
+		{
+			//nothing reported (yet)
+			sb.append(",\"bucket\":").append(bucketSeconds).append(",\"buckets\":[],\"users\":{},\"leaderboard\":[]}\n");
+			return sb.toString();
+		}
+
+		final long firstBucket = Math.floorDiv(from, bucketSeconds) * bucketSeconds;
+		final long bucketsCnt = Math.floorDiv(to - firstBucket, bucketSeconds) + 1;
+		if (bucketsCnt > maxBuckets)
+			throw new IllegalArgumentException("Too many buckets ("+bucketsCnt+"), choose a longer bucket or a shorter time range.");
+		final int buckets = (int)bucketsCnt;
+
+		sb.append(",\"since\":").append(from).append(",\"until\":").append(to)
+		  .append(",\"bucket\":").append(bucketSeconds).append(",\"buckets\":[");
+		for (int b = 0; b < buckets; ++b)
+		{
+			if (b > 0) sb.append(',');
+			sb.append(firstBucket + b*bucketSeconds);
+		}
+		sb.append("],\n\"users\":{");
+
+		final List<String> leaders = new ArrayList<>(selected.size());
+		final Map<String,long[]> totalsAndLatests = new TreeMap<>();
+		boolean first = true;
+		for (Map.Entry<String, ProgressSeries> user : selected.entrySet())
+		{
+			final ProgressSeries s = user.getValue();
+
+			//the progress before the range, or the first one in the range (and so it does not count)
+			long previous = s.progressAtTime(from-1);
+			if (previous < 0)
+			{
+				final int idx = s.firstIndexAfter(from-1);
+				previous = idx < s.size() && s.timeAt(idx) <= to ? s.progressAt(idx) : 0;
+			}
+			final long baseline = previous;
+
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('\n').append(jsonQuote(user.getKey())).append(":{");
+
+			final int latestIdx = s.firstIndexAfter(to) - 1;
+			sb.append("\"latest\":");
+			if (latestIdx >= 0)
+				sb.append("{\"time\":").append(s.timeAt(latestIdx)).append(",\"progress\":").append(s.progressAt(latestIdx)).append('}');
+			else
+				sb.append("null");
+			sb.append(",\"reports\":").append(s.firstIndexAfter(to) - s.firstIndexAfter(from-1));
+
+			final StringBuilder rates = new StringBuilder(8 * buckets);
+			sb.append(",\"contributions\":[");
+			for (int b = 0; b < buckets; ++b)
+			{
+				final long bucketEnd = Math.min(firstBucket + (b+1)*bucketSeconds - 1, to);
+				long progress = s.progressAtTime(bucketEnd);
+				if (progress < 0) progress = previous;
+				final long contribution = progress - previous;
+				previous = progress;
+
+				if (b > 0) { sb.append(','); rates.append(','); }
+				sb.append(contribution);
+				rates.append(String.format(Locale.ROOT, "%.2f", contribution * 3600.0 / bucketSeconds));
+			}
+			sb.append("],\"ratePerHour\":[").append(rates).append("]");
+
+			final long total = previous - baseline;
+			sb.append(",\"total\":").append(total).append('}');
+
+			leaders.add(user.getKey());
+			totalsAndLatests.put(user.getKey(), new long[] { total, latestIdx >= 0 ? s.progressAt(latestIdx) : 0 });
+		}
+		sb.append("},\n\"leaderboard\":[");
+
+		leaders.sort( (a,b) -> Long.compare(totalsAndLatests.get(b)[0], totalsAndLatests.get(a)[0]) );
+		for (int i = 0; i < leaders.size(); ++i)
+		{
+			final long[] tl = totalsAndLatests.get(leaders.get(i));
+			if (i > 0) sb.append(',');
+			sb.append("\n{\"rank\":").append(i+1)
+			  .append(",\"user\":").append(jsonQuote(leaders.get(i)))
+			  .append(",\"total\":").append(tl[0])
+			  .append(",\"latest\":").append(tl[1]).append('}');
+		}
+		sb.append("\n]}\n");
+		return sb.toString();
+	}
+}
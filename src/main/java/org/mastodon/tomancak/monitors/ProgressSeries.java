@@ -0,0 +1,142 @@
+package org.mastodon.tomancak.monitors;
+
+import java.util.Arrays;
+
+/** Progress reports of ONE user: the times (in seconds since the epoch, UTC) and the progresses
+    (spots+links) are kept sorted by the time in two parallel primitive arrays. Reports come
+    mostly in the order of their times and are then simply appended, an older report is
+    inserted (or replaces the report of the same time). Lookups are binary searches. */
+public class ProgressSeries
+{
+	private long[] times;
+	private long[] progresses;
+	private int size = 0;
+
+	/** the size right after the last downsample(), see ProgressStore */
+	int sizeAfterDownsampling = 0;
+
+	public ProgressSeries()
+	{
+		this(16);
+	}
+
+	public ProgressSeries(final int initialCapacity)
+	{
+		times = new long[Math.max(initialCapacity,1)];
+		progresses = new long[times.length];
+	}
+
+
+	// --------------------- adding ---------------------
+	/** adds (or replaces) the progress at the given time, returns true if it was appended
+	    (that is, the time is later than all times seen so far) */
+	public
+	boolean put(final long time, final long progress)
+	{
+		if (size == 0 || time > times[size-1])
+		{
+			ensureCapacity(size+1);
+			times[size] = time;
+			progresses[size] = progress;
+			++size;
+			return true;
+		}
+
+		final int idx = Arrays.binarySearch(times, 0, size, time);
+		if (idx >= 0)
+		{
+			progresses[idx] = progress;
+			return false;
+		}
+
+		final int insertAt = -idx - 1;
+		ensureCapacity(size+1);
+		System.arraycopy(times,      insertAt, times,      insertAt+1, size-insertAt);
+		System.arraycopy(progresses, insertAt, progresses, insertAt+1, size-insertAt);
+		times[insertAt] = time;
+		progresses[insertAt] = progress;
+		++size;
+		return false;
+	}
+
+	private
+	void ensureCapacity(final int capacity)
+	{
+		if (capacity <= times.length) return;
+		final int newCapacity = Math.max(capacity, times.length + (times.length >> 1));
+		times = Arrays.copyOf(times, newCapacity);
+		progresses = Arrays.copyOf(progresses, newCapacity);
+	}
+
+
+	// --------------------- reading ---------------------
+	public int size()
+	{ return size; }
+
+	public long timeAt(final int index)
+	{ return times[index]; }
+
+	public long progressAt(final int index)
+	{ return progresses[index]; }
+
+	/** returns the time of the latest report, or Long.MIN_VALUE if there is no report */
+	public long lastTime()
+	{ return size > 0 ? times[size-1] : Long.MIN_VALUE; }
+
+	/** returns the index of the report of the given time, or a negative value if there is none */
+	public int indexOf(final long time)
+	{ final int idx = Arrays.binarySearch(times, 0, size, time); return idx >= 0 ? idx : -1; }
+
+	/** returns the index of the first report later than the given time (which is size() if there is none) */
+	public
+	int firstIndexAfter(final long time)
+	{
+		int idx = Arrays.binarySearch(times, 0, size, time);
+		idx = idx >= 0 ? idx+1 : -idx-1;
+		return idx;
+	}
+
+	/** returns the progress reported at or just before the given time, or -1 if nothing was reported before */
+	public
+	long progressAtTime(final long time)
+	{
+		final int idx = firstIndexAfter(time) - 1;
+		return idx >= 0 ? progresses[idx] : -1;
+	}
+
+
+	// --------------------- downsampling ---------------------
+	/** keeps only the last report of every 'resolution' long time window for the reports
+	    older than 'olderThan' (relative to the latest report), returns how many reports
+	    have been removed; progresses only grow (mostly) so the last one tells the window */
+	public
+	int downsample(final long olderThan, final long resolution)
+	{
+		if (size == 0 || resolution <= 1) return 0;
+		final long before = times[size-1] - olderThan;
+
+		int w = 0;
+		for (int r = 0; r < size; ++r)
+		{
+			//is the next report in the same (old) window? then the current one is not needed
+			if (r+1 < size && times[r+1] < before
+			    && Math.floorDiv(times[r],resolution) == Math.floorDiv(times[r+1],resolution)) continue;
+			times[w] = times[r];
+			progresses[w] = progresses[r];
+			++w;
+		}
+
+		final int removed = size - w;
+		size = w;
+		return removed;
+	}
+
+	/** releases the unused capacity */
+	public
+	void trimToSize()
+	{
+		if (times.length == size) return;
+		times = Arrays.copyOf(times, Math.max(size,1));
+		progresses = Arrays.copyOf(progresses, times.length);
+	}
+}
@@ -4,11 +4,16 @@ import java.io.IOException;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Map;
 
 import org.mastodon.tomancak.net.DatasetServer;
@@ -21,8 +26,16 @@ implements ServerListeners.LineageArrived, DatasetListeners.LineageArrived
 	/** our contract is to store the progress for this given dataset */
 	public
 	ProgressStore(final String dataset)
+	{
+		this(dataset, RenderScheduler.defaultIntervalMillis);
+	}
+
+	/** the outputs are (re)made at most once per the given interval */
+	public
+	ProgressStore(final String dataset, final long renderIntervalMillis)
 	{
 		this.dataset = dataset;
+		this.renderer = new RenderScheduler(this::renderOutputs, renderIntervalMillis);
 	}
 
 	final String dataset;
@@ -33,7 +46,18 @@ implements ServerListeners.LineageArrived, DatasetListeners.LineageArrived
 	                                          final boolean enableGnuplotPngStats,
 	                                          final boolean enableHtmlTableStats)
 	{
-		final ProgressStore ps = new ProgressStore(datasetFolder.getFileName().toString());
+		return createAttachedProgressStore(datasetFolder, server, enableGnuplotPngStats, enableHtmlTableStats,
+		                                   RenderScheduler.defaultIntervalMillis);
+	}
+
+	public static
+	ProgressStore createAttachedProgressStore(final Path datasetFolder,
+	                                          final DatasetServer server,
+	                                          final boolean enableGnuplotPngStats,
+	                                          final boolean enableHtmlTableStats,
+	                                          final long renderIntervalMillis)
+	{
+		final ProgressStore ps = new ProgressStore(datasetFolder.getFileName().toString(), renderIntervalMillis);
 		if (enableGnuplotPngStats) ps.gnuplotSetupDirs(datasetFolder);
 		if (enableHtmlTableStats) ps.htmlOutputFile = datasetFolder.resolve("status.html");
 		ps.attachToThisServer(server);
@@ -65,8 +89,14 @@ implements ServerListeners.LineageArrived, DatasetListeners.LineageArrived
 			hookOnTheseListeners.addLineageArrivedListeners( this );
 		}
 
-		//now "replay" what everything the sever has witnessed so far
-		ds.replayLineageArrivedOnDataset(this, dataset);
+		//now "replay" what everything the sever has witnessed so far,
+		//and render the outputs only once after all of it is replayed
+		renderer.beginBulkUpdate();
+		try {
+			ds.replayLineageArrivedOnDataset(this, dataset);
+		} finally {
+			renderer.endBulkUpdate();
+		}
 	}
 
 	/** monitor the given server for changes on "our" dataset,
@@ -101,53 +131,196 @@ implements ServerListeners.LineageArrived, DatasetListeners.LineageArrived
 			action(date,user,noOfSpots,noOfLinks);
 	}
 
+	/** NB: synchronized because the live events and the replay of
+	    the past events may be arriving concurrently */
 	@Override
-	public
+	public synchronized
 	void action(final LocalDateTime date, final String user,
 	            final int noOfSpots, final int noOfLinks)
 	{
-		Map<Long,Long> userStats = stats.get(user);
+		ProgressSeries userStats = stats.get(user);
 		if (userStats == null)
 		{
 			//first time adding this user's data
-			userStats = new TreeMap<>();
+			userStats = new ProgressSeries();
 			stats.put(user,userStats);
 		}
-		userStats.put(date.toEpochSecond(ZoneOffset.UTC), (long)(noOfSpots+noOfLinks));
+		final long time = date.toEpochSecond(ZoneOffset.UTC);
+		userStats.put(time, (long)noOfSpots + noOfLinks);
+		queryCache.clear();
+
+		//thin out the old reports every time the user's reports have doubled
+		if (!downsamplings.isEmpty() && userStats.size() >= 2 * Math.max(userStats.sizeAfterDownsampling, 64))
+			downsample(user, userStats);
 
 		//TODO: add more outputs
+		if (gnuplotOutputFolder == null && htmlOutputFile == null) return;
+		gnuplotOutdatedUsers.add(user);
+		//an older (or the same) time cannot be appended to the user's data file
+		final Long writtenUpTo = gnuplotWrittenUpTo.get(user);
+		if (writtenUpTo != null && time <= writtenUpTo) gnuplotRewriteUsers.add(user);
+		renderer.markDirty();
+	}
+
+
+	// --------------------- outputs rendering ---------------------
+	private final RenderScheduler renderer;
+
+	/** users whose gnuplot data files are to be updated */
+	private final Set<String> gnuplotOutdatedUsers = new HashSet<>(10);
+	/** users whose gnuplot data files are to be rewritten rather than appended */
+	private final Set<String> gnuplotRewriteUsers = new HashSet<>(10);
+	/** the latest time written into the data file of a user */
+	private final Map<String,Long> gnuplotWrittenUpTo = new HashMap<>(10);
+
+	/** (re)makes all outputs, runs on the RenderScheduler's thread
+	    (or on any thread that needs the outputs right now) */
+	public synchronized
+	void renderOutputs()
+	{
+		final long start = System.nanoTime();
 		try {
-			if (gnuplotOutputFolder != null) gnuplotWriteFile(user,userStats);
+			if (gnuplotOutputFolder != null && !gnuplotOutdatedUsers.isEmpty())
+			{
+				for (String user : gnuplotOutdatedUsers)
+				{
+					if (gnuplotRewriteUsers.contains(user) || !gnuplotWrittenUpTo.containsKey(user))
+						gnuplotWriteFile(user,stats.get(user));
+					else
+						gnuplotAppendFile(user,stats.get(user),gnuplotWrittenUpTo.get(user));
+				}
+				chart.writePng(stats, pngOutputFile);
+			}
+			gnuplotOutdatedUsers.clear();
+			gnuplotRewriteUsers.clear();
 			if (htmlOutputFile != null) htmlProcessor.writeHtmlTableFile(htmlOutputFile);
 		} catch (IOException e) {
 			System.out.println("Some problem writing files:");
 			e.printStackTrace();
 		}
+		final long time = System.nanoTime() - start;
+		++rendersCnt;
+		rendersNanos += time;
+		maxRenderNanos = Math.max(maxRenderNanos, time);
+	}
+
+	/** no outputs will be (re)made anymore, e.g., because the dataset is being removed */
+	public
+	void stopRendering()
+	{
+		renderer.close();
+	}
+
+	/** how many times and for how long the outputs have been (re)made,
+	    NB: written only inside the synchronized renderOutputs() */
+	private volatile long rendersCnt = 0, rendersNanos = 0, maxRenderNanos = 0;
+
+	public long getRendersCount() { return rendersCnt; }
+	public long getTotalRenderNanos() { return rendersNanos; }
+	public long getMaxRenderNanos() { return maxRenderNanos; }
+
+	/** maps Users to their progresses */
+	final Map<String, ProgressSeries> stats = new HashMap<>(10);
+
+
+	// --------------------- queries ---------------------
+	/** how many answers are cached at most */
+	public static int queryCacheSize = 64;
+
+	/** answers to the recent queries (keyed with their toString()), forgotten with every new report */
+	private final Map<String,String> queryCache = new HashMap<>();
+
+	/** returns the answer to the query as a JSON document, throws IllegalArgumentException
+	    if the query asks for too much */
+	public synchronized
+	String queryAsJson(final ProgressQuery query)
+	{
+		final String key = query.toString();
+		String answer = queryCache.get(key);
+		if (answer == null)
+		{
+			answer = query.evaluate(dataset, stats);
+			if (queryCache.size() >= queryCacheSize) queryCache.clear();
+			queryCache.put(key, answer);
+		}
+		return answer;
 	}
 
-	/** maps Users to their Times-to-Progress maps */
-	final Map<String, Map<Long,Long>> stats = new HashMap<>(10);
+
+	// --------------------- downsampling ---------------------
+	/** pairs {olderThan, resolution}, in seconds */
+	private final List<long[]> downsamplings = new ArrayList<>(2);
+
+	/** optional: keep only one report per 'resolutionSeconds' for the reports that are older
+	    than 'olderThanSeconds' (relative to the latest report of the same user), e.g., hourly
+	    reports after a week and daily reports after a month; can be given several times */
+	public synchronized
+	ProgressStore addDownsampling(final long olderThanSeconds, final long resolutionSeconds)
+	{
+		downsamplings.add(new long[] { olderThanSeconds, resolutionSeconds });
+		stats.forEach(this::downsample);
+		return this;
+	}
+
+	private
+	void downsample(final String user, final ProgressSeries userStats)
+	{
+		int removed = 0;
+		for (long[] d : downsamplings) removed += userStats.downsample(d[0], d[1]);
+		if (removed > 0) userStats.trimToSize();
+		userStats.sizeAfterDownsampling = userStats.size();
+		if (removed > 0) queryCache.clear();
+		if (removed == 0 || (gnuplotOutputFolder == null && htmlOutputFile == null)) return;
+
+		//the old reports are gone also from the outputs
+		gnuplotOutdatedUsers.add(user);
+		gnuplotRewriteUsers.add(user);
+		renderer.markDirty();
+	}
 
 
 	// --------------------- gnuplot outputs ---------------------
-	/** if not null, gnuplot outputs will be made */
+	/** if not null, gnuplot data files (and the PNG chart) will be made */
 	public Path gnuplotOutputFolder = null;
 
+	/** the chart of the progress, drawn right here (no gnuplot is run) */
+	public Path pngOutputFile = null;
+	private final ProgressChart chart = new ProgressChart();
+
+	/** (re)writes the whole data file of the user */
 	public
-	void gnuplotWriteFile(final String userName, final Map<Long,Long> userStats)
+	void gnuplotWriteFile(final String userName, final ProgressSeries userStats)
 	throws IOException
 	{
-		BufferedWriter osw = Files.newBufferedWriter(gnuplotOutputFolder.resolve(userName+".dat"));
-		for (long time : userStats.keySet())
-		{
-			long progress = userStats.get(time);
-			osw.write(LocalDateTime.ofEpochSecond(time,0,ZoneOffset.UTC).toString()
-					+"\t"+ time +"\t"+ progress +"\n");
-		}
-		osw.close();
+		gnuplotWriteLines(userName, userStats, Long.MIN_VALUE,
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/** appends the user's data that are newer than 'writtenUpTo' to the user's data file */
+	public
+	void gnuplotAppendFile(final String userName, final ProgressSeries userStats, final long writtenUpTo)
+	throws IOException
+	{
+		gnuplotWriteLines(userName, userStats, writtenUpTo,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+	}
 
-		//run gnuplot now, the .gnuplot file content is "encrypted" below
-		Runtime.getRuntime().exec("gnuplot refreshPlot.gnuplot", new String[0], gnuplotOutputFolder.toFile());
+	private
+	void gnuplotWriteLines(final String userName, final ProgressSeries userStats, final long after,
+	                       final OpenOption... options)
+	throws IOException
+	{
+		long lastTime = after;
+		try (BufferedWriter osw = Files.newBufferedWriter(gnuplotOutputFolder.resolve(userName+".dat"), options)) {
+			for (int i = userStats.firstIndexAfter(after); i < userStats.size(); ++i)
+			{
+				final long time = userStats.timeAt(i);
+				osw.write(LocalDateTime.ofEpochSecond(time,0,ZoneOffset.UTC).toString()
+						+"\t"+ time +"\t"+ userStats.progressAt(i) +"\n");
+				lastTime = time;
+			}
+		}
+		gnuplotWrittenUpTo.put(userName, lastTime);
 	}
 
 	public
@@ -155,6 +328,7 @@ implements ServerListeners.LineageArrived, DatasetListeners.LineageArrived
 	{
 		//define the working folder
 		gnuplotOutputFolder = datasetFolder.resolve("gnuplot");
+		pngOutputFile = datasetFolder.resolve("status.png");
 
 		//create the 'gnuplot' sub-folder
 		final File subFolder = gnuplotOutputFolder.toFile();
@@ -166,6 +340,7 @@ implements ServerListeners.LineageArrived, DatasetListeners.LineageArrived
 		try {
 			BufferedWriter script = Files.newBufferedWriter(sp);
 			script.write("# run me as \"gnuplot refreshPlot.gnuplot\" in this folder"); script.newLine();
+			script.write("# (the server draws the same chart itself, gnuplot is not needed)"); script.newLine();
 			script.newLine();
 			script.write("set terminal png size 800,800"); script.newLine();
 			script.write("set output \"../status.png\""); script.newLine();
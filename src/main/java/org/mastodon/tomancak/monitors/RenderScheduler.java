@@ -0,0 +1,108 @@
+package org.mastodon.tomancak.monitors;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Coalesces requests to (re)make some outputs: a request only marks the outputs dirty,
+    and they are made on the dedicated "progress rendering" thread at most once per the
+    given interval (so many requests in a short time result in one or two renderings);
+    no rendering happens while a bulk update is in progress, the outputs are made once
+    right after it is over. */
+public class RenderScheduler
+{
+	/** the default shortest time between the starts of two renderings */
+	public static final long defaultIntervalMillis = 2000;
+
+	/** the one thread that renders for all schedulers */
+	private static final ScheduledExecutorService renderingThread
+		= Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread t = new Thread(r, "progress rendering");
+			t.setDaemon(true);
+			return t;
+		});
+
+	public RenderScheduler(final Runnable render)
+	{
+		this(render, defaultIntervalMillis);
+	}
+
+	public RenderScheduler(final Runnable render, final long intervalMillis)
+	{
+		this.render = render;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(intervalMillis,0));
+	}
+
+	private final Runnable render;
+	private final long intervalNanos;
+
+	private boolean dirty = false;
+	private boolean closed = false;
+	private int bulkUpdates = 0;
+	private long lastRenderStart = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+	private ScheduledFuture<?> scheduled = null;
+
+
+	/** requests the outputs to be (re)made */
+	public synchronized
+	void markDirty()
+	{
+		dirty = true;
+		if (bulkUpdates == 0 && scheduled == null) scheduleRendering(false);
+	}
+
+	/** no rendering happens until the matching endBulkUpdate() */
+	public synchronized
+	void beginBulkUpdate()
+	{
+		++bulkUpdates;
+	}
+
+	/** renders right away if the outputs were requested during the bulk update */
+	public synchronized
+	void endBulkUpdate()
+	{
+		if (bulkUpdates == 0) throw new IllegalStateException("No bulk update is in progress.");
+		if (--bulkUpdates == 0 && dirty && scheduled == null)
+			scheduleRendering(true);
+	}
+
+	/** no more renderings will happen (a pending one is cancelled) */
+	public synchronized
+	void close()
+	{
+		closed = true;
+		if (scheduled != null) scheduled.cancel(false);
+		scheduled = null;
+	}
+
+	/** 'rightAway' ignores the interval since the last rendering */
+	private
+	void scheduleRendering(final boolean rightAway)
+	{
+		if (closed) return;
+		final long delay = rightAway ? 0 : Math.max(lastRenderStart + intervalNanos - System.nanoTime(), 0);
+		scheduled = renderingThread.schedule(this::renderNow, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private
+	void renderNow()
+	{
+		synchronized (this)
+		{
+			scheduled = null;
+			if (!dirty || bulkUpdates > 0 || closed) return;
+			dirty = false;
+			lastRenderStart = System.nanoTime();
+		}
+
+		//NB: outside the lock, new requests may arrive meanwhile and schedule the next rendering
+		try {
+			render.run();
+		} catch (RuntimeException e) {
+			System.out.println("Some problem rendering the outputs:");
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.mastodon.tomancak.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Recent arrivals of snapshot files into ONE dataset, each numbered with an increasing
+    cursor, together with the (long-polling) clients that wait for the next arrival. */
+public class ArrivalLog
+{
+	/** how many recent arrivals are remembered */
+	public static final int capacity = 1024;
+
+	/** the arrival with the cursor 'c' sits at names[c % capacity] */
+	private final String[] names = new String[capacity];
+	private long lastCursor;
+	private long firstCursor;
+
+	public ArrivalLog()
+	{
+		//NB: cursors of a previous run of the server are thus always too old,
+		//    and the clients holding them are told to re-read the whole listing
+		lastCursor = System.currentTimeMillis();
+		firstCursor = lastCursor+1;
+	}
+
+	/** notified when some files have arrived after the cursor the waiter was waiting for */
+	public interface Waiter
+	{
+		void arrived(final long cursor, final List<String> filenames);
+	}
+
+	private final List<Waiter> waiters = new ArrayList<>();
+
+
+	/** returns the cursor of the last arrival */
+	public synchronized
+	long getCursor()
+	{
+		return lastCursor;
+	}
+
+	/** records the newly arrived file and wakes up all waiters */
+	public
+	void add(final String filename)
+	{
+		final List<Waiter> wakeUp;
+		final long cursor;
+		synchronized (this)
+		{
+			cursor = ++lastCursor;
+			names[(int)(cursor % capacity)] = filename;
+			if (lastCursor - firstCursor >= capacity) firstCursor = lastCursor - capacity + 1;
+
+			wakeUp = new ArrayList<>(waiters);
+			waiters.clear();
+		}
+		//NB: notified outside the lock as the waiters are sending their responses
+		final List<String> arrived = Collections.singletonList(filename);
+		for (Waiter w : wakeUp) w.arrived(cursor, arrived);
+	}
+
+	/** returns the files that arrived after the given cursor (in the order of their arrivals),
+	    or null if this cannot be told (because the cursor is too old or from elsewhere);
+	    if nothing has arrived yet and the waiter is given, the waiter is registered to
+	    be notified about the next arrival and an empty list is returned */
+	public synchronized
+	List<String> arrivedAfter(final long since, final Waiter waiter)
+	{
+		if (since > lastCursor || since+1 < firstCursor) return null;
+
+		final List<String> arrived = new ArrayList<>((int)(lastCursor-since));
+		for (long c = since+1; c <= lastCursor; ++c) arrived.add(names[(int)(c % capacity)]);
+
+		if (arrived.isEmpty() && waiter != null) waiters.add(waiter);
+		return arrived;
+	}
+
+	/** the waiter will not be notified anymore */
+	public synchronized
+	void removeWaiter(final Waiter waiter)
+	{
+		waiters.remove(waiter);
+	}
+}
@@ -0,0 +1,395 @@
+package org.mastodon.tomancak.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.undertow.server.HttpServerExchange;
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSourceChannel;
+
+import org.mastodon.tomancak.util.ContentHasher;
+
+/** Uploads that arrive in chunks: a session is opened for a file of a known size, its chunks
+    (of the session's fixed size) may then arrive in any order, over parallel connections and
+    repeatedly, and the file is committed (moved to its final name) once all of them are there.
+    The partial file and the state of the session (which chunks have arrived) are kept in the
+    incoming folder of the UploadEngine, so an upload survives a dropped connection as well
+    as a restart of the server; sessions untouched for longer than 'expiryMillis' are removed. */
+public class ChunkedUploads
+{
+	public static final int defaultChunkSize = 8 << 20;
+	public static final int minChunkSize = 64 << 10;
+	public static final int maxChunkSize = 64 << 20;
+
+	/** abandoned sessions are removed after this time of inactivity */
+	public static long expiryMillis = TimeUnit.HOURS.toMillis(24);
+
+	static final String stateSuffix = ".session";
+	static final String partSuffix = ".chunked";
+
+	public ChunkedUploads(final UploadEngine uploadEngine)
+	{
+		this.uploadEngine = uploadEngine;
+	}
+
+	final UploadEngine uploadEngine;
+
+
+	// --------------------- sessions ---------------------
+	public static class Session
+	{
+		public final String id;
+		public final String filename;
+		public final long size;
+		public final int chunkSize;
+		/** what the client has told about the snapshot */
+		public final int spots, links;
+
+		final Path partFile, stateFile;
+		final BitSet received;
+		long lastActive;
+		boolean finished = false;
+
+		/** chunks are written under the read lock, the commit (and the removal) takes the write lock */
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		Session(final String id, final String filename, final long size, final int chunkSize,
+		        final int spots, final int links, final Path incomingFolder, final BitSet received)
+		{
+			this.id = id;
+			this.filename = filename;
+			this.size = size;
+			this.chunkSize = chunkSize;
+			this.spots = spots;
+			this.links = links;
+			this.partFile = incomingFolder.resolve(id + partSuffix);
+			this.stateFile = incomingFolder.resolve(id + stateSuffix);
+			this.received = received;
+			this.lastActive = System.currentTimeMillis();
+		}
+
+		public int chunksCnt()
+		{ return (int)((size + chunkSize - 1) / chunkSize); }
+
+		public int chunkLength(final int chunk)
+		{ return (int)Math.min(chunkSize, size - (long)chunk * chunkSize); }
+
+		public synchronized
+		long receivedBytes()
+		{
+			long bytes = 0;
+			for (int c = received.nextSetBit(0); c >= 0; c = received.nextSetBit(c+1)) bytes += chunkLength(c);
+			return bytes;
+		}
+
+		public synchronized
+		boolean isComplete()
+		{
+			return received.cardinality() == chunksCnt();
+		}
+
+		/** the state of the session as 'key=value' rows, the 'missing' row lists
+		    the offsets of the chunks that have not arrived yet */
+		public synchronized
+		String describe()
+		{
+			final StringBuilder sb = new StringBuilder(128);
+			sb.append("id=").append(id).append('\n')
+			  .append("size=").append(size).append('\n')
+			  .append("chunk=").append(chunkSize).append('\n')
+			  .append("received=").append(receivedBytes()).append('\n')
+			  .append("missing=");
+			boolean first = true;
+			for (int c = received.nextClearBit(0); c < chunksCnt(); c = received.nextClearBit(c+1))
+			{
+				if (!first) sb.append(',');
+				first = false;
+				sb.append((long)c * chunkSize);
+			}
+			sb.append('\n');
+			return sb.toString();
+		}
+
+		void saveState()
+		throws IOException
+		{
+			final Properties p = new Properties();
+			p.setProperty("name", filename);
+			p.setProperty("size", Long.toString(size));
+			p.setProperty("chunk", Integer.toString(chunkSize));
+			p.setProperty("spots", Integer.toString(spots));
+			p.setProperty("links", Integer.toString(links));
+			p.setProperty("received", Base64.getEncoder().encodeToString(received.toByteArray()));
+
+			final Path tmpFile = stateFile.resolveSibling(stateFile.getFileName()+".tmp");
+			try (OutputStream os = Files.newOutputStream(tmpFile)) {
+				p.store(os, "chunked upload of "+filename);
+			}
+			Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		static
+		Session loadState(final Path stateFile)
+		throws IOException
+		{
+			final Properties p = new Properties();
+			try (InputStream is = Files.newInputStream(stateFile)) {
+				p.load(is);
+			}
+			final String name = stateFile.getFileName().toString();
+			try {
+				final Session s = new Session(name.substring(0, name.length() - stateSuffix.length()),
+				                              p.getProperty("name"),
+				                              Long.parseLong(p.getProperty("size")),
+				                              Integer.parseInt(p.getProperty("chunk")),
+				                              Integer.parseInt(p.getProperty("spots","0")),
+				                              Integer.parseInt(p.getProperty("links","0")),
+				                              stateFile.getParent(),
+				                              BitSet.valueOf(Base64.getDecoder().decode(p.getProperty("received",""))));
+				s.lastActive = Files.getLastModifiedTime(stateFile).toMillis();
+				return s;
+			} catch (RuntimeException e) {
+				throw new IOException("Broken upload session "+stateFile+": "+e.getMessage(), e);
+			}
+		}
+	}
+
+	private final Map<String,Session> sessions = new ConcurrentHashMap<>();
+	private boolean sessionsLoaded = false;
+
+	/** ids of the recently committed sessions, a repeated commit (its response got lost) succeeds */
+	private final Set<String> recentlyCommitted = Collections.newSetFromMap(new LinkedHashMap<String,Boolean>() {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String,Boolean> eldest)
+		{ return size() > 1000; }
+	});
+
+	/** re-reads the sessions that were open when the server stopped */
+	private synchronized
+	void loadSessions()
+	{
+		if (sessionsLoaded) return;
+		sessionsLoaded = true;
+		if (!Files.isDirectory(uploadEngine.incomingFolder)) return;
+
+		try (DirectoryStream<Path> states = Files.newDirectoryStream(uploadEngine.incomingFolder, "*"+stateSuffix)) {
+			for (Path stateFile : states)
+			{
+				try {
+					final Session s = Session.loadState(stateFile);
+					if (Files.isRegularFile(s.partFile)) sessions.put(s.id, s);
+					else Files.deleteIfExists(stateFile);
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot list upload sessions in "+uploadEngine.incomingFolder+": "+e.getMessage());
+		}
+		if (!sessions.isEmpty())
+			System.out.println("Resumed "+sessions.size()+" upload sessions in "+uploadEngine.datasetFolder);
+	}
+
+	/** opens a new session for the file 'filename' of 'size' bytes, the 'chunkSize' is
+	    only a wish of the client (it is clamped to the allowed range) */
+	public
+	Session create(final String filename, final long size, final int chunkSize, final int spots, final int links)
+	throws IOException
+	{
+		loadSessions();
+		removeExpired();
+		if (size < 0) throw new IllegalArgumentException("Negative size "+size);
+		if (Files.getFileStore(uploadEngine.datasetFolder).getUsableSpace() < size)
+			throw new IOException("Not enough free space for "+size+" bytes of "+filename);
+
+		final int chunk = Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize > 0 ? chunkSize : defaultChunkSize));
+		Files.createDirectories(uploadEngine.incomingFolder);
+		final Session s = new Session(UUID.randomUUID().toString(), filename, size, chunk, spots, links,
+		                              uploadEngine.incomingFolder, new BitSet());
+		try (FileChannel fc = FileChannel.open(s.partFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			//reserve the space for the whole file right away
+			if (size > 0) fc.write(ByteBuffer.wrap(new byte[1]), size-1);
+		}
+		s.saveState();
+		sessions.put(s.id, s);
+		return s;
+	}
+
+	/** returns the open session of the id, or null if there is none (or it has expired) */
+	public
+	Session get(final String id)
+	{
+		loadSessions();
+		removeExpired();
+		return sessions.get(id);
+	}
+
+	public synchronized
+	boolean isRecentlyCommitted(final String id)
+	{
+		return recentlyCommitted.contains(id);
+	}
+
+
+	// --------------------- receiving ---------------------
+	/** Receives the body of the request as the chunk that starts at 'offset', must be called
+	    from a worker thread. Throws IllegalArgumentException if the offset or the length of the
+	    chunk do not fit the session, IllegalStateException if the session is over meanwhile. */
+	public
+	void receiveChunk(final Session s, final long offset, final HttpServerExchange exchange)
+	throws IOException
+	{
+		if (offset < 0 || offset >= s.size || offset % s.chunkSize != 0)
+			throw new IllegalArgumentException("Offset "+offset+" is not a start of a chunk of "+s.chunkSize+" bytes");
+		final int chunk = (int)(offset / s.chunkSize);
+		final long expectedSize = s.chunkLength(chunk);
+		final long announcedSize = exchange.getRequestContentLength();
+		if (announcedSize >= 0 && announcedSize != expectedSize)
+			throw new IllegalArgumentException("Chunk at "+offset+" must have "+expectedSize+" bytes, not "+announcedSize);
+
+		s.lock.readLock().lock();
+		try {
+			if (s.finished) throw new IllegalStateException("Upload session is over");
+
+			//NB: other chunks of the same file may be being written meanwhile, each into its own region
+			long position = offset;
+			try (FileChannel fc = FileChannel.open(s.partFile, StandardOpenOption.WRITE)) {
+				final StreamSourceChannel requestChannel = exchange.getRequestChannel();
+				final ByteBuffer buf = UploadEngine.acquireBuffer();
+				try {
+					while (Channels.readBlocking(requestChannel, buf) >= 0)
+					{
+						buf.flip();
+						if (position + buf.remaining() > offset + expectedSize)
+							throw new IOException("Chunk at "+offset+" is longer than "+expectedSize+" bytes");
+						while (buf.hasRemaining()) position += fc.write(buf, position);
+						buf.clear();
+					}
+				} finally {
+					UploadEngine.releaseBuffer(buf);
+				}
+				if (position - offset != expectedSize)
+					throw new IOException("Received "+(position-offset)+" bytes of the chunk at "+offset+" but "+expectedSize+" were expected");
+				fc.force(false);
+			}
+
+			synchronized (s)
+			{
+				s.received.set(chunk);
+				s.lastActive = System.currentTimeMillis();
+				s.saveState();
+			}
+		} finally {
+			s.lock.readLock().unlock();
+		}
+	}
+
+	/** moves the complete file to its final name in the dataset folder and closes the session,
+	    throws IllegalStateException if some chunks are still missing */
+	public
+	UploadEngine.Result commit(final Session s)
+	throws IOException
+	{
+		s.lock.writeLock().lock();
+		try {
+			if (s.finished) throw new IllegalStateException("Upload session is over");
+			if (!s.isComplete()) throw new IllegalStateException("Upload is not complete");
+
+			//the chunks have arrived in any order, so the hash is computed only now
+			final MessageDigest hasher = ContentHasher.createHasher();
+			try (FileChannel fc = FileChannel.open(s.partFile, StandardOpenOption.READ)) {
+				final ByteBuffer buf = UploadEngine.acquireBuffer();
+				try {
+					while (fc.read(buf) >= 0)
+					{
+						buf.flip();
+						hasher.update(buf);
+						buf.clear();
+					}
+				} finally {
+					UploadEngine.releaseBuffer(buf);
+				}
+			}
+
+			final Path file = uploadEngine.commit(s.partFile, s.filename);
+			s.finished = true;
+			sessions.remove(s.id);
+			Files.deleteIfExists(s.stateFile);
+			synchronized (this) { recentlyCommitted.add(s.id); }
+			return new UploadEngine.Result(file, s.size, ContentHasher.toHex(hasher.digest()));
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	/** closes the session and removes what has arrived so far */
+	public
+	void abort(final Session s)
+	throws IOException
+	{
+		s.lock.writeLock().lock();
+		try {
+			remove(s);
+		} finally {
+			s.lock.writeLock().unlock();
+		}
+	}
+
+	private
+	void remove(final Session s)
+	throws IOException
+	{
+		s.finished = true;
+		sessions.remove(s.id);
+		Files.deleteIfExists(s.partFile);
+		Files.deleteIfExists(s.stateFile);
+	}
+
+	/** removes the sessions that nobody has touched for 'expiryMillis', skips those that are just being written */
+	public
+	void removeExpired()
+	{
+		final long now = System.currentTimeMillis();
+		final List<Session> expired = new ArrayList<>();
+		for (Session s : sessions.values())
+		{
+			synchronized (s) { if (now - s.lastActive > expiryMillis) expired.add(s); }
+		}
+
+		for (Session s : expired)
+		{
+			if (!s.lock.writeLock().tryLock()) continue;
+			try {
+				if (s.finished) continue;
+				remove(s);
+				System.out.println("Expired upload session of "+s.filename+" in "+uploadEngine.datasetFolder);
+			} catch (IOException e) {
+				System.out.println("Failed removing expired upload session "+s.id+": "+e.getMessage());
+			} finally {
+				s.lock.writeLock().unlock();
+			}
+		}
+	}
+}
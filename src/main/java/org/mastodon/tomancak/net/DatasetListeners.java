@@ -2,7 +2,7 @@ package org.mastodon.tomancak.net;
 
 import java.time.LocalDateTime;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /** Collection of triggers relevant to ONE particular dataset */
 public class DatasetListeners
@@ -37,6 +37,8 @@ public class DatasetListeners
 	{
 		this.datasetName     = datasetName;
 		this.serverListeners = serverListeners;
+		this.dispatcher      = serverListeners != null ? serverListeners.getEventDispatcher()
+		                                               : EventDispatcher.getDefaultDispatcher();
 	}
 
 	public DatasetListeners(final String datasetName)
@@ -45,10 +47,14 @@ public class DatasetListeners
 	}
 
 
+	/** executes the notifications, in order, off the caller's thread */
+	private final EventDispatcher dispatcher;
+
+
 	// --------------- management of dataset-specific listeners ---------------
-	final Collection<LineageArrived> lineageArrivedListeners = new LinkedList<>();
-	final Collection<FileArrived>    fileArrivedListeners    = new LinkedList<>();
-	final Collection<FileRequested>  fileRequestedListeners  = new LinkedList<>();
+	final Collection<LineageArrived> lineageArrivedListeners = new CopyOnWriteArrayList<>();
+	final Collection<FileArrived>    fileArrivedListeners    = new CopyOnWriteArrayList<>();
+	final Collection<FileRequested>  fileRequestedListeners  = new CopyOnWriteArrayList<>();
 
 
 	public void addLineageArrivedListeners(final LineageArrived listener)
@@ -76,30 +82,31 @@ public class DatasetListeners
 	void notifyLineageArrivedListeners(final LocalDateTime date, final String user,
 	                                   final int noOfSpots, final int noOfLinks)
 	{
-		new Thread(() -> {
+		dispatcher.dispatch(datasetName, () -> {
 			lineageArrivedListeners.forEach( a -> a.action(date,user,noOfSpots,noOfLinks) );
 			if (serverListeners != null)
 				serverListeners.lineageArrivedListeners.forEach( a -> a.action(datasetName,date,user,noOfSpots,noOfLinks) );
-		}).start();
+		});
 	}
 
 	/** helper method to notify all relevant listeners */
 	void notifyFileArrivedListeners(final String filename)
 	{
-		new Thread(() -> {
+		dispatcher.dispatch(datasetName, () -> {
 			fileArrivedListeners.forEach( a -> a.action(filename) );
 			if (serverListeners != null)
 				serverListeners.fileArrivedListeners.forEach( a -> a.action(datasetName,filename) );
-		}).start();
+		});
 	}
 
 	/** helper method to notify all relevant listeners */
 	void notifyFileRequestedListeners(final String filename)
 	{
-		new Thread(() -> {
+		//NB: this one is typically notified from an IO thread, which must not block
+		dispatcher.dispatchWithoutBlocking(datasetName, () -> {
 			fileRequestedListeners.forEach( a -> a.action(filename) );
 			if (serverListeners != null)
 				serverListeners.fileRequestedListeners.forEach( a -> a.action(datasetName,filename) );
-		}).start();
+		});
 	}
 }
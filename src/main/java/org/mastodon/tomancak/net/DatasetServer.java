@@ -5,19 +5,37 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.ConnectorStatistics;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.PathHandler;
+import io.undertow.util.Headers;
+import org.xnio.management.XnioWorkerMXBean;
 import static org.mastodon.tomancak.monitors.ProgressStore.createAttachedProgressStore;
+import static org.mastodon.tomancak.net.ServerMetrics.gauge;
+import static org.mastodon.tomancak.net.ServerMetrics.header;
+import static org.mastodon.tomancak.net.ServerMetrics.sample;
 
+import org.mastodon.tomancak.monitors.ProgressStore;
+import org.mastodon.tomancak.monitors.RenderScheduler;
+import org.mastodon.tomancak.util.LineageDelta;
 import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.SnapshotHeader;
 import org.mastodon.mamut.model.Model;
-import java.time.LocalDateTime;
 
 public class DatasetServer
 {
@@ -46,7 +64,7 @@ public class DatasetServer
 		this.datasetsRootFolder = Paths.get(datasetsRootFolder);
 		if (!this.datasetsRootFolder.toFile().isDirectory())
 			throw new RuntimeException("Cannot start server, folder does not exists: "+datasetsRootFolder);
-		this.requestsRooter = Handlers.path();
+		this.requestsRooter = Handlers.path( datasets.createRoutingHandler() );
 	}
 
 	/** optional: set the port on which the server will be listening */
@@ -57,7 +75,7 @@ public class DatasetServer
 	public DatasetServer setHostname(final String hostname)
 	{ this.hostname = hostname; return this; }
 
-	/** optional: enable that the server will be creating gnuplot's PNG to monitor reported progresses */
+	/** optional: enable that the server will be drawing a PNG chart (and keeping gnuplot data files) to monitor reported progresses */
 	public DatasetServer setUpdateGnuplotPngStats(final boolean enabled)
 	{ this.updateGnuplotPngStats = enabled; return this; }
 
@@ -65,6 +83,10 @@ public class DatasetServer
 	public DatasetServer setUpdateHtmlTableStats(final boolean enabled)
 	{ this.updateHtmlTableStats = enabled; return this; }
 
+	/** optional: set the shortest time between two updates of the PNG chart and HTML table */
+	public DatasetServer setStatsRenderInterval(final long millis)
+	{ this.statsRenderInterval = millis; return this; }
+
 	/** the default port if none is provided to start a server */
 	public static final int defaultPort = 7070;
 
@@ -73,47 +95,249 @@ public class DatasetServer
 	private String hostname = "localhost";
 	private boolean updateGnuplotPngStats = false;
 	private boolean updateHtmlTableStats  = false;
+	private long statsRenderInterval = RenderScheduler.defaultIntervalMillis;
+
+	/** optional: enable that the progress stores keep only hourly reports after a week,
+	    and only daily reports after a month (relative to the latest report of every user) */
+	public DatasetServer setStatsDownsampling(final boolean enabled)
+	{ this.statsDownsampling = enabled; return this; }
+
+	private boolean statsDownsampling = false;
+
+	/** optional: set how many datasets can be warming up in parallel during the start() */
+	public DatasetServer setWarmUpParallelism(final int parallelism)
+	{ this.warmUpParallelism = Math.max(parallelism,1); return this; }
 
-	/** actually starts the server with the specific settings */
+	private int warmUpParallelism = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
+	/** actually starts the server with the specific settings,
+	    note that the already existing datasets are served right away
+	    while their progress stores are warming up in the background */
 	public void start()
 	{
 		requestsRooter
 		  .addPrefixPath("/add",       addDatasetHandler(false))
 		  .addPrefixPath("/addSecret", addDatasetHandler(true))
 		  .addPrefixPath("/remove",    removeDatasetHandler())
+		  .addExactPath( "/status",    statusHandler())
+		  .addExactPath( "/metrics",   metricsHandler())
 		  .addExactPath( "/",          helpListingHandler());
 
-		Undertow server = Undertow.builder()
+		server = Undertow.builder()
 		  .addHttpListener(port, hostname)
-		  .setHandler(requestsRooter)
+		  .setHandler(metrics.instrument(requestsRooter, this::routeOfPath))
+		  .setServerOption(UndertowOptions.ENABLE_STATISTICS, true)
 		  .build();
 
 		//setUpdateGnuplotPngStats(true);
 		//setUpdateHtmlTableStats(true);
 
-		System.out.println("Starting server "+hostname+":"+port+" over "+datasetsRootFolder);
-		System.out.println("  will be updating gnuplot PNG: "+updateGnuplotPngStats
-		                  +", HTML table: "+updateHtmlTableStats);
-		server.start();
-
-		//check if there are already any folders/datasets in there and register FileServer handlers for them
-		try {
-			Stream<Path> datasetFolders = Files.walk(this.datasetsRootFolder,1);
+		//check if there are already any folders/datasets in there and register FileServer handlers for them,
+		//this is cheap and is done before the server starts so that no existing dataset is reported missing
+		final List<DatasetsRegistry.Dataset> datasetsToWarmUp = new ArrayList<>(50);
+		try (Stream<Path> datasetFolders = Files.walk(this.datasetsRootFolder,1)) {
 			datasetFolders.forEach( datasetPath -> {
 				//double-check that the item is really an existing folder,
 				//and filter out our own root folder (e.q. '.' folder on Unixes)
 				final File datasetAsFile = datasetPath.toFile();
 				if (datasetAsFile.isDirectory() && !this.datasetsRootFolder.equals(datasetPath))
 				{
-					final String datasetStr = datasetAsFile.getName();
-					requestsRooter.addPrefixPath("/"+datasetStr,
-						FileServer.createDatasetHttpHandler( datasetPath, createListenersForDataset(datasetStr) ));
-					createAttachedProgressStore(datasetPath,this,updateGnuplotPngStats,updateHtmlTableStats);
-					System.out.println("Auto-created a dataset handler for files in "+datasetPath);
+					final DatasetsRegistry.Dataset ds = new DatasetsRegistry.Dataset(datasetAsFile.getName(), datasetPath, listeners);
+					if (datasets.register(ds))
+					{
+						datasetsToWarmUp.add(ds);
+						System.out.println("Auto-created a dataset handler for files in "+datasetPath);
+					}
 				}
 			});
-			datasetFolders.close();
 		} catch (IOException e) { /* just ignore errors */ }
+
+		System.out.println("Starting server "+hostname+":"+port+" over "+datasetsRootFolder);
+		System.out.println("  will be updating gnuplot PNG: "+updateGnuplotPngStats
+		                  +", HTML table: "+updateHtmlTableStats);
+		server.start();
+
+		//now "replay" the existing datasets into their progress stores, in parallel
+		final ForkJoinPool warmUpPool = new ForkJoinPool(warmUpParallelism);
+		warmUpFinished = CompletableFuture.allOf(
+			datasetsToWarmUp.stream()
+			  .map( ds -> CompletableFuture.runAsync(() -> warmUpDataset(ds), warmUpPool) )
+			  .toArray(CompletableFuture[]::new) );
+		warmUpFinished.whenComplete( (v,e) -> {
+			warmUpPool.shutdown();
+			System.out.println("All "+datasetsToWarmUp.size()+" datasets have warmed up");
+		});
+	}
+
+
+	private Undertow server = null;
+	/** set once stop() is called, datasets warming up after it are stopped right away */
+	private volatile boolean stopped = false;
+
+	/** stops the background work on the dataset: watching its folder,
+	    rendering its progress outputs and creating its checkpoints */
+	private
+	void stopDataset(final DatasetsRegistry.Dataset ds)
+	{
+		ds.snapshotListing.close();
+		ds.snapshotRebuilder.close();
+		final ProgressStore ps = ds.progressStore;
+		if (ps != null)
+		{
+			ps.detachFromThisServer(this);
+			ps.stopRendering();
+		}
+	}
+
+	/** stops serving (the listening and all the worker threads are stopped,
+	    and so is the background work on the datasets), the server cannot be started again */
+	public void stop()
+	{
+		if (server == null) return;
+		server.stop();
+		server = null;
+		stopped = true;
+		datasets.getAll().forEach( this::stopDataset );
+		listeners.getEventDispatcher().shutdown();
+		System.out.println("Stopped server "+hostname+":"+port+" over "+datasetsRootFolder);
+	}
+
+
+	// --------------------- warming up ---------------------
+	public enum WarmUpState { WAITING, WARMING, READY, FAILED }
+
+	/** completes when all datasets discovered in start() have warmed up */
+	private volatile CompletableFuture<Void> warmUpFinished = CompletableFuture.completedFuture(null);
+
+	private
+	void warmUpDataset(final DatasetsRegistry.Dataset ds)
+	{
+		if (stopped) return;
+		ds.warmUpState = WarmUpState.WARMING;
+		try {
+			ds.progressStore = createAttachedProgressStore(ds.folder,this,updateGnuplotPngStats,updateHtmlTableStats,
+			                                                statsRenderInterval);
+			if (statsDownsampling)
+				ds.progressStore.addDownsampling(TimeUnit.DAYS.toSeconds(7), TimeUnit.HOURS.toSeconds(1))
+				                .addDownsampling(TimeUnit.DAYS.toSeconds(30), TimeUnit.DAYS.toSeconds(1));
+			ds.warmUpState = WarmUpState.READY;
+			//stop() might have missed this one as it was not ready yet
+			if (stopped) stopDataset(ds);
+		} catch (RuntimeException e) {
+			System.out.println("Failed warming up the dataset "+ds.name+":");
+			e.printStackTrace();
+			ds.warmUpState = WarmUpState.FAILED;
+		}
+	}
+
+	/** returns the warm-up state of the given dataset, or null if no such dataset is known */
+	public WarmUpState getWarmUpState(final String dataset)
+	{
+		final DatasetsRegistry.Dataset ds = datasets.get(dataset);
+		return ds != null ? ds.warmUpState : null;
+	}
+
+	/** returns true if all datasets discovered in start() have warmed up */
+	public boolean isReady()
+	{ return warmUpFinished.isDone(); }
+
+	/** blocks until all datasets discovered in start() have warmed up */
+	public void awaitReady()
+	{ warmUpFinished.join(); }
+
+	HttpHandler statusHandler()
+	{
+		return exchange -> {
+			final StringBuilder sb = new StringBuilder();
+			sb.append(isReady() ? "READY" : "WARMING").append('\n');
+			//NB: only how many, the names of datasets are the keys to them and must not be listed
+			final Map<WarmUpState,Integer> counts = new EnumMap<>(WarmUpState.class);
+			for (WarmUpState state : WarmUpState.values()) counts.put(state, 0);
+			datasets.getAll().forEach( ds -> counts.merge(ds.warmUpState, 1, Integer::sum) );
+			counts.forEach( (state,cnt) ->
+				sb.append(state).append('\t').append(cnt).append('\n') );
+			exchange.getResponseSender().send(sb.toString());
+		};
+	}
+
+
+	// --------------------- metrics ---------------------
+	/** counters and histograms of the requests served so far */
+	public final ServerMetrics metrics = new ServerMetrics();
+
+	/** returns {route, dataset} of the given request path, where the dataset is an empty
+	    string if the request is not for any (known) dataset, e.g., {"/put","DATASET"} for
+	    "/DATASET/put/file.mstdn" or {"/status",""} for "/status" */
+	String[] routeOfPath(final String path)
+	{
+		if (path.length() <= 1) return new String[] { "/", "" };
+
+		final int firstSlash = path.indexOf('/',1);
+		final String first = firstSlash < 0 ? path.substring(1) : path.substring(1,firstSlash);
+		if (datasets.get(first) == null) return new String[] { "/"+first, "" };
+		if (firstSlash < 0) return new String[] { "/", first };
+
+		final int secondSlash = path.indexOf('/',firstSlash+1);
+		return new String[] { secondSlash < 0 ? path.substring(firstSlash) : path.substring(firstSlash,secondSlash), first };
+	}
+
+	HttpHandler metricsHandler()
+	{
+		return exchange -> {
+			final StringBuilder sb = new StringBuilder(16384);
+			metrics.print(sb);
+
+			//the listeners, their events wait in the per-dataset queues of the dispatcher
+			final EventDispatcher dispatcher = listeners.getEventDispatcher();
+			header(sb, "mastodon_listener_queue_depth", "gauge", "Events waiting for the listeners, by dataset.");
+			final Map<String,Integer> depths = new TreeMap<>();
+			datasets.getAll().forEach( ds -> depths.put(ds.name, dispatcher.getQueueDepth(ds.name)) );
+			depths.forEach( (ds,depth) -> sample(sb, "mastodon_listener_queue_depth", ServerMetrics.datasetLabel(ds), depth) );
+			header(sb, "mastodon_listener_events_total", "counter", "Events submitted to, executed by, and dropped before the listeners.");
+			sample(sb, "mastodon_listener_events_total", "state=\"submitted\"", dispatcher.getSubmittedCount());
+			sample(sb, "mastodon_listener_events_total", "state=\"executed\"",  dispatcher.getExecutedCount());
+			sample(sb, "mastodon_listener_events_total", "state=\"dropped\"",   dispatcher.getDroppedCount());
+			header(sb, "mastodon_listener_seconds_total", "counter", "Time the events spent waiting in the queues, and being executed.");
+			sample(sb, "mastodon_listener_seconds_total", "phase=\"waiting\"",   dispatcher.getTotalWaitingNanos() / 1e9);
+			sample(sb, "mastodon_listener_seconds_total", "phase=\"execution\"", dispatcher.getTotalExecutionNanos() / 1e9);
+			gauge(sb, "mastodon_listener_max_latency_seconds", "The longest time from submitting an event to its end.", "",
+			      dispatcher.getMaxLatencyNanos() / 1e9);
+
+			//the progress stores (re)make their outputs on every arrived lineage
+			header(sb, "mastodon_progress_renders_total", "counter", "Outputs (re)made by the progress stores, by dataset.");
+			final Map<String,ProgressStore> stores = new TreeMap<>();
+			datasets.getAll().forEach( ds -> { if (ds.progressStore != null) stores.put(ds.name, ds.progressStore); } );
+			stores.forEach( (ds,ps) -> sample(sb, "mastodon_progress_renders_total",
+			                                  ServerMetrics.datasetLabel(ds), ps.getRendersCount()) );
+			header(sb, "mastodon_progress_render_seconds_total", "counter", "Time spent (re)making the outputs of the progress stores.");
+			stores.forEach( (ds,ps) -> sample(sb, "mastodon_progress_render_seconds_total",
+			                                  ServerMetrics.datasetLabel(ds), ps.getTotalRenderNanos() / 1e9) );
+			header(sb, "mastodon_progress_render_max_seconds", "gauge", "The longest (re)making of the outputs of the progress stores.");
+			stores.forEach( (ds,ps) -> sample(sb, "mastodon_progress_render_max_seconds",
+			                                  ServerMetrics.datasetLabel(ds), ps.getMaxRenderNanos() / 1e9) );
+
+			//the server itself
+			final Undertow s = server;
+			if (s != null)
+			{
+				final ConnectorStatistics cs = s.getListenerInfo().get(0).getConnectorStatistics();
+				if (cs != null)
+				{
+					gauge(sb, "mastodon_http_open_connections", "Connections open right now.", "", cs.getActiveConnections());
+					gauge(sb, "mastodon_http_max_open_connections", "The most connections open at once.", "", cs.getMaxActiveConnections());
+				}
+
+				final XnioWorkerMXBean worker = s.getWorker().getMXBean();
+				header(sb, "mastodon_worker_threads", "gauge", "Threads of the worker pool of the server.");
+				sample(sb, "mastodon_worker_threads", "state=\"busy\"", worker.getBusyWorkerThreadCount());
+				sample(sb, "mastodon_worker_threads", "state=\"all\"",  worker.getWorkerPoolSize());
+				sample(sb, "mastodon_worker_threads", "state=\"max\"",  worker.getMaxWorkerPoolSize());
+				gauge(sb, "mastodon_worker_queue_size", "Tasks waiting for a thread of the worker pool.", "", worker.getWorkerQueueSize());
+			}
+
+			exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; version=0.0.4");
+			exchange.getResponseSender().send(sb.toString());
+		};
 	}
 
 
@@ -124,10 +348,6 @@ public class DatasetServer
 	HttpHandler addDatasetHandler(final boolean prefixWithSecret)
 	{
 		return new HttpHandler() {
-			DatasetServer myDS; //needed for createAttachedProgressStore() below
-			HttpHandler setDS(final DatasetServer ds)
-			{ myDS = ds; return this; }
-
 			@Override
 			public void handleRequest(HttpServerExchange exchange)
 			{
@@ -135,7 +355,8 @@ public class DatasetServer
 				if (datasetStr == null) { respondERROR(exchange); return; }
 
 				if (prefixWithSecret) datasetStr = java.util.UUID.randomUUID().toString() +'-'+ datasetStr;
-				if (datasetStr.equals("add") || datasetStr.equals("addSecret") || datasetStr.equals("remove"))
+				if (datasetStr.equals("add") || datasetStr.equals("addSecret") || datasetStr.equals("remove")
+				    || datasetStr.equals("status") || datasetStr.equals("metrics"))
 				{
 					//forbidden folder names
 					System.out.println("Refused to create a dataset of the name "+datasetStr);
@@ -156,15 +377,21 @@ public class DatasetServer
 				}
 
 				//HTTP stuff
-				requestsRooter.addPrefixPath("/"+datasetStr,
-					FileServer.createDatasetHttpHandler( datasetPath, createListenersForDataset(datasetStr) ));
-				createAttachedProgressStore(datasetPath,myDS,updateGnuplotPngStats,updateHtmlTableStats);
+				final DatasetsRegistry.Dataset ds = new DatasetsRegistry.Dataset(datasetStr, datasetPath, listeners);
+				if (!datasets.register(ds))
+				{
+					//someone else has just registered the same dataset
+					System.out.println("Refused to create a dataset handler for files in "+datasetPath);
+					respondERROR(exchange);
+					return;
+				}
+				warmUpDataset(ds);
 
 				System.out.println("Created a dataset handler for files in "+datasetPath);
 				exchange.getResponseSender().send(datasetStr);
 				//respondOK(exchange);
 			}
-		}.setDS(this);
+		};
 	}
 
 	HttpHandler removeDatasetHandler()
@@ -176,14 +403,29 @@ public class DatasetServer
 				//which folder shall be removed
 				final Path datasetPath = datasetsRootFolder.resolve(datasetStr);
 
+				//HTTP stuff: stop serving the dataset first, only one of concurrent removals succeeds here
+				final DatasetsRegistry.Dataset ds = datasets.unregister(datasetStr);
+				if (ds != null)
+				{
+					ds.snapshotListing.close();
+					ds.snapshotRebuilder.close();
+				}
+
 				//filesystem stuff
-				if (!datasetPath.toFile().exists())
+				if (ds == null || !datasetPath.toFile().exists())
 				{
 					//the folder does not exist
 					System.out.println("Refused to remove a dataset handler for files in "+datasetPath);
 					respondERROR(exchange);
 					return;
 				}
+				if (ds.progressStore != null)
+				{
+					ds.progressStore.detachFromThisServer(this);
+					ds.progressStore.stopRendering();
+				}
+				listeners.getEventDispatcher().removeDataset(datasetStr);
+				metrics.removeDataset(datasetStr);
 
 				// delete recursively (with counting): create a stream
 				Stream<Path> files = Files.walk(datasetPath);
@@ -208,10 +450,6 @@ public class DatasetServer
 				// close the stream
 				files.close();
 
-				//HTTP stuff
-				removeListenersForDataset(datasetStr);
-				requestsRooter.removePrefixPath("/"+datasetStr);
-
 				System.out.println("Removed a dataset handler and "+DAC.foldersCnt+" folders and "+DAC.filesCnt+" files in "+datasetPath);
 				respondOK(exchange);
 		};
@@ -260,6 +498,10 @@ public class DatasetServer
 				writeLine("Listings:");
 				writeLine("---------");
 				writeLine("/\t-- accessing root folder of the server prints this help");
+				writeLine("/status\t-- reports READY or WARMING, and then how many DATASETs are in which warm-up state");
+				writeLine("       \t-- DATASETs are served also while WARMING, their status pages may be incomplete then");
+				writeLine("/metrics\t-- counters and histograms of the requests, the listeners and the server");
+				writeLine("        \t-- in the Prometheus text format, to be scraped periodically");
 
 				writeLine(newLine+"Dataset management:");
 				writeLine(        "-------------------");
@@ -274,6 +516,10 @@ public class DatasetServer
 				writeLine(newLine+"Dataset operations:");
 				writeLine(        "-------------------");
 				writeLine("/DATASET\t-- lists operations available for the DATASET");
+				writeLine("/DATASET/status\t-- reports the warm-up state of the DATASET: WAITING, WARMING, READY or FAILED");
+				writeLine("/DATASET/progress\t-- progress of the DATASET's users as JSON: the latest progress, contributions");
+				writeLine("                 \t-- and rates per hour in time buckets, and a leaderboard; optional parameters:");
+				writeLine("                 \t-- user=NAME (repeatable), since=TIME, until=TIME, bucket=SECONDS (3600 by default)");
 
 				writeLine(newLine+"Details:");
 				writeLine(        "--------");
@@ -294,49 +540,82 @@ public class DatasetServer
 
 
 	// --------------------- listeners management ---------------------
-	public final ServerListeners listeners = new ServerListeners();
+	/** all datasets currently served */
+	final DatasetsRegistry datasets = new DatasetsRegistry();
 
-	private
-	DatasetListeners createListenersForDataset(final String dataset)
+	public final ServerListeners listeners = new ServerListeners(datasets, new EventDispatcher());
+
+	/** returns the dataset, or null if no such dataset is known */
+	public DatasetsRegistry.Dataset getDataset(final String dataset)
+	{ return datasets.get(dataset); }
+
+	/** returns the index of snapshots of the given dataset, or null if no such dataset is known */
+	public
+	SnapshotIndex getSnapshotIndex(final String dataset)
 	{
-		final DatasetListeners dsL = new DatasetListeners(dataset,listeners);
-		listeners.datasetListeners.put(dataset,dsL);
-		return dsL;
+		final DatasetsRegistry.Dataset ds = datasets.get(dataset);
+		return ds != null ? ds.snapshotIndex : null;
 	}
 
-	private
-	void removeListenersForDataset(final String dataset)
+	/** returns the record of the given snapshot file either from the index or,
+	    if it is not indexed yet, by reading out the file (and indexing it then) */
+	SnapshotIndex.Record describeSnapshotFile(final SnapshotIndex index, final Path file)
+	throws IOException
 	{
-		listeners.datasetListeners.remove(dataset);
+		SnapshotIndex.Record rec = index.getValid(file);
+		if (rec != null) return rec;
+
+		//not indexed yet (e.g., uploaded before the index existed), parse it once
+		final LineageDelta delta = LineageDelta.readHeader(file);
+		if (delta != null)
+		{
+			rec = new SnapshotIndex.Record(file.getFileName().toString(), Files.size(file), SnapshotIndex.mtimeOf(file),
+			          delta.spots, delta.links, delta.hash, delta.baseHash);
+			index.put(rec);
+			return rec;
+		}
+
+		//snapshots with a header describe themselves
+		final SnapshotHeader header = LineageFiles.readSnapshotHeader(file);
+		if (header != null)
+		{
+			rec = new SnapshotIndex.Record(file.getFileName().toString(), Files.size(file), SnapshotIndex.mtimeOf(file),
+			          header.spots, header.links, SnapshotIndex.hashOfFile(file));
+			index.put(rec);
+			return rec;
+		}
+
+		final Model model = new Model(); //aux model
+		LineageFiles.loadLineageFileIntoModel(file,model);
+		rec = new SnapshotIndex.Record(file.getFileName().toString(), Files.size(file), SnapshotIndex.mtimeOf(file),
+		          model.getGraph().vertices().size(), model.getGraph().edges().size(),
+		          SnapshotIndex.hashOfFile(file));
+		index.put(rec);
+		return rec;
 	}
 
 	public
 	void replayLineageArrivedOnDataset(DatasetListeners.LineageArrived replayListeners, final String onThisDataset)
 	{
-		final Model model = new Model(); //aux model
 		final Path dsPath = datasetsRootFolder.resolve(onThisDataset);
-		try {
-			LineageFiles.listLineageFiles(dsPath).forEach( f -> {
+		SnapshotIndex index = getSnapshotIndex(onThisDataset);
+		if (index == null) index = new SnapshotIndex(dsPath);
+		final SnapshotIndex dsIndex = index;
+
+		try (Stream<Path> files = LineageFiles.listLineageFiles(dsPath)) {
+			files.forEach( f -> {
+				final SnapshotIndex.Record rec;
 				try {
-					LineageFiles.loadLineageFileIntoModel(f,model);
+					rec = describeSnapshotFile(dsIndex,f);
 				} catch (IOException e) {
 					System.out.println("This is very surprising on file "+f+", should not happen:");
 					e.printStackTrace();
 					return; //skip over the rest of this block
 				}
 
-				//read out the date from the discovered file
 				final String filename = f.getFileName().toString();
-				final String date = LineageFiles.dateOfLineageFile(filename);
-				LocalDateTime lDT = LocalDateTime.of(
-						Integer.parseInt(date.substring(0,4)),
-						Integer.parseInt(date.substring(5,7)),
-						Integer.parseInt(date.substring(8,10)),
-						Integer.parseInt(date.substring(12,14)),
-						Integer.parseInt(date.substring(15,17)),
-						Integer.parseInt(date.substring(18,20)) );
-				replayListeners.action(lDT, LineageFiles.authorOfLineageFile(filename),
-						model.getGraph().vertices().size(), model.getGraph().edges().size());
+				replayListeners.action(LineageFiles.dateTimeOfLineageFile(filename),
+						rec.author, rec.spots, rec.links);
 			});
 		} catch (IOException e) {
 			System.out.println("Path "+dsPath+" is most likely not accessible.");
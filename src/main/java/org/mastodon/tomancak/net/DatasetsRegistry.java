@@ -0,0 +1,169 @@
+package org.mastodon.tomancak.net;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.undertow.Handlers;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+import org.mastodon.tomancak.monitors.ProgressQuery;
+import org.mastodon.tomancak.monitors.ProgressStore;
+
+/** Thread-safe registry of the datasets of one server: it maps every dataset
+    to its HttpHandler, its listeners, its index of snapshots and its ProgressStore.
+    Datasets are registered and unregistered atomically, lookups never block. */
+public class DatasetsRegistry
+{
+	/** everything the server keeps for one dataset */
+	public static class Dataset
+	{
+		public final String name;
+		public final Path folder;
+		public final DatasetListeners listeners;
+		public final SnapshotIndex snapshotIndex;
+		public final SnapshotListing snapshotListing;
+		public final SnapshotRebuilder snapshotRebuilder;
+		final HttpHandler handler;
+
+		/** set once the ProgressStore is created, may be null till then */
+		volatile ProgressStore progressStore = null;
+		volatile DatasetServer.WarmUpState warmUpState = DatasetServer.WarmUpState.WAITING;
+
+		Dataset(final String name, final Path folder, final ServerListeners serverListeners)
+		{
+			this.name = name;
+			this.folder = folder;
+			this.listeners = new DatasetListeners(name, serverListeners);
+			this.snapshotIndex = new SnapshotIndex(folder);
+			this.snapshotListing = new SnapshotListing(folder);
+			this.snapshotRebuilder = new SnapshotRebuilder(folder, snapshotIndex);
+			this.handler = Handlers.path( FileServer.createDatasetHttpHandler(folder, listeners, snapshotIndex,
+			                                                                  snapshotListing, snapshotRebuilder) )
+			                       .addPrefixPath("/progress", progressQueryHandler())
+			                       .addExactPath("/status", exchange ->
+			                           exchange.getResponseSender().send(warmUpState+"\n") );
+		}
+
+		/** answers (in JSON) the progress query given in the parameters 'user' (repeatable),
+		    'since', 'until' and 'bucket' (in seconds), from the ProgressStore of this dataset */
+		HttpHandler progressQueryHandler()
+		{
+			return new HttpHandler() {
+				@Override
+				public void handleRequest(HttpServerExchange exchange)
+				{
+					//the ProgressStore may be busy rendering, and we would wait for it
+					if (exchange.isInIoThread())
+					{
+						exchange.dispatch(this);
+						return;
+					}
+
+					final ProgressStore ps = progressStore;
+					if (ps == null)
+					{
+						exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+						exchange.getResponseSender().send("ERROR: the dataset is warming up, try again later");
+						return;
+					}
+
+					final Map<String,Deque<String>> params = exchange.getQueryParameters();
+					final String answer;
+					try {
+						final ProgressQuery query = new ProgressQuery(
+							params.containsKey("user") ? params.get("user") : null,
+							params.containsKey("since") ? SnapshotListing.parseTimestamp(params.get("since").getFirst()) : null,
+							params.containsKey("until") ? SnapshotListing.parseTimestamp(params.get("until").getFirst()) : null,
+							params.containsKey("bucket") ? Long.parseLong(params.get("bucket").getFirst()) : ProgressQuery.defaultBucketSeconds);
+						answer = ps.queryAsJson(query);
+					} catch (RuntimeException e) {
+						exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+						exchange.getResponseSender().send("ERROR: cannot answer the query: "+e.getMessage());
+						return;
+					}
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+					exchange.getResponseSender().send(answer);
+				}
+			};
+		}
+
+		public ProgressStore getProgressStore()
+		{ return progressStore; }
+
+		public DatasetServer.WarmUpState getWarmUpState()
+		{ return warmUpState; }
+	}
+
+	private final ConcurrentMap<String, Dataset> datasets = new ConcurrentHashMap<>(50);
+
+	/** returns the dataset, or null if no such dataset is registered */
+	public Dataset get(final String name)
+	{
+		return name == null ? null : datasets.get(name);
+	}
+
+	/** returns false if a dataset of the same name is registered already */
+	boolean register(final Dataset dataset)
+	{
+		return datasets.putIfAbsent(dataset.name, dataset) == null;
+	}
+
+	/** returns the removed dataset, or null if no such dataset was registered
+	    (and so only one of concurrent callers gets the dataset) */
+	Dataset unregister(final String name)
+	{
+		return datasets.remove(name);
+	}
+
+	/** returns a snapshot (copy) of the currently registered datasets */
+	public Collection<Dataset> getAll()
+	{
+		return new ArrayList<>(datasets.values());
+	}
+
+
+	// --------------------- routing ---------------------
+	/** returns a handler that forwards every /DATASET/rest request to the handler
+	    of the DATASET (with relative path /rest), or responds 404 if there is no
+	    such dataset; the lookup is lock-free and so the routing is never blocked
+	    by datasets being added or removed */
+	HttpHandler createRoutingHandler()
+	{
+		return new HttpHandler() {
+			@Override
+			public void handleRequest(HttpServerExchange exchange) throws Exception
+			{
+				final String path = exchange.getRelativePath();
+				if (path.length() <= 1)
+				{
+					exchange.setStatusCode(StatusCodes.NOT_FOUND);
+					exchange.endExchange();
+					return;
+				}
+
+				final int nextSlashPos = path.indexOf('/',1);
+				final String datasetStr = nextSlashPos < 0 ? path.substring(1) : path.substring(1,nextSlashPos);
+
+				final Dataset ds = get(datasetStr);
+				if (ds == null)
+				{
+					exchange.setStatusCode(StatusCodes.NOT_FOUND);
+					exchange.endExchange();
+					return;
+				}
+
+				exchange.setRelativePath(nextSlashPos < 0 ? "" : path.substring(nextSlashPos));
+				exchange.setResolvedPath(exchange.getResolvedPath() + "/" + datasetStr);
+				ds.handler.handleRequest(exchange);
+			}
+		};
+	}
+}
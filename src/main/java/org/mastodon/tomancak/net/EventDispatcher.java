@@ -0,0 +1,291 @@
+package org.mastodon.tomancak.net;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Executes notifications of listeners on a shared, bounded pool of threads.
+    Notifications of one dataset are executed one after another in the order
+    in which they were submitted, notifications of different datasets may run
+    in parallel. Every dataset has a bounded queue of pending notifications,
+    the OverflowPolicy decides what happens when the queue is full. */
+public class EventDispatcher
+{
+	/** what to do when a new notification arrives to a full queue */
+	public enum OverflowPolicy
+	{
+		/** the submitter waits until there is a free space in the queue */
+		BLOCK,
+		/** the new notification is discarded */
+		DROP_NEWEST,
+		/** the oldest pending notification is discarded to make space for the new one */
+		DROP_OLDEST
+	}
+
+	public static final int defaultThreads = 4;
+	public static final int defaultQueueCapacity = 1024;
+
+	public EventDispatcher()
+	{
+		this(defaultThreads, defaultQueueCapacity, OverflowPolicy.BLOCK);
+	}
+
+	public EventDispatcher(final int threads, final int queueCapacity, final OverflowPolicy policy)
+	{
+		if (threads < 1 || queueCapacity < 1)
+			throw new IllegalArgumentException("Need at least one thread and queue capacity of at least one.");
+
+		this.queueCapacity = queueCapacity;
+		this.policy = policy;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(), new ThreadFactory() {
+				final AtomicInteger cnt = new AtomicInteger(0);
+				@Override
+				public Thread newThread(final Runnable r)
+				{
+					final Thread t = new Thread(r, "listeners-dispatcher-"+cnt.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	final int queueCapacity;
+	final OverflowPolicy policy;
+	private final ExecutorService executor;
+
+	/** the shared dispatcher for listeners that are not attached to any server */
+	static synchronized
+	EventDispatcher getDefaultDispatcher()
+	{
+		if (defaultDispatcher == null) defaultDispatcher = new EventDispatcher();
+		return defaultDispatcher;
+	}
+	private static EventDispatcher defaultDispatcher = null;
+
+
+	// --------------------- dispatching ---------------------
+	/** how many notifications of one dataset are executed before giving chance to other datasets */
+	static final int eventsPerTurn = 32;
+
+	private static class Event
+	{
+		final Runnable notification;
+		final long submittedAt = System.nanoTime();
+		Event(final Runnable notification) { this.notification = notification; }
+	}
+
+	/** pending notifications of one dataset */
+	private class DatasetQueue implements Runnable
+	{
+		final Deque<Event> events = new ArrayDeque<>();
+		/** is there a pool thread working (or about to work) on this queue? */
+		boolean isScheduled = false;
+
+		/** drains (some of) the pending notifications, on a pool thread */
+		@Override
+		public void run()
+		{
+			if (drain(eventsPerTurn)) return;
+
+			//gives other datasets a chance, we're still scheduled
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException ex) {
+				//shutting down, there will be no next turn: the rest is executed right here
+				drain(Integer.MAX_VALUE);
+			}
+		}
+
+		/** executes at most 'maxEvents' pending notifications, returns true
+		    if the queue got empty (and is thus no longer scheduled) */
+		boolean drain(final int maxEvents)
+		{
+			for (int i = 0; i < maxEvents; ++i)
+			{
+				final Event e;
+				synchronized (this)
+				{
+					e = events.pollFirst();
+					if (e == null)
+					{
+						isScheduled = false;
+						return true;
+					}
+					notifyAll(); //wake up submitters that might be blocked on the full queue
+				}
+				execute(e);
+			}
+			return false;
+		}
+
+		/** discards all pending notifications (and counts them as dropped) */
+		synchronized
+		void dropAll()
+		{
+			droppedCnt.add(events.size());
+			events.clear();
+			isScheduled = false;
+			notifyAll();
+		}
+	}
+
+	private final Map<String, DatasetQueue> queues = new ConcurrentHashMap<>(50);
+
+	/** submits the notification to be executed after all previously submitted
+	    notifications of the same dataset are over */
+	public void dispatch(final String dataset, final Runnable notification)
+	{
+		dispatch(dataset, notification, policy);
+	}
+
+	/** the same as dispatch() but never blocks the caller (which is important
+	    for callers on the IO threads), the notification is rather dropped */
+	public void dispatchWithoutBlocking(final String dataset, final Runnable notification)
+	{
+		dispatch(dataset, notification, policy == OverflowPolicy.BLOCK ? OverflowPolicy.DROP_NEWEST : policy);
+	}
+
+	private void dispatch(final String dataset, final Runnable notification, final OverflowPolicy policy)
+	{
+		if (executor.isShutdown())
+		{
+			droppedCnt.increment();
+			return;
+		}
+
+		final DatasetQueue q = queues.computeIfAbsent(dataset, k -> new DatasetQueue());
+		boolean shallSchedule = false;
+
+		synchronized (q)
+		{
+			if (q.events.size() >= queueCapacity)
+			{
+				switch (policy)
+				{
+				case DROP_NEWEST:
+					droppedCnt.increment();
+					return;
+				case DROP_OLDEST:
+					q.events.pollFirst();
+					droppedCnt.increment();
+					break;
+				case BLOCK:
+					try {
+						while (q.events.size() >= queueCapacity) q.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						droppedCnt.increment();
+						return;
+					}
+				}
+			}
+
+			q.events.addLast(new Event(notification));
+			submittedCnt.increment();
+			if (!q.isScheduled)
+			{
+				q.isScheduled = true;
+				shallSchedule = true;
+			}
+		}
+
+		if (shallSchedule)
+		{
+			try {
+				executor.execute(q);
+			} catch (RejectedExecutionException e) {
+				//shut down meanwhile, the caller (e.g. an upload handler) is not bothered with it
+				q.dropAll();
+			}
+		}
+	}
+
+	private void execute(final Event e)
+	{
+		final long startedAt = System.nanoTime();
+		try {
+			e.notification.run();
+		} catch (RuntimeException ex) {
+			System.out.println("A listener has failed:");
+			ex.printStackTrace();
+		}
+		final long finishedAt = System.nanoTime();
+
+		executedCnt.increment();
+		waitingNanos.add(startedAt - e.submittedAt);
+		executionNanos.add(finishedAt - startedAt);
+		maxLatencyNanos.accumulateAndGet(finishedAt - e.submittedAt, Math::max);
+	}
+
+	/** forgets the queue of the given dataset, notifications that are still pending are executed nevertheless */
+	public void removeDataset(final String dataset)
+	{
+		queues.remove(dataset);
+	}
+
+	/** stops accepting new notifications (they are dropped and counted as such),
+	    the pending ones are executed nevertheless */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+
+	// --------------------- statistics ---------------------
+	private final LongAdder submittedCnt = new LongAdder();
+	private final LongAdder executedCnt = new LongAdder();
+	private final LongAdder droppedCnt = new LongAdder();
+	private final LongAdder waitingNanos = new LongAdder();
+	private final LongAdder executionNanos = new LongAdder();
+	private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+
+	/** returns the number of currently pending notifications over all datasets */
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for (DatasetQueue q : queues.values())
+			synchronized (q) { depth += q.events.size(); }
+		return depth;
+	}
+
+	/** returns the number of currently pending notifications of the given dataset */
+	public int getQueueDepth(final String dataset)
+	{
+		final DatasetQueue q = queues.get(dataset);
+		if (q == null) return 0;
+		synchronized (q) { return q.events.size(); }
+	}
+
+	public long getSubmittedCount() { return submittedCnt.sum(); }
+	public long getExecutedCount()  { return executedCnt.sum(); }
+	public long getDroppedCount()   { return droppedCnt.sum(); }
+
+	/** returns the total time the executed notifications have spent waiting in the queues */
+	public long getTotalWaitingNanos()   { return waitingNanos.sum(); }
+	/** returns the total time the executed notifications have spent executing */
+	public long getTotalExecutionNanos() { return executionNanos.sum(); }
+	/** returns the longest observed time from submission till the end of execution */
+	public long getMaxLatencyNanos()     { return maxLatencyNanos.get(); }
+
+	@Override
+	public String toString()
+	{
+		final long executed = Math.max(getExecutedCount(),1);
+		return String.format("pending %d, submitted %d, executed %d, dropped %d,"
+				+ " avg. waiting %.3f ms, avg. execution %.3f ms, max. latency %.3f ms",
+				getQueueDepth(), getSubmittedCount(), getExecutedCount(), getDroppedCount(),
+				getTotalWaitingNanos()/executed/1e6, getTotalExecutionNanos()/executed/1e6,
+				getMaxLatencyNanos()/1e6);
+	}
+}
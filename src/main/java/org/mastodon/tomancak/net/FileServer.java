@@ -1,38 +1,67 @@
 package org.mastodon.tomancak.net;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
 import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import io.undertow.Handlers;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.resource.PathResourceManager;
+import io.undertow.util.ETag;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+import org.xnio.XnioExecutor;
 
+import org.mastodon.tomancak.util.LineageDelta;
 import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.SnapshotHeader;
 
 public class FileServer
 {
 	// --------------------- given dataset handling chain ---------------------
 	/** intentionally private to prevent creating this object without an associated HttpHandler,
 	    use createDatasetHttpHandler() instead */
-	private FileServer(final Path filesRootFolder, final DatasetListeners datasetListeners)
+	private FileServer(final Path filesRootFolder, final DatasetListeners datasetListeners,
+	                   final SnapshotIndex snapshotIndex, final SnapshotListing snapshotListing,
+	                   final SnapshotRebuilder rebuilder)
 	{
 		this.filesRootFolder = filesRootFolder;
 		this.listeners       = datasetListeners;
+		this.snapshotIndex   = snapshotIndex;
+		this.snapshotListing = snapshotListing;
+		this.uploadEngine    = new UploadEngine(filesRootFolder);
+		this.chunkedUploads  = new ChunkedUploads(uploadEngine);
+		this.rebuilder       = rebuilder;
 	}
 
 	HttpHandler createHttpHandler()
 	{
 		return Handlers.path()
 		  .addPrefixPath("/put",   fileUploadHandler())
+		  .addPrefixPath("/putDelta", deltaUploadHandler())
+		  .addPrefixPath("/upload", chunkedUploadHandler())
 		  .addPrefixPath("/list",  fileSkinnyListingHandler())
+		  .addPrefixPath("/watch", arrivalsWatchingHandler())
+		  .addPrefixPath("/bundle", bundleDownloadHandler())
 		  .addPrefixPath("/files", filePrettyListingHandler())
 		  .addExactPath( "/",      helpListingHandler());
 	}
@@ -42,13 +71,48 @@ public class FileServer
 	public static
 	HttpHandler createDatasetHttpHandler(final Path filesRootFolder, final DatasetListeners newDsListeners)
 	{
-		return new FileServer(filesRootFolder,newDsListeners).createHttpHandler();
+		return createDatasetHttpHandler(filesRootFolder,newDsListeners,new SnapshotIndex(filesRootFolder));
+	}
+
+	/** the same as createDatasetHttpHandler() above, except that the index of snapshots
+	    is given explicitly to be able to share it with others who serve the same folder */
+	public static
+	HttpHandler createDatasetHttpHandler(final Path filesRootFolder, final DatasetListeners newDsListeners,
+	                                     final SnapshotIndex snapshotIndex)
+	{
+		return createDatasetHttpHandler(filesRootFolder,newDsListeners,snapshotIndex,new SnapshotListing(filesRootFolder));
+	}
+
+	/** the same as createDatasetHttpHandler() above, except that also the listing
+	    of snapshots is given explicitly (to be able to close it when not needed) */
+	public static
+	HttpHandler createDatasetHttpHandler(final Path filesRootFolder, final DatasetListeners newDsListeners,
+	                                     final SnapshotIndex snapshotIndex, final SnapshotListing snapshotListing)
+	{
+		return createDatasetHttpHandler(filesRootFolder,newDsListeners,snapshotIndex,snapshotListing,
+		                                new SnapshotRebuilder(filesRootFolder,snapshotIndex));
+	}
+
+	/** the same as createDatasetHttpHandler() above, except that also the rebuilder
+	    of delta snapshots is given explicitly (to be able to close it when not needed) */
+	public static
+	HttpHandler createDatasetHttpHandler(final Path filesRootFolder, final DatasetListeners newDsListeners,
+	                                     final SnapshotIndex snapshotIndex, final SnapshotListing snapshotListing,
+	                                     final SnapshotRebuilder rebuilder)
+	{
+		return new FileServer(filesRootFolder,newDsListeners,snapshotIndex,snapshotListing,rebuilder).createHttpHandler();
 	}
 
 
 	// --------------------- files management ---------------------
 	public final DatasetListeners listeners;
 	final Path filesRootFolder;
+	final SnapshotIndex snapshotIndex;
+	final SnapshotListing snapshotListing;
+	final ArrivalLog arrivals = new ArrivalLog();
+	final UploadEngine uploadEngine;
+	final ChunkedUploads chunkedUploads;
+	final SnapshotRebuilder rebuilder;
 
 	HttpHandler filePrettyListingHandler()
 	{
@@ -65,12 +129,58 @@ public class FileServer
 						listeners.notifyFileRequestedListeners(file);
 				}
 
+				//delta snapshots are served as the full snapshots they represent
+				String file = exchange.getRelativePath();
+				if (file.length() > 0) file = file.substring(1);
+				final SnapshotIndex.Record rec = snapshotIndex.get(file);
+				if (rec != null && rec.isDelta())
+				{
+					exchange.dispatch( () -> serveDeltaAsFull(exchange, rec) );
+					return;
+				}
+
 				//in any case, forward the request further
 				exchange.dispatch( fileBrowserHandler );
 			}
 
+			void serveDeltaAsFull(final HttpServerExchange exchange, final SnapshotIndex.Record rec)
+			{
+				try {
+					//NB: the rebuilt snapshot is served with the hash of its own content (not of the
+					//uploader's file), the resource handler takes care of If-None-Match then
+					final Path full = rebuilder.materialize(rec);
+					exchange.setRelativePath("/" + filesRootFolder.relativize(full).toString().replace('\\','/'));
+					fileBrowserHandler.handleRequest(exchange);
+				} catch (Exception e) {
+					System.out.println("Failed rebuilding: " + filesRootFolder.getFileName()+"/"+rec.filename);
+					e.printStackTrace();
+					exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+					exchange.getResponseSender().send("ERROR: "+e.getMessage());
+				}
+			}
+
+			//NB: the resource handler takes care of If-None-Match and Range requests itself,
+			//we only need to give it strong ETags of the snapshot files (other files get none),
+			//rebuilt snapshots have their content hashes stored next to them
 			final HttpHandler fileBrowserHandler
-			  = Handlers.resource(new PathResourceManager(filesRootFolder))
+			  = Handlers.resource(PathResourceManager.builder()
+			                        .setBase(filesRootFolder)
+			                        .setETagFunction(path -> {
+			                            if (path.getParent() != null && path.getParent().getFileName() != null
+			                                && path.getParent().getFileName().toString().equals(SnapshotRebuilder.rebuiltFolderName))
+			                            {
+			                                final String name = path.getFileName().toString();
+			                                if (!name.endsWith(".mstdn")) return null;
+			                                try {
+			                                    final String contentHash = rebuilder.contentHashOf(name.substring(0, name.length()-6));
+			                                    return contentHash != null ? new ETag(false, contentHash) : null;
+			                                } catch (IOException e) {
+			                                    return null;
+			                                }
+			                            }
+			                            final SnapshotIndex.Record rec = snapshotIndex.getValid(path);
+			                            return rec != null ? new ETag(false, rec.hash) : null; })
+			                        .build())
 			            .setDirectoryListingEnabled(true);
 		};
 	}
@@ -81,11 +191,57 @@ public class FileServer
 			@Override
 			public void handleRequest(HttpServerExchange exchange) throws Exception
 			{
-				final StringBuilder sb = new StringBuilder();
-				LineageFiles.listLineageFiles(filesRootFolder).forEach(p -> {
-					sb.append(p.getFileName().toString());
-					sb.append('\n');
-				});
+				//re-reading the folder blocks, which is not allowed on the IO thread
+				if (exchange.isInIoThread() && !snapshotListing.isValid())
+				{
+					exchange.dispatch(this);
+					return;
+				}
+
+				final Map<String,Deque<String>> params = exchange.getQueryParameters();
+				final List<SnapshotListing.Entry> all;
+				final int offset, limit;
+				try {
+					all    = filteredListing(params);
+					offset = params.containsKey("offset") ? Integer.parseInt(params.get("offset").getFirst()) : 0;
+					limit  = params.containsKey("limit")  ? Integer.parseInt(params.get("limit").getFirst()) : Integer.MAX_VALUE;
+				} catch (RuntimeException e) {
+					exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+					exchange.getResponseSender().send("ERROR: cannot parse parameters: "+e.getMessage());
+					return;
+				}
+				final boolean asJson = params.containsKey("format") && params.get("format").getFirst().equals("json");
+
+				final int from = Math.min(Math.max(offset,0), all.size());
+				final int to = (int)Math.min((long)from + Math.max(limit,0), all.size());
+				final List<SnapshotListing.Entry> page = all.subList(from, to);
+
+				final StringBuilder sb = new StringBuilder(64 * page.size() + 64);
+				if (asJson)
+				{
+					sb.append("{\"total\":").append(all.size())
+					  .append(",\"offset\":").append(from)
+					  .append(",\"files\":[");
+					for (int i = 0; i < page.size(); ++i)
+					{
+						final SnapshotListing.Entry e = page.get(i);
+						if (i > 0) sb.append(',');
+						sb.append("\n{\"name\":").append(SnapshotListing.jsonQuote(e.filename))
+						  .append(",\"author\":").append(SnapshotListing.jsonQuote(e.author))
+						  .append(",\"timestamp\":").append(e.timestamp)
+						  .append(",\"size\":").append(e.size).append('}');
+					}
+					sb.append("\n]}\n");
+					exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+				}
+				else
+				{
+					for (SnapshotListing.Entry e : page)
+					{
+						sb.append(e.filename);
+						sb.append('\n');
+					}
+				}
 				exchange.getResponseSender().send( sb.toString() );
 			}
 		};
@@ -125,44 +281,440 @@ public class FileServer
 				{
 					System.out.println("Going to complain...");
 					exchange.getResponseSender().send("You gave me no file data!");
+					return;
+				}
+				if (!UploadEngine.isSafeFilename(nameValue) || !LineageFiles.lineageFilePattern.test(nameValue))
+				{
+					System.out.println("Refused to store a file of the name "+nameValue);
+					exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+					exchange.getResponseSender().send("ERROR: not a snapshot filename");
+					return;
 				}
 
-				OutputStream fos
-				  = new BufferedOutputStream(
-				    new FileOutputStream(filesRootFolder.resolve(nameValue).toFile()) );
+				//the file becomes visible (under its name) only after it has fully arrived
+				final UploadEngine.Result stored;
+				try {
+					stored = uploadEngine.receive(exchange, nameValue);
+				} catch (IOException e) {
+					System.out.println("Failed storing: " + filesRootFolder.getFileName()+"/"+nameValue);
+					e.printStackTrace();
+					exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+					exchange.getResponseSender().send("ERROR: "+e.getMessage());
+					return;
+				}
+				snapshotArrived(nameValue, stored, Integer.parseInt(noOfSpots), Integer.parseInt(noOfLinks));
+			}
+		};
+	}
 
-				exchange.startBlocking();
-				exchange.getRequestReceiver().receivePartialBytes( (ex,bytes,flag) -> {
-					//System.out.println("found: "+bytes.length);
-					//System.out.println("flag : "+flag);
-					try { if (bytes.length > 0) fos.write(bytes); } catch (IOException e) {/*yes,empty*/}
-				} );
+	/** indexes the (full) snapshot that has just been stored and notifies everybody about it,
+	    'spots' and 'links' are what the client has told (used if the snapshot has no header) */
+	void snapshotArrived(final String nameValue, final UploadEngine.Result stored, int spots, int links)
+	{
+		//the snapshot's own header is more trustworthy than the query parameters
+		try {
+			final SnapshotHeader header = LineageFiles.readSnapshotHeader(stored.file);
+			if (header != null)
+			{
+				spots = header.spots;
+				links = header.links;
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot read header of: " + filesRootFolder.getFileName()+"/"+nameValue + ", " + e.getMessage());
+		}
+		System.out.println("Just stored: " + filesRootFolder.getFileName()+"/"+nameValue + " (" + spots + "," + links + ")");
+
+		//remember the metadata of the arrived file
+		snapshotIndex.put( new SnapshotIndex.Record(nameValue, stored.size, SnapshotIndex.mtimeOf(stored.file), spots, links, stored.hash) );
+		snapshotListing.invalidate();
+		arrivals.add(nameValue);
+
+		if (listeners != null)
+		{
+			//notify all listeners
+			listeners.notifyFileArrivedListeners(nameValue);
+			listeners.notifyLineageArrivedListeners(LineageFiles.dateTimeOfLineageFile(nameValue),
+			                                LineageFiles.authorOfLineageFile(nameValue),
+			                                spots, links);
+		}
+	}
+
+
+	/** the chunked (resumable) uploads, see ChunkedUploads:
+	    POST /upload?name=N&size=S&spots=..&links=..&chunk=C opens a session,
+	    PUT /upload/ID?offset=O sends one chunk, GET /upload/ID tells the state of the session,
+	    POST /upload/ID/commit finishes it and DELETE /upload/ID abandons it */
+	HttpHandler chunkedUploadHandler()
+	{
+		return new HttpHandler() {
+			@Override
+			public void handleRequest(HttpServerExchange exchange) throws Exception
+			{
+				//the chunks are written to the disk, which blocks
+				if (exchange.isInIoThread())
+				{
+					exchange.dispatch(this);
+					return;
+				}
+
+				final String[] path = exchange.getRelativePath().replaceAll("^/+|/+$","").split("/");
+				final String method = exchange.getRequestMethod().toString();
+				final Map<String,Deque<String>> params = exchange.getQueryParameters();
+				try {
+					if (path[0].isEmpty())
+					{
+						if (!method.equals("POST")) throw new IllegalArgumentException("a new session must be POSTed");
+						final Deque<String> _nameValue = params.get("name");
+						final String nameValue = _nameValue != null ? URLDecoder.decode(_nameValue.getFirst(),"UTF-8") : "fake_file";
+						if (!UploadEngine.isSafeFilename(nameValue) || !LineageFiles.lineageFilePattern.test(nameValue))
+						{
+							System.out.println("Refused to store a file of the name "+nameValue);
+							throw new IllegalArgumentException("not a snapshot filename");
+						}
+						if (!params.containsKey("size")) throw new IllegalArgumentException("missing size");
+						final ChunkedUploads.Session s = chunkedUploads.create(nameValue,
+							Long.parseLong(params.get("size").getFirst()),
+							params.containsKey("chunk") ? Integer.parseInt(params.get("chunk").getFirst()) : 0,
+							params.containsKey("spots") ? Integer.parseInt(params.get("spots").getFirst()) : 0,
+							params.containsKey("links") ? Integer.parseInt(params.get("links").getFirst()) : 0);
+						exchange.getResponseSender().send(s.describe());
+						return;
+					}
+
+					final boolean isCommit = path.length == 2 && path[1].equals("commit");
+					if (path.length > 2 || (path.length == 2 && !isCommit))
+						throw new IllegalArgumentException("unknown request");
+
+					final ChunkedUploads.Session s = chunkedUploads.get(path[0]);
+					if (s == null)
+					{
+						//the response of the commit got lost, and the client is asking again
+						if (isCommit && chunkedUploads.isRecentlyCommitted(path[0])) return;
+						exchange.setStatusCode(StatusCodes.NOT_FOUND);
+						exchange.getResponseSender().send("ERROR: no such upload session, it has expired or is over");
+						return;
+					}
+
+					if (isCommit)
+					{
+						if (!method.equals("POST")) throw new IllegalArgumentException("commit must be POSTed");
+						if (!s.isComplete())
+						{
+							exchange.setStatusCode(StatusCodes.CONFLICT);
+							exchange.getResponseSender().send(s.describe());
+							return;
+						}
+						final UploadEngine.Result stored = chunkedUploads.commit(s);
+						exchange.putAttachment(ServerMetrics.uploadedSize, stored.size);
+						snapshotArrived(s.filename, stored, s.spots, s.links);
+					}
+					else if (method.equals("PUT"))
+					{
+						if (!params.containsKey("offset")) throw new IllegalArgumentException("missing offset");
+						chunkedUploads.receiveChunk(s, Long.parseLong(params.get("offset").getFirst()), exchange);
+					}
+					else if (method.equals("GET"))
+					{
+						exchange.getResponseSender().send(s.describe());
+					}
+					else if (method.equals("DELETE"))
+					{
+						chunkedUploads.abort(s);
+						System.out.println("Abandoned upload of: " + filesRootFolder.getFileName()+"/"+s.filename);
+					}
+					else throw new IllegalArgumentException("unsupported method "+method);
+
+				} catch (IllegalStateException e) {
+					//the session got finished by a parallel request
+					exchange.setStatusCode(StatusCodes.CONFLICT);
+					exchange.getResponseSender().send("ERROR: "+e.getMessage());
+				} catch (IllegalArgumentException e) {
+					exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+					exchange.getResponseSender().send("ERROR: "+e.getMessage());
+				} catch (IOException e) {
+					System.out.println("Failed chunked upload in: " + filesRootFolder.getFileName()+", "+e.getMessage());
+					exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+					exchange.getResponseSender().send("ERROR: "+e.getMessage());
+				}
+			}
+		};
+	}
+
+
+	HttpHandler deltaUploadHandler()
+	{
+		return new HttpHandler() {
+			@Override
+			public void handleRequest(HttpServerExchange exchange) throws Exception
+			{
+				if (exchange.isInIoThread())
+				{
+					exchange.dispatch(this);
+					return;
+				}
+
+				final Map<String,Deque<String>> params = exchange.getQueryParameters();
+				final Deque<String> _nameValue = params.get("name");
+				final Deque<String> _baseValue = params.get("base");
+				final String nameValue = _nameValue != null ? URLDecoder.decode(_nameValue.getFirst(),"UTF-8") : "fake_file";
+				final String baseValue = _baseValue != null ? _baseValue.getFirst() : "";
+
+				if (!exchange.getRequestMethod().equalToString("POST"))
+				{
+					exchange.getResponseSender().send("You gave me no file data!");
+					return;
+				}
+				if (!UploadEngine.isSafeFilename(nameValue) || !LineageFiles.lineageFilePattern.test(nameValue))
+				{
+					System.out.println("Refused to store a delta of the name "+nameValue);
+					exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+					exchange.getResponseSender().send("ERROR: not a snapshot filename");
+					return;
+				}
 
-				fos.close();
-				System.out.println("Just stored: " + filesRootFolder.getFileName()+"/"+nameValue + " (" + noOfSpots + "," + noOfLinks + ")");
+				//the client shall send the full snapshot if we cannot rebuild from its base
+				if (snapshotIndex.getByHash(baseValue) == null)
+				{
+					exchange.setStatusCode(StatusCodes.CONFLICT);
+					exchange.getResponseSender().send("ERROR: unknown base snapshot");
+					return;
+				}
+
+				final UploadEngine.Result stored;
+				final LineageDelta delta;
+				try {
+					stored = uploadEngine.receive(exchange, nameValue);
+					delta = LineageDelta.readHeader(stored.file);
+					if (delta == null || !delta.baseHash.equals(baseValue))
+					{
+						Files.deleteIfExists(stored.file);
+						throw new IOException("not a delta of the announced base");
+					}
+				} catch (IOException e) {
+					System.out.println("Failed storing delta: " + filesRootFolder.getFileName()+"/"+nameValue);
+					e.printStackTrace();
+					exchange.setStatusCode(StatusCodes.INTERNAL_SERVER_ERROR);
+					exchange.getResponseSender().send("ERROR: "+e.getMessage());
+					return;
+				}
+				System.out.println("Just stored delta: " + filesRootFolder.getFileName()+"/"+nameValue
+					+ " (" + delta.spots + "," + delta.links + ", " + stored.size + " bytes)");
+
+				final SnapshotIndex.Record rec = new SnapshotIndex.Record(nameValue, stored.size,
+				                                     SnapshotIndex.mtimeOf(stored.file), delta.spots, delta.links, delta.hash, delta.baseHash);
+				snapshotIndex.put(rec);
+				snapshotListing.invalidate();
+				arrivals.add(nameValue);
+				if (rebuilder.deservesCheckpoint(rec)) rebuilder.materializeLater(rec);
 
 				if (listeners != null)
 				{
-					//read out the date from the arrived file
-					final String date = LineageFiles.dateOfLineageFile(nameValue);
-					LocalDateTime lDT = LocalDateTime.of(
-							Integer.parseInt(date.substring(0,4)),
-							Integer.parseInt(date.substring(5,7)),
-							Integer.parseInt(date.substring(8,10)),
-							Integer.parseInt(date.substring(12,14)),
-							Integer.parseInt(date.substring(15,17)),
-							Integer.parseInt(date.substring(18,20)) );
-
-					//notify all listeners
 					listeners.notifyFileArrivedListeners(nameValue);
-					listeners.notifyLineageArrivedListeners(lDT, LineageFiles.authorOfLineageFile(nameValue),
-					                                Integer.parseInt(noOfSpots), Integer.parseInt(noOfLinks));
+					listeners.notifyLineageArrivedListeners(LineageFiles.dateTimeOfLineageFile(nameValue),
+					                                LineageFiles.authorOfLineageFile(nameValue),
+					                                delta.spots, delta.links);
 				}
 			}
 		};
 	}
 
 
+	/** returns the snapshots that pass the filters given in the query parameters
+	    'author', 'since', 'until' and 'latestPerAuthor', throws RuntimeException
+	    if the parameters cannot be parsed */
+	List<SnapshotListing.Entry> filteredListing(final Map<String,Deque<String>> params)
+	throws IOException
+	{
+		final Set<String> authors = params.containsKey("author") ? new HashSet<>(params.get("author")) : null;
+		final Long since = params.containsKey("since") ? SnapshotListing.parseTimestamp(params.get("since").getFirst()) : null;
+		final Long until = params.containsKey("until") ? SnapshotListing.parseTimestamp(params.get("until").getFirst()) : null;
+		final boolean latestPerAuthor = params.containsKey("latestPerAuthor")
+			&& !params.get("latestPerAuthor").getFirst().equals("false");
+		return SnapshotListing.filter(snapshotListing.get(), authors, since, until, latestPerAuthor);
+	}
+
+
+	// --------------------- many files at once ---------------------
+	/** name of the first entry in every bundle, lists the content hashes of the bundled snapshots */
+	public static final String bundleManifestName = "bundle.properties";
+
+	/** streams the chosen snapshots as one zip file (made of uncompressed entries as snapshots
+	    are compressed already); snapshots are chosen either by their names given in the body
+	    of a POST request (one per line), or by the same filters as the /list accepts */
+	HttpHandler bundleDownloadHandler()
+	{
+		return new HttpHandler() {
+			@Override
+			public void handleRequest(HttpServerExchange exchange) throws Exception
+			{
+				//reading the disk blocks, which is not allowed on the IO thread
+				if (exchange.isInIoThread())
+				{
+					exchange.dispatch(this);
+					return;
+				}
+				exchange.startBlocking();
+
+				//which snapshots are wanted
+				final List<String> filenames = new ArrayList<>();
+				if (exchange.getRequestMethod().equalToString("POST"))
+				{
+					new BufferedReader(new InputStreamReader(exchange.getInputStream(), StandardCharsets.UTF_8))
+						.lines().map(String::trim).filter(l -> !l.isEmpty()).forEach(filenames::add);
+				}
+				else
+				{
+					try {
+						filteredListing(exchange.getQueryParameters()).forEach(e -> filenames.add(e.filename));
+					} catch (RuntimeException e) {
+						exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+						exchange.getResponseSender().send("ERROR: cannot parse parameters: "+e.getMessage());
+						return;
+					}
+				}
+
+				//where are they (and what are their hashes), delta snapshots are served as the full ones
+				final List<Path> files = new ArrayList<>(filenames.size());
+				final Properties manifest = new Properties();
+				for (String name : filenames)
+				{
+					final Path file = filesRootFolder.resolve(name);
+					if (!LineageFiles.lineageFilePattern.test(name) || name.contains("/") || name.contains("\\")
+					    || !Files.isRegularFile(file))
+					{
+						exchange.setStatusCode(StatusCodes.NOT_FOUND);
+						exchange.getResponseSender().send("ERROR: no such snapshot: "+name);
+						return;
+					}
+					final SnapshotIndex.Record rec = snapshotIndex.get(name);
+					if (rec != null && rec.isDelta())
+					{
+						files.add(rebuilder.materialize(rec));
+						manifest.setProperty(name, rebuilder.contentHashOf(rec.hash));
+					}
+					else
+					{
+						files.add(file);
+						final SnapshotIndex.Record validRec = snapshotIndex.getValid(file);
+						if (validRec != null) manifest.setProperty(name, validRec.hash);
+					}
+				}
+
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/zip");
+				try (ZipOutputStream zos = new ZipOutputStream(exchange.getOutputStream())) {
+					//NB: entries are "deflated" only formally, no need to know their CRCs in advance then
+					zos.setLevel(Deflater.NO_COMPRESSION);
+					zos.putNextEntry(new ZipEntry(bundleManifestName));
+					manifest.store(zos, "content hashes of the bundled snapshots");
+					zos.closeEntry();
+
+					for (int i = 0; i < files.size(); ++i)
+					{
+						zos.putNextEntry(new ZipEntry(filenames.get(i)));
+						Files.copy(files.get(i), zos);
+						zos.closeEntry();
+						if (listeners != null) listeners.notifyFileRequestedListeners(filenames.get(i));
+					}
+				}
+				System.out.println("Sent bundle of "+files.size()+" snapshots from "+filesRootFolder.getFileName());
+			}
+		};
+	}
+
+
+	// --------------------- waiting for new files ---------------------
+	/** the longest time a /watch request is held open */
+	public static final int watchMaxTimeout = 120;
+	public static final int watchDefaultTimeout = 30;
+
+	/** responds with the current cursor on the first line, followed by the names of files
+	    that arrived after the 'since' cursor, one per row; if none has arrived yet, the
+	    request is held open (without occupying any thread) until some file arrives or the
+	    timeout elapses, in which case only the (unchanged) cursor is sent */
+	HttpHandler arrivalsWatchingHandler()
+	{
+		return exchange -> {
+			final Map<String,Deque<String>> params = exchange.getQueryParameters();
+			final long since;
+			final int timeout;
+			try {
+				since = params.containsKey("since") ? Long.parseLong(params.get("since").getFirst()) : -1;
+				timeout = Math.max(0, Math.min(watchMaxTimeout, params.containsKey("timeout") ?
+					Integer.parseInt(params.get("timeout").getFirst()) : watchDefaultTimeout));
+			} catch (NumberFormatException e) {
+				exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+				exchange.getResponseSender().send("ERROR: cannot parse parameters: "+e.getMessage());
+				return;
+			}
+			//new client, tell it only from where to start
+			if (since == -1)
+			{
+				exchange.getResponseSender().send(arrivals.getCursor()+"\n");
+				return;
+			}
+
+			final WatchingExchange waiter = new WatchingExchange(exchange);
+			final List<String> arrived = arrivals.arrivedAfter(since, timeout > 0 ? waiter : null);
+			if (arrived == null)
+			{
+				//the client missed something and shall re-read the listing
+				exchange.setStatusCode(StatusCodes.GONE);
+				exchange.getResponseSender().send(arrivals.getCursor()+"\n");
+			}
+			else if (!arrived.isEmpty() || timeout == 0)
+			{
+				waiter.respond(since+arrived.size(), arrived);
+			}
+			else
+			{
+				//keep the exchange open after this method returns, the waiter finishes it later
+				exchange.dispatch(SameThreadExecutor.INSTANCE, () -> waiter.startTimeout(since, timeout));
+			}
+		};
+	}
+
+	/** one held open /watch request */
+	class WatchingExchange implements ArrivalLog.Waiter
+	{
+		final HttpServerExchange exchange;
+		final AtomicBoolean isResponded = new AtomicBoolean(false);
+		XnioExecutor.Key timeoutKey = null;
+
+		WatchingExchange(final HttpServerExchange exchange)
+		{
+			this.exchange = exchange;
+		}
+
+		void startTimeout(final long since, final int timeout)
+		{
+			if (isResponded.get()) return;
+			timeoutKey = exchange.getIoThread().executeAfter(() -> {
+				arrivals.removeWaiter(this);
+				respond(since, Collections.emptyList());
+			}, timeout, TimeUnit.SECONDS);
+		}
+
+		@Override
+		public void arrived(final long cursor, final List<String> filenames)
+		{
+			//NB: we are on the thread that has stored the file, the sending belongs to the IO thread
+			exchange.getIoThread().execute(() -> respond(cursor, filenames));
+		}
+
+		void respond(final long cursor, final List<String> filenames)
+		{
+			//only the first of the timeout and an arrival shall respond
+			if (!isResponded.compareAndSet(false,true)) return;
+			if (timeoutKey != null) timeoutKey.remove();
+
+			final StringBuilder sb = new StringBuilder(40 * filenames.size() + 20);
+			sb.append(cursor).append('\n');
+			for (String f : filenames) sb.append(f).append('\n');
+			exchange.getResponseSender().send(sb.toString());
+		}
+	}
+
+
 	// --------------------- help listing and aux/helper methods ---------------------
 	HttpHandler helpListingHandler()
 	{
@@ -179,11 +731,26 @@ public class FileServer
 				writeLine("/\t-- accessing root folder of the server prints this help");
 				writeLine("/files\t-- lists all files and folders that the server sees");
 				writeLine("/list\t-- lists all snapshot files (files matching the specific filename syntax) that the server sees");
-				writeLine("\t-- printed in plain text, one file per row");
+				writeLine("\t-- printed in plain text, one file per row, sorted by time");
+				writeLine("/list?author=A&author=B&since=T&until=T&latestPerAuthor=true&offset=0&limit=100&format=json");
+				writeLine("\t-- all parameters are optional:");
+				writeLine("\t\tauthor          -- lists only snapshots of this author, may be repeated");
+				writeLine("\t\tsince, until    -- lists only snapshots in this time range (inclusive), time is given");
+				writeLine("\t\t                -- as seconds since epoch (UTC), 2020-04-06T23:43:15, or 2020-04-06__23-43-15");
+				writeLine("\t\tlatestPerAuthor -- lists only the newest snapshot of every author");
+				writeLine("\t\toffset, limit   -- lists only the 'limit' snapshots starting from the 'offset'-th one");
+				writeLine("\t\tformat=json     -- prints {total,offset,files:[{name,author,timestamp,size}]}");
+
+				writeLine("/watch?since=CURSOR&timeout=30");
+				writeLine("\t-- prints the current cursor on the first row, followed by names of files that arrived after the CURSOR");
+				writeLine("\t-- if no file has arrived yet, the request waits up to 'timeout' seconds (max "+watchMaxTimeout+") for one");
+				writeLine("\t-- without 'since', only the current cursor is printed (to start watching from now on)");
+				writeLine("\t-- responds 410 if the CURSOR is too old (or unknown), the /list should be re-read then");
 
 				writeLine(newLine+"Download/Upload:");
 				writeLine(        "----------------");
 				writeLine("/files/snapshot.mstdn -- downloads the 'snapshot.mstdn' file from the server");
+				writeLine("\t-- snapshots have strong ETags (content hashes), If-None-Match and Range requests are supported");
 				writeLine("/put?name=snapshot.mstdn&spots=100&links=99");
 				writeLine("\t-- uploads a file to the server via the POST method");
 				writeLine("\t-- parameters name, spots, links are mandatory");
@@ -192,6 +759,28 @@ public class FileServer
 				writeLine("\t\tspots -- specifies the number of spots in the uploaded snapshot");
 				writeLine("\t\tlinks -- specifies the number of links in the uploaded snapshot");
 				writeLine("\t\t      -- both spots and links are here to avoid scanning the content of the snapshot file");
+				writeLine("\t\t      -- snapshots with a header entry (see below) override these two with their own values");
+				writeLine("\t-- the file appears on the server only after it has been received completely");
+				writeLine("/upload?name=snapshot.mstdn&size=BYTES&spots=100&links=99&chunk=BYTES");
+				writeLine("\t-- opens a session to upload a (large) file in chunks via the POST method, 'chunk' is optional");
+				writeLine("\t-- responds with rows id=ID, size=, chunk=, received= and missing= (offsets of the missing chunks)");
+				writeLine("/upload/ID?offset=OFFSET");
+				writeLine("\t-- uploads one chunk (starting at the OFFSET) via the PUT method, chunks may come in parallel, in any order");
+				writeLine("/upload/ID");
+				writeLine("\t-- GET prints the same rows as above, DELETE abandons the session");
+				writeLine("/upload/ID/commit");
+				writeLine("\t-- POST makes the file appear on the server, responds 409 if some chunks are still missing");
+				writeLine("\t-- sessions survive server restarts, untouched sessions expire after "
+					+ TimeUnit.MILLISECONDS.toHours(ChunkedUploads.expiryMillis) + " hours (404 then)");
+				writeLine("/putDelta?name=snapshot.mstdn&base=HASH");
+				writeLine("\t-- uploads only the changes since the snapshot of the content hash HASH via the POST method");
+				writeLine("\t-- responds 409 if the server does not know the base snapshot, the full snapshot must be uploaded then");
+				writeLine("\t-- the server rebuilds the full snapshot when it is downloaded");
+
+				writeLine("/bundle?author=A&since=T&until=T&latestPerAuthor=true");
+				writeLine("\t-- downloads all snapshots chosen with the same (optional) filters as /list does, as one zip file");
+				writeLine("\t-- the first zip entry is '"+bundleManifestName+"' with 'filename=hash' rows, snapshots follow");
+				writeLine("\t-- alternatively, names of the wanted snapshots can be POSTed in the request body, one per row");
 
 				writeLine(newLine+"Details:");
 				writeLine(        "--------");
@@ -199,6 +788,8 @@ public class FileServer
 				writeLine("               -- collection of these from one user shows her annotation progress");
 				writeLine("               -- here, it is a simplified substitute name for a properly named files");
 				writeLine("proper syntax is: YYYY-MM-DD__HH-MM-SS__userIdentifingAnyString.mstdn");
+				writeLine("snapshots are zip files with entries model.raw, tags.raw and (optionally) header.properties");
+				writeLine("               -- the header holds author, time, spots, links, timepoints range, bounding box and content hash");
 			}
 
 			@Override
@@ -218,4 +809,17 @@ public class FileServer
 	{
 		return String.format("?name=%s&spots=%d&links=%d",name,spotsCnt,linksCnt);
 	}
+
+	public static
+	String chunkedUploadQueryStringCreate(final String name, final long size, final int chunkSize,
+	                                      final int spotsCnt, final int linksCnt)
+	{
+		return String.format("?name=%s&size=%d&chunk=%d&spots=%d&links=%d",name,size,chunkSize,spotsCnt,linksCnt);
+	}
+
+	public static
+	String deltaUploadQueryStringCreate(final String name, final String baseHash)
+	{
+		return String.format("?name=%s&base=%s",name,baseHash);
+	}
 }
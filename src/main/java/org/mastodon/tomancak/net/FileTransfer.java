@@ -1,19 +1,31 @@
 package org.mastodon.tomancak.net;
 
-import java.net.URL;
 import java.net.URLEncoder;
 import java.net.HttpURLConnection;
 
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import org.mastodon.mamut.model.Model;
+import org.mastodon.tomancak.util.LineageDelta;
 
 public class FileTransfer
 {
@@ -29,31 +41,96 @@ public class FileTransfer
 	}
 
 
+	// --------------------- listing ---------------------
 	public static
 	Collection<String> listAvailableFiles(final String remoteURL)
 	throws IOException
 	{
-		//we intentionally copy the incoming streamed content (not to keep a ref on it -> to allow it to close the connection)
-		List<String> list = new LinkedList<>();
-		new BufferedReader( new InputStreamReader( new URL(remoteURL + "/list/").openStream() ))
-		      .lines()
-		      .forEach(list::add);
-		return list;
+		return TransferClient.await( listAvailableFilesAsync(remoteURL) );
+	}
+
+	public static
+	CompletableFuture<List<String>> listAvailableFilesAsync(final String remoteURL)
+	{
+		return TransferClient.getDefault().getLines(remoteURL + "/list/");
 	}
 
 
+	// --------------------- downloading ---------------------
+	/** downloads the file, unless it is present locally already in the same version,
+	    via the default SnapshotCache, an interrupted download is resumed next time */
 	public static
 	void getParticularFile(final String remoteURL, final String filename,
 	                       final Path toThisLocalFolder)
 	throws IOException
 	{
-		Files.copy(
-			new URL(remoteURL + "/files/" + filename).openStream(),
-			toThisLocalFolder.resolve(filename)
-		);
+		TransferClient.await( getParticularFileAsync(remoteURL, filename, toThisLocalFolder) );
+	}
+
+	/** the same as getParticularFile(), the returned future tells the local file,
+	    a failed download is retried (and resumed where it has stopped) */
+	public static
+	CompletableFuture<Path> getParticularFileAsync(final String remoteURL, final String filename,
+	                                               final Path toThisLocalFolder)
+	{
+		return TransferClient.getDefault().submit(true,
+			connector -> SnapshotCache.getDefault().fetch(remoteURL, filename, toThisLocalFolder, connector) );
+	}
+
+
+	/** how many snapshots are asked for in one request, and over how many connections at most */
+	public static int filesPerBundle = 8;
+	public static int parallelConnections = 4;
+
+	/** downloads the files that are not present locally already in the same version,
+	    via the default SnapshotCache; the files are fetched in bundles (several files in
+	    one response) over a few parallel connections, which the JVM keeps alive and reuses */
+	public static
+	void getParticularFiles(final String remoteURL, final Collection<String> filenames,
+	                        final Path toThisLocalFolder)
+	throws IOException
+	{
+		TransferClient.await( getParticularFilesAsync(remoteURL, filenames, toThisLocalFolder) );
+	}
+
+	public static
+	CompletableFuture<Void> getParticularFilesAsync(final String remoteURL, final Collection<String> filenames,
+	                                                final Path toThisLocalFolder)
+	{
+		final SnapshotCache cache = SnapshotCache.getDefault();
+		final List<String> missingFiles = new ArrayList<>(filenames.size());
+		try {
+			for (String f : filenames)
+				if (!cache.isFetchedAlready(remoteURL, f, toThisLocalFolder)) missingFiles.add(f);
+		} catch (IOException e) {
+			final CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		//the bundles are dealt into the connections, every connection fetches its bundles one after another
+		final TransferClient client = TransferClient.getDefault();
+		final List<CompletableFuture<Void>> lanes = new ArrayList<>(parallelConnections);
+		int bundleIdx = 0;
+		for (int i = 0; i < missingFiles.size(); i += filesPerBundle, ++bundleIdx)
+		{
+			final List<String> bundle = missingFiles.subList(i, Math.min(i+filesPerBundle, missingFiles.size()));
+			final TransferClient.Task<Void> fetching = connector -> {
+				cache.fetchBundle(remoteURL, bundle, toThisLocalFolder, connector);
+				return null;
+			};
+
+			final int lane = bundleIdx % Math.max(parallelConnections,1);
+			if (lane == lanes.size())
+				lanes.add( client.submit(true, fetching) );
+			else
+				lanes.set(lane, lanes.get(lane).thenCompose( v -> client.submit(true, fetching) ));
+		}
+		return CompletableFuture.allOf( lanes.toArray(new CompletableFuture[0]) );
 	}
 
 
+	// --------------------- uploading ---------------------
 	public static
 	void postParticularFile(final String remoteURL, final Model theModelItself,
 	                        final String filenameWithTheModel,
@@ -73,21 +150,321 @@ public class FileTransfer
 	                        final Path fromThisLocalFolder)
 	throws IOException
 	{
-		final URL url = new URL(remoteURL
-		  + "/put"
-		  + FileServer.fileUploadQueryStringCreate(URLEncoder.encode(filename,"UTF-8"),spotsCnt,linksCnt));
-		//System.out.println("talking to: "+url);
-
-		final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-		conn.setRequestMethod("POST");
-		conn.setDoOutput(true);
-		Files.copy(
-			fromThisLocalFolder.resolve(filename),
-			conn.getOutputStream()
-		);
-
-		//this actually makes the whole thing spinning (does not send out a byte without this command)
-		conn.getInputStream();
+		TransferClient.await( postParticularFileAsync(remoteURL, filename, spotsCnt, linksCnt, fromThisLocalFolder) );
+	}
+
+	/** files of at least this size are uploaded in chunks (see postParticularFileInChunksAsync()),
+	    smaller ones in one request; zero or negative disables the chunked uploads */
+	public static long chunkedUploadThreshold = 32 << 20;
+	public static int uploadChunkSize = ChunkedUploads.defaultChunkSize;
+
+	/** NB: the upload is retried if it fails, which is safe as the filename determines the content */
+	public static
+	CompletableFuture<Void> postParticularFileAsync(final String remoteURL, final String filename,
+	                                                final int spotsCnt, final int linksCnt,
+	                                                final Path fromThisLocalFolder)
+	{
+		final long size;
+		try {
+			size = Files.size(fromThisLocalFolder.resolve(filename));
+		} catch (IOException e) {
+			final CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		if (chunkedUploadThreshold <= 0 || size < chunkedUploadThreshold)
+			return postParticularFileAtOnceAsync(remoteURL, filename, spotsCnt, linksCnt, fromThisLocalFolder);
+
+		//servers without the chunked uploads get it in one request
+		return postParticularFileInChunksAsync(remoteURL, filename, spotsCnt, linksCnt, fromThisLocalFolder)
+			.thenCompose( chunked -> chunked ? CompletableFuture.completedFuture((Void)null)
+				: postParticularFileAtOnceAsync(remoteURL, filename, spotsCnt, linksCnt, fromThisLocalFolder) );
+	}
+
+	/** uploads the file in one POST request */
+	public static
+	CompletableFuture<Void> postParticularFileAtOnceAsync(final String remoteURL, final String filename,
+	                                                      final int spotsCnt, final int linksCnt,
+	                                                      final Path fromThisLocalFolder)
+	{
+		final String url;
+		try {
+			url = remoteURL
+			  + "/put"
+			  + FileServer.fileUploadQueryStringCreate(URLEncoder.encode(filename,"UTF-8"),spotsCnt,linksCnt);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e); //UTF-8 is always supported
+		}
+
+		return TransferClient.getDefault().send(url, true, conn -> {
+			final Path file = fromThisLocalFolder.resolve(filename);
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(Files.size(file));
+			try (OutputStream os = conn.getOutputStream()) {
+				Files.copy(file, os);
+			}
+
+			//this actually makes the whole thing spinning (does not send out a byte without this command)
+			TransferClient.expectOK(conn, url);
+			TransferClient.drain(conn.getInputStream());
+			return null;
+		});
+	}
+
+
+	/** the upload sessions not committed yet, keyed by the dataset URL and the local file (with its
+	    size and time of modification), the next upload of the same file continues in them */
+	private static final Map<String,String> unfinishedUploads = new ConcurrentHashMap<>();
+
+	/** Uploads the file in chunks over 'parallelConnections' connections, every chunk is retried
+	    on its own if it fails; if the upload fails as a whole, the next upload of the same (unchanged)
+	    file sends only the chunks that the server is still missing. The future tells false if the
+	    server does not support chunked uploads (and nothing has been uploaded then). */
+	public static
+	CompletableFuture<Boolean> postParticularFileInChunksAsync(final String remoteURL, final String filename,
+	                                                           final int spotsCnt, final int linksCnt,
+	                                                           final Path fromThisLocalFolder)
+	{
+		final Path file = fromThisLocalFolder.resolve(filename);
+		final String uploadURL = remoteURL + "/upload";
+		final String key;
+		final String createURL;
+		try {
+			final long size = Files.size(file);
+			key = remoteURL + "\n" + file.toAbsolutePath() + "\n" + size + "\n" + Files.getLastModifiedTime(file).toMillis();
+			createURL = uploadURL + FileServer.chunkedUploadQueryStringCreate(
+				URLEncoder.encode(filename,"UTF-8"), size, uploadChunkSize, spotsCnt, linksCnt);
+		} catch (IOException e) {
+			final CompletableFuture<Boolean> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		final TransferClient client = TransferClient.getDefault();
+
+		//the session: the unfinished one (if the server still has it), or a new one
+		final String unfinishedId = unfinishedUploads.get(key);
+		final CompletableFuture<Properties> unfinished = unfinishedId == null
+			? CompletableFuture.completedFuture(null)
+			: client.send(uploadURL+"/"+unfinishedId, true, conn -> readUploadSession(conn, uploadURL));
+		//NB: a repeated creation leaves an unused session at the server, which expires there
+		final CompletableFuture<Properties> session = unfinished.thenCompose( s -> s != null
+			? CompletableFuture.completedFuture(s)
+			: client.send(createURL, true, conn -> {
+				conn.setRequestMethod("POST");
+				return readUploadSession(conn, createURL);
+			}) );
+
+		return session.thenCompose( s -> {
+			if (s == null) return CompletableFuture.completedFuture(false);
+			final String sessionURL = uploadURL + "/" + s.getProperty("id");
+			final long size = Long.parseLong(s.getProperty("size"));
+			final int chunkSize = Integer.parseInt(s.getProperty("chunk"));
+			unfinishedUploads.put(key, s.getProperty("id"));
+
+			//the missing chunks are dealt into the connections, every connection sends its chunks one after another
+			final List<CompletableFuture<Void>> lanes = new ArrayList<>(parallelConnections);
+			int chunkIdx = 0;
+			for (String o : s.getProperty("missing","").split(","))
+			{
+				if (o.isEmpty()) continue;
+				final long offset = Long.parseLong(o);
+				final long length = Math.min(chunkSize, size - offset);
+				final String chunkURL = sessionURL + "?offset=" + offset;
+				final TransferClient.Task<Void> sending = connector -> {
+					final HttpURLConnection conn = connector.open(chunkURL);
+					conn.setRequestMethod("PUT");
+					conn.setDoOutput(true);
+					conn.setFixedLengthStreamingMode(length);
+					try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+					     OutputStream os = conn.getOutputStream()) {
+						final WritableByteChannel out = Channels.newChannel(os);
+						long sent = 0;
+						while (sent < length) sent += fc.transferTo(offset + sent, length - sent, out);
+					}
+					TransferClient.expectOK(conn, chunkURL);
+					TransferClient.drain(conn.getInputStream());
+					return null;
+				};
+
+				final int lane = chunkIdx++ % Math.max(parallelConnections,1);
+				if (lane == lanes.size())
+					lanes.add( client.submit(true, sending) );
+				else
+					lanes.set(lane, lanes.get(lane).thenCompose( v -> client.submit(true, sending) ));
+			}
+
+			final String commitURL = sessionURL + "/commit";
+			return CompletableFuture.allOf( lanes.toArray(new CompletableFuture[0]) )
+				.thenCompose( v -> client.send(commitURL, true, conn -> {
+					conn.setRequestMethod("POST");
+					TransferClient.expectOK(conn, commitURL);
+					TransferClient.drain(conn.getInputStream());
+					return null;
+				}) )
+				.thenApply( v -> {
+					unfinishedUploads.remove(key);
+					return true;
+				});
+		});
+	}
+
+	/** reads the 'key=value' rows of the upload session, returns null if there is no such session */
+	private static
+	Properties readUploadSession(final HttpURLConnection conn, final String url)
+	throws IOException
+	{
+		if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND)
+		{
+			TransferClient.drain(conn.getErrorStream());
+			return null;
+		}
+		TransferClient.expectOK(conn, url);
+		final Properties p = new Properties();
+		try (InputStreamReader r = new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8)) {
+			p.load(r);
+		}
+		if (p.getProperty("id") == null || p.getProperty("size") == null || p.getProperty("chunk") == null)
+			throw new IOException("Unexpected response from "+url);
+		return p;
+	}
+
+
+	/** uploads only the delta (the changes since its base snapshot) under the given filename,
+	    returns false if the server does not know the base (and the full snapshot should be
+	    uploaded instead) */
+	public static
+	boolean postParticularDelta(final String remoteURL, final String filename,
+	                            final LineageDelta delta)
+	throws IOException
+	{
+		return TransferClient.await( postParticularDeltaAsync(remoteURL, filename, delta) );
+	}
+
+	public static
+	CompletableFuture<Boolean> postParticularDeltaAsync(final String remoteURL, final String filename,
+	                                                    final LineageDelta delta)
+	{
+		final String url;
+		final byte[] data;
+		try {
+			url = remoteURL
+			  + "/putDelta"
+			  + FileServer.deltaUploadQueryStringCreate(URLEncoder.encode(filename,"UTF-8"),delta.baseHash);
+			data = delta.toBytes();
+		} catch (IOException e) {
+			final CompletableFuture<Boolean> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		return TransferClient.getDefault().send(url, true, conn -> {
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(data.length);
+			try (OutputStream os = conn.getOutputStream()) {
+				os.write(data);
+			}
+
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_CONFLICT)
+			{
+				TransferClient.drain(conn.getErrorStream());
+				return false;
+			}
+			TransferClient.expectOK(conn, url);
+			TransferClient.drain(conn.getInputStream());
+			return true;
+		});
+	}
+
+
+	// --------------------- datasets management ---------------------
+	/** asks the server to create a new dataset (with a hard-to-guess prefix if 'secret'),
+	    the future tells the name of the created dataset, or null if the server refused it;
+	    NB: this is never retried as a repeated request would create another dataset */
+	public static
+	CompletableFuture<String> addDatasetAsync(final String serverURL, final String dataset, final boolean secret)
+	{
+		final String url = serverURL + (secret ? "/addSecret/" : "/add/") + dataset;
+		return TransferClient.getDefault().send(url, false, conn -> {
+			TransferClient.expectOK(conn, url);
+			final List<String> lines = TransferClient.readLines(conn);
+			return lines.isEmpty() || lines.get(0).startsWith("ERROR") ? null : lines.get(0);
+		});
+	}
+
+	/** asks the server to remove the dataset (together with all its files),
+	    the future tells if the server has removed it */
+	public static
+	CompletableFuture<Boolean> removeDatasetAsync(final String serverURL, final String dataset)
+	{
+		final String url = serverURL + "/remove/" + dataset;
+		return TransferClient.getDefault().send(url, false, conn -> {
+			TransferClient.expectOK(conn, url);
+			final List<String> lines = TransferClient.readLines(conn);
+			return !lines.isEmpty() && lines.get(0).startsWith("OK");
+		});
+	}
+
+
+	// --------------------- watching ---------------------
+	/** notified about every file that has newly arrived to the watched dataset */
+	public interface ArrivalsListener
+	{
+		void arrived(final String filename);
+	}
+
+	/** starts a daemon thread that keeps one (long-lived) /watch request open at the server
+	    and reports every newly arrived file to the listener, typically within a second;
+	    if some arrivals were missed (e.g. the server has restarted), all files that the
+	    server lists are reported instead (so the listener must tolerate repetitions);
+	    interrupt the returned thread to stop the watching */
+	public static
+	Thread watchArrivals(final String remoteURL, final ArrivalsListener listener)
+	{
+		final Thread t = new Thread(() -> {
+			long cursor = -1;
+			int retryDelay = 1;
+			while (!Thread.currentThread().isInterrupted())
+			{
+				try {
+					//first, learn from where to start watching
+					final String query = cursor == -1 ? "" : "?since="+cursor+"&timeout="+FileServer.watchDefaultTimeout;
+					final HttpURLConnection conn = TransferClient.getDefault().open(remoteURL + "/watch" + query);
+					conn.setReadTimeout((FileServer.watchDefaultTimeout + 15) * 1000);
+
+					final boolean missedSome = conn.getResponseCode() == HttpURLConnection.HTTP_GONE;
+					final List<String> lines = new LinkedList<>();
+					try (BufferedReader r = new BufferedReader(new InputStreamReader(
+							missedSome ? conn.getErrorStream() : conn.getInputStream() ))) {
+						r.lines().forEach(lines::add);
+					}
+					if (lines.isEmpty()) throw new IOException("Empty response from "+remoteURL+"/watch");
+
+					final boolean isFirstRequest = cursor == -1;
+					cursor = Long.parseLong(lines.remove(0));
+					retryDelay = 1;
+
+					if (missedSome)
+						listAvailableFiles(remoteURL).forEach(listener::arrived);
+					else if (!isFirstRequest)
+						lines.forEach(listener::arrived);
+
+				} catch (IOException | NumberFormatException e) {
+					//server not reachable or talking nonsense, try again later
+					System.out.println("Watching "+remoteURL+" failed, retrying in "+retryDelay+" s: "+e.getMessage());
+					try {
+						Thread.sleep(retryDelay * 1000L);
+					} catch (InterruptedException ie) {
+						return;
+					}
+					retryDelay = Math.min(2*retryDelay, 60);
+				}
+			}
+		}, "watching "+remoteURL);
+		t.setDaemon(true);
+		t.start();
+		return t;
 	}
 
 
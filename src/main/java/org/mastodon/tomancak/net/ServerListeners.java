@@ -2,9 +2,7 @@ package org.mastodon.tomancak.net;
 
 import java.time.LocalDateTime;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /** Collection of triggers relevant to the whole server */
 public class ServerListeners
@@ -37,9 +35,9 @@ public class ServerListeners
 
 
 	// --------------- management of server listeners (for all current datasets) ---------------
-	final Collection<LineageArrived> lineageArrivedListeners = new LinkedList<>();
-	final Collection<FileArrived>    fileArrivedListeners    = new LinkedList<>();
-	final Collection<FileRequested>  fileRequestedListeners  = new LinkedList<>();
+	final Collection<LineageArrived> lineageArrivedListeners = new CopyOnWriteArrayList<>();
+	final Collection<FileArrived>    fileArrivedListeners    = new CopyOnWriteArrayList<>();
+	final Collection<FileRequested>  fileRequestedListeners  = new CopyOnWriteArrayList<>();
 
 
 	public void addLineageArrivedListeners(final LineageArrived listener)
@@ -63,12 +61,42 @@ public class ServerListeners
 	{ fileRequestedListeners.remove( listener ); }
 
 
+	// --------------- execution of the notifications ---------------
+	/** shared by all datasets of this server */
+	private final EventDispatcher eventDispatcher;
+
+	public ServerListeners()
+	{
+		this(new EventDispatcher());
+	}
+
+	public ServerListeners(final EventDispatcher eventDispatcher)
+	{
+		this(new DatasetsRegistry(), eventDispatcher);
+	}
+
+	public ServerListeners(final DatasetsRegistry datasets, final EventDispatcher eventDispatcher)
+	{
+		this.datasets = datasets;
+		this.eventDispatcher = eventDispatcher;
+	}
+
+	/** returns the dispatcher that executes notifications of all datasets of this server,
+	    it also offers statistics such as the number of pending notifications */
+	public EventDispatcher getEventDispatcher()
+	{ return eventDispatcher; }
+
+
 	// --------------- management of dataset-specific listeners ---------------
-	final Map<String, DatasetListeners> datasetListeners = new HashMap<>(10);
+	/** the datasets (and their listeners) known to the server */
+	private final DatasetsRegistry datasets;
 
 	/** returns reference on a DatasetListeners that is specific for the given dataset
 	    so that caller can manage listeners specifically for it, it may however
 	    return null if no such dataset is known to the server */
 	public DatasetListeners getDatasetListeners(final String forThisDataset)
-	{ return datasetListeners.get( forThisDataset ); }
+	{
+		final DatasetsRegistry.Dataset ds = datasets.get( forThisDataset );
+		return ds != null ? ds.listeners : null;
+	}
 }
@@ -0,0 +1,254 @@
+package org.mastodon.tomancak.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.util.AttachmentKey;
+
+import org.mastodon.tomancak.util.ContentHasher;
+
+/** Counters and histograms of the requests served by ONE DatasetServer, they are
+    printed in the Prometheus text format (which the DatasetServer offers at /metrics);
+    the recording is lock-free and costs a few additions per request. Datasets are
+    labelled with the first 12 hex digits of SHA-256 of their names (see datasetId()),
+    so that the names of the secret datasets are not given away. */
+public class ServerMetrics
+{
+	/** upper bounds of the buckets of the latencies, in seconds */
+	public static final double[] latencyBuckets = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+	                                                0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120 };
+
+	/** upper bounds of the buckets of the sizes of uploads, in bytes */
+	public static final double[] sizeBuckets = { 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+	/** routes that are told apart, any other request is reported under the route "other"
+	    (so that the number of label combinations is bounded by the number of datasets) */
+	static final Set<String> knownRoutes = new HashSet<>(Arrays.asList(
+		"/", "/status", "/metrics", "/add", "/addSecret", "/remove",
+		"/put", "/putDelta", "/upload", "/list", "/watch", "/bundle", "/files", "/progress" ));
+
+	/** routes of the uploads of snapshots that come whole in the request body */
+	static final Set<String> uploadRoutes = new HashSet<>(Arrays.asList( "/put", "/putDelta" ));
+
+	/** a handler that has just completed an upload of a snapshot that did not come in the
+	    request body (the commit of a chunked upload) attaches here the size of the snapshot */
+	public static final AttachmentKey<Long> uploadedSize = AttachmentKey.create(Long.class);
+
+
+	// --------------------- histogram ---------------------
+	public static class Histogram
+	{
+		final double[] bounds;
+		/** NB: NOT cumulative, the last one is the +Inf bucket */
+		final LongAdder[] counts;
+		final DoubleAdder sum = new DoubleAdder();
+
+		public Histogram(final double[] bounds)
+		{
+			this.bounds = bounds;
+			this.counts = new LongAdder[bounds.length+1];
+			for (int i = 0; i < counts.length; ++i) counts[i] = new LongAdder();
+		}
+
+		public void observe(final double value)
+		{
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) ++i;
+			counts[i].increment();
+			sum.add(value);
+		}
+
+		void print(final StringBuilder sb, final String name, final String labels)
+		{
+			final String sep = labels.isEmpty() ? "" : ",";
+			long cumulative = 0;
+			for (int i = 0; i < bounds.length; ++i)
+			{
+				cumulative += counts[i].sum();
+				sb.append(name).append("_bucket{").append(labels).append(sep)
+				  .append("le=\"").append(number(bounds[i])).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += counts[bounds.length].sum();
+			sb.append(name).append("_bucket{").append(labels).append(sep)
+			  .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+			sb.append(name).append("_sum").append(braces(labels)).append(' ').append(number(sum.sum())).append('\n');
+			sb.append(name).append("_count").append(braces(labels)).append(' ').append(cumulative).append('\n');
+		}
+	}
+
+
+	// --------------------- recorded values ---------------------
+	/** all maps are keyed with "route \t dataset", or with "route \t dataset \t status code" */
+	private final Map<String,LongAdder> requests = new ConcurrentHashMap<>();
+	private final Map<String,Histogram> latencies = new ConcurrentHashMap<>();
+	private final Map<String,LongAdder> bytesReceived = new ConcurrentHashMap<>();
+	private final Map<String,LongAdder> bytesSent = new ConcurrentHashMap<>();
+	/** keyed with dataset only */
+	private final Map<String,Histogram> uploadSizes = new ConcurrentHashMap<>();
+
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/** records one finished request, 'dataset' is an empty string for requests outside datasets */
+	public
+	void requestFinished(final String route, final String dataset, final int statusCode,
+	                     final long nanos, final long requestBytes, final long responseBytes)
+	{
+		final String key = route+'\t'+dataset;
+		requests.computeIfAbsent(key+'\t'+statusCode, k -> new LongAdder()).increment();
+		latencies.computeIfAbsent(key, k -> new Histogram(latencyBuckets)).observe(nanos / 1e9);
+		if (requestBytes > 0)
+		{
+			bytesReceived.computeIfAbsent(key, k -> new LongAdder()).add(requestBytes);
+			if (uploadRoutes.contains(route)) uploadFinished(dataset, requestBytes);
+		}
+		if (responseBytes > 0)
+			bytesSent.computeIfAbsent(key, k -> new LongAdder()).add(responseBytes);
+	}
+
+	/** records the size of one uploaded snapshot */
+	public
+	void uploadFinished(final String dataset, final long size)
+	{
+		uploadSizes.computeIfAbsent(dataset, k -> new Histogram(sizeBuckets)).observe(size);
+	}
+
+	/** returns the number of requests that are being served right now */
+	public int getRequestsInFlight()
+	{ return inFlight.get(); }
+
+	/** forgets everything recorded for the given dataset */
+	public
+	void removeDataset(final String dataset)
+	{
+		for (Map<String,?> m : Arrays.asList(requests,latencies,bytesReceived,bytesSent))
+			m.keySet().removeIf( k -> k.split("\t",-1)[1].equals(dataset) );
+		uploadSizes.remove(dataset);
+	}
+
+
+	// --------------------- recording ---------------------
+	/** returns a handler that measures every request passed to the 'next' handler,
+	    'routeOfPath' tells the route and the dataset (or an empty string) of a path */
+	public
+	HttpHandler instrument(final HttpHandler next, final Function<String,String[]> routeOfPath)
+	{
+		return exchange -> {
+			final long start = System.nanoTime();
+			//NB: read out now, handlers of datasets change the relative path
+			final String[] routeAndDataset = routeOfPath.apply(exchange.getRelativePath());
+			inFlight.incrementAndGet();
+
+			exchange.addExchangeCompleteListener( (ex, nextListener) -> {
+				inFlight.decrementAndGet();
+				final Long uploaded = ex.getAttachment(uploadedSize);
+				if (uploaded != null) uploadFinished(routeAndDataset[1], uploaded);
+				requestFinished(knownRoutes.contains(routeAndDataset[0]) ? routeAndDataset[0] : "other",
+				                routeAndDataset[1], ex.getStatusCode(), System.nanoTime() - start,
+				                ex.getRequestContentLength(), ex.getResponseBytesSent());
+				nextListener.proceed();
+			});
+			next.handleRequest(exchange);
+		};
+	}
+
+
+	// --------------------- printing ---------------------
+	/** appends all recorded values in the Prometheus text format */
+	public
+	void print(final StringBuilder sb)
+	{
+		header(sb, "mastodon_http_requests_total", "counter", "Requests served, by route, dataset and status code.");
+		new TreeMap<>(requests).forEach( (k,v) ->
+			sb.append("mastodon_http_requests_total").append(braces(labels(k))).append(' ').append(v.sum()).append('\n') );
+
+		header(sb, "mastodon_http_request_duration_seconds", "histogram", "Time from receiving a request to sending its last byte.");
+		new TreeMap<>(latencies).forEach( (k,h) -> h.print(sb, "mastodon_http_request_duration_seconds", labels(k)) );
+
+		header(sb, "mastodon_http_received_bytes_total", "counter", "Bytes of the bodies of the requests (uploads).");
+		new TreeMap<>(bytesReceived).forEach( (k,v) ->
+			sb.append("mastodon_http_received_bytes_total").append(braces(labels(k))).append(' ').append(v.sum()).append('\n') );
+
+		header(sb, "mastodon_http_sent_bytes_total", "counter", "Bytes of the bodies of the responses (downloads).");
+		new TreeMap<>(bytesSent).forEach( (k,v) ->
+			sb.append("mastodon_http_sent_bytes_total").append(braces(labels(k))).append(' ').append(v.sum()).append('\n') );
+
+		header(sb, "mastodon_upload_size_bytes", "histogram", "Sizes of the uploaded snapshots.");
+		new TreeMap<>(uploadSizes).forEach( (ds,h) ->
+			h.print(sb, "mastodon_upload_size_bytes", datasetLabel(ds)) );
+
+		gauge(sb, "mastodon_http_requests_in_flight", "Requests being served right now.", "", inFlight.get());
+	}
+
+	/** appends the # HELP and # TYPE lines of a metric */
+	public static
+	void header(final StringBuilder sb, final String name, final String type, final String help)
+	{
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/** appends the header and the only value of a metric */
+	public static
+	void gauge(final StringBuilder sb, final String name, final String help, final String labels, final double value)
+	{
+		header(sb, name, "gauge", help);
+		sample(sb, name, labels, value);
+	}
+
+	/** appends one value of a metric */
+	public static
+	void sample(final StringBuilder sb, final String name, final String labels, final double value)
+	{
+		sb.append(name).append(braces(labels)).append(' ').append(number(value)).append('\n');
+	}
+
+	static String labels(final String key)
+	{
+		final String[] parts = key.split("\t",-1);
+		final StringBuilder sb = new StringBuilder();
+		sb.append("route=\"").append(escape(parts[0])).append('"');
+		if (!parts[1].isEmpty()) sb.append(',').append(datasetLabel(parts[1]));
+		if (parts.length > 2) sb.append(",code=\"").append(parts[2]).append('"');
+		return sb.toString();
+	}
+
+	/** returns the short and non-reversible id of the dataset under which it appears in the metrics */
+	public static
+	String datasetId(final String dataset)
+	{
+		return ContentHasher.toHex(ContentHasher.createHasher().digest(dataset.getBytes(StandardCharsets.UTF_8))).substring(0,12);
+	}
+
+	/** returns the label of the dataset, e.g. dataset="0123456789ab" */
+	public static
+	String datasetLabel(final String dataset)
+	{
+		return "dataset=\""+datasetId(dataset)+'"';
+	}
+
+	static String braces(final String labels)
+	{
+		return labels.isEmpty() ? "" : '{'+labels+'}';
+	}
+
+	static String escape(final String labelValue)
+	{
+		return labelValue.replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n");
+	}
+
+	static String number(final double value)
+	{
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long)value);
+		return Double.toString(value);
+	}
+}
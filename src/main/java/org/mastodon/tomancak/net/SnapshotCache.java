@@ -0,0 +1,472 @@
+package org.mastodon.tomancak.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.mastodon.tomancak.util.ContentHasher;
+
+/** Client-side store of downloaded snapshots. Snapshots are kept under names given
+    by their content hashes (computed while downloading, and checked against what the
+    server has announced in ETags), so a snapshot is downloaded only once no matter in
+    which project folder it is needed. Files that are present already are only
+    re-validated with the server (which costs one "304 Not Modified" round trip), and
+    interrupted downloads are resumed from where they stopped. The project folders get
+    hard links to the cached snapshots (copies where links are not possible), and the
+    earliest downloaded snapshots are evicted when the cache outgrows 'maxSizeBytes'. */
+public class SnapshotCache
+{
+	/** the cache in the user's home folder */
+	public static synchronized
+	SnapshotCache getDefault()
+	{
+		if (defaultCache == null)
+			defaultCache = new SnapshotCache(
+				Paths.get(System.getProperty("user.home"), ".mastodon-collaborative", "snapshots") );
+		return defaultCache;
+	}
+	private static SnapshotCache defaultCache = null;
+
+	public SnapshotCache(final Path cacheFolder)
+	{
+		this.cacheFolder = cacheFolder;
+		this.partialFolder = cacheFolder.resolve("partial");
+		this.hashesFile = cacheFolder.resolve("hashes.properties");
+		try {
+			Files.createDirectories(partialFolder);
+			if (Files.isRegularFile(hashesFile))
+				try (InputStream is = Files.newInputStream(hashesFile)) { hashes.load(is); }
+			pruneHashes();
+		} catch (IOException e) {
+			System.out.println("Cannot initialize the snapshots cache in "+cacheFolder+":");
+			e.printStackTrace();
+		}
+	}
+
+	final Path cacheFolder;
+	final Path partialFolder;
+
+	/** the earliest downloaded snapshots are removed from the cache above this size */
+	public long maxSizeBytes = 4L << 30;
+
+	/** remembers hashes of local files (key "local:PATH:SIZE:MTIME"), the last known
+	    hash of every remote file (key "remote:URL") and the ETags of the interrupted
+	    downloads (key "partial:URL"); the changes are appended to the file, which is
+	    rewritten (without the removed and stale keys) only when opened, or when the
+	    appended changes outnumber the keys */
+	private final Properties hashes = new Properties();
+	private final Path hashesFile;
+	private int appendedChanges = 0;
+
+	Path blobOf(final String hash)
+	{
+		return cacheFolder.resolve(hash+".mstdn");
+	}
+
+
+	// --------------------- fetching ---------------------
+	/** Makes sure that the file 'filename' from the remote dataset 'remoteURL' is present,
+	    in its current version, in the 'toThisLocalFolder'. Returns the path to the local file. */
+	public Path fetch(final String remoteURL, final String filename, final Path toThisLocalFolder)
+	throws IOException
+	{
+		return fetch(remoteURL, filename, toThisLocalFolder, TransferClient.getDefault()::open);
+	}
+
+	/** the same as fetch() above, with the connection opened by the given connector */
+	public Path fetch(final String remoteURL, final String filename, final Path toThisLocalFolder,
+	                  final TransferClient.Connector connector)
+	throws IOException
+	{
+		final Path localFile = toThisLocalFolder.resolve(filename);
+		final String fileURL = remoteURL + "/files/" + filename;
+
+		//what version do we have already?
+		String knownHash = Files.isRegularFile(localFile) ? hashOfLocalFile(localFile) : null;
+		if (knownHash == null)
+		{
+			final String h = getHash("remote:"+fileURL);
+			if (h != null && Files.isRegularFile(blobOf(h))) knownHash = h;
+		}
+
+		//was the download of it interrupted before?
+		final Path partialFile = partialFolder.resolve(URLEncoder.encode(fileURL,"UTF-8")+".part");
+		final String partialETag = getHash("partial:"+fileURL);
+		final long partialSize = partialETag != null && Files.isRegularFile(partialFile) ? Files.size(partialFile) : 0;
+
+		final HttpURLConnection conn = connector.open(fileURL);
+		if (knownHash != null) conn.setRequestProperty("If-None-Match", '"'+knownHash+'"');
+		if (partialSize > 0)
+		{
+			conn.setRequestProperty("Range", "bytes="+partialSize+"-");
+			conn.setRequestProperty("If-Range", '"'+partialETag+'"');
+		}
+
+		final int code = conn.getResponseCode();
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED)
+		{
+			conn.disconnect();
+			if (!Files.isRegularFile(localFile)) linkAtomically(blobOf(knownHash), localFile);
+			return localFile;
+		}
+		if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL)
+		{
+			conn.disconnect();
+			throw new TransferClient.StatusException(code, fileURL);
+		}
+
+		//download (or continue downloading) into the partial file, only strong ETags tell the content
+		final String eTag = parseStrongETag(conn.getHeaderField("ETag"));
+		final boolean isResuming = code == HttpURLConnection.HTTP_PARTIAL;
+		if (eTag != null) putHash("partial:"+fileURL, eTag);
+		else removeHash("partial:"+fileURL);
+		final MessageDigest hasher = ContentHasher.createHasher();
+		if (isResuming) hashInto(partialFile, hasher);
+		try (InputStream is = conn.getInputStream();
+		     OutputStream os = new DigestOutputStream(Files.newOutputStream(partialFile, StandardOpenOption.CREATE,
+		         isResuming ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING,
+		         StandardOpenOption.WRITE), hasher)) {
+			final byte[] buf = new byte[1 << 16];
+			int len;
+			while ((len = is.read(buf)) > 0) os.write(buf, 0, len);
+		}
+
+		//complete, move it into the cache under its true hash, and make it available where it is wanted
+		final String hash = ContentHasher.toHex(hasher.digest());
+		if (eTag != null && !eTag.equals(hash))
+		{
+			Files.deleteIfExists(partialFile);
+			removeHash("partial:"+fileURL);
+			throw new IOException("Downloaded "+fileURL+" does not match its ETag "+eTag);
+		}
+		storeBlob(partialFile, hash);
+		removeHash("partial:"+fileURL);
+		putHash("remote:"+fileURL, hash);
+
+		linkAtomically(blobOf(hash), localFile);
+		putLocalHash(localFile, hash);
+		evict();
+		return localFile;
+	}
+
+	/** returns true if the local copy of the remote file is present and is of the same
+	    version as it was when it was fetched last time (without asking the server) */
+	public boolean isFetchedAlready(final String remoteURL, final String filename, final Path toThisLocalFolder)
+	throws IOException
+	{
+		final Path localFile = toThisLocalFolder.resolve(filename);
+		final String remoteHash = getHash("remote:" + remoteURL + "/files/" + filename);
+		return remoteHash != null && Files.isRegularFile(localFile)
+			&& remoteHash.equals(hashOfLocalFile(localFile));
+	}
+
+	/** Downloads the given files from the remote dataset 'remoteURL' in one request
+	    (as a bundle), and makes them present in the 'toThisLocalFolder'. Unlike fetch(),
+	    the files are downloaded always, interrupted downloads are not resumed. */
+	public void fetchBundle(final String remoteURL, final List<String> filenames, final Path toThisLocalFolder)
+	throws IOException
+	{
+		fetchBundle(remoteURL, filenames, toThisLocalFolder, TransferClient.getDefault()::open);
+	}
+
+	/** the same as fetchBundle() above, with the connection opened by the given connector */
+	public void fetchBundle(final String remoteURL, final List<String> filenames, final Path toThisLocalFolder,
+	                        final TransferClient.Connector connector)
+	throws IOException
+	{
+		final HttpURLConnection conn = connector.open(remoteURL + "/bundle");
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		try (OutputStream os = conn.getOutputStream()) {
+			for (String f : filenames) os.write((f+"\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		final int code = conn.getResponseCode();
+		if (code != HttpURLConnection.HTTP_OK)
+		{
+			conn.disconnect();
+			throw new TransferClient.StatusException(code, remoteURL+"/bundle");
+		}
+
+		try (ZipInputStream zis = new ZipInputStream(conn.getInputStream())) {
+			//the first entry tells the hashes of the snapshots
+			ZipEntry entry = zis.getNextEntry();
+			if (entry == null || !entry.getName().equals(FileServer.bundleManifestName))
+				throw new IOException("Bundle from "+remoteURL+" is missing its manifest");
+			final Properties manifest = new Properties();
+			manifest.load(zis);
+
+			while ((entry = zis.getNextEntry()) != null)
+			{
+				final String filename = entry.getName();
+				if (!filenames.contains(filename))
+					throw new IOException("Bundle from "+remoteURL+" contains unexpected "+filename);
+
+				final Path partialFile = partialFolder.resolve(UUID.randomUUID().toString()+".part");
+				final MessageDigest hasher = ContentHasher.createHasher();
+				//NB: the DigestInputStream must not close the zip stream
+				Files.copy(new DigestInputStream(zis, hasher) { @Override public void close() {} },
+				           partialFile, StandardCopyOption.REPLACE_EXISTING);
+
+				final String hash = ContentHasher.toHex(hasher.digest());
+				final String announcedHash = manifest.getProperty(filename);
+				if (announcedHash != null && !announcedHash.equals(hash))
+				{
+					Files.deleteIfExists(partialFile);
+					throw new IOException("Bundled "+filename+" from "+remoteURL+" does not match its hash "+announcedHash);
+				}
+				storeBlob(partialFile, hash);
+				putHash("remote:" + remoteURL + "/files/" + filename, hash);
+
+				final Path localFile = toThisLocalFolder.resolve(filename);
+				linkAtomically(blobOf(hash), localFile);
+				putLocalHash(localFile, hash);
+			}
+		}
+		evict();
+	}
+
+	/** returns the content hash of the local file, computes it only if
+	    the file is not known or has been modified since it was hashed */
+	String hashOfLocalFile(final Path localFile)
+	throws IOException
+	{
+		final String key = localKey(localFile);
+		String hash = getHash(key);
+		if (hash == null)
+		{
+			hash = SnapshotIndex.hashOfFile(localFile);
+			putLocalHash(localFile, hash);
+		}
+		return hash;
+	}
+
+	/** remembers the hash of the local file, and forgets its older versions */
+	void putLocalHash(final Path localFile, final String hash)
+	throws IOException
+	{
+		final String key = localKey(localFile);
+		final String stalePrefix = "local:"+localFile.toAbsolutePath()+":";
+		synchronized (this)
+		{
+			for (String k : hashes.stringPropertyNames())
+				if (k.startsWith(stalePrefix) && !k.equals(key)) removeHash(k);
+			putHash(key, hash);
+		}
+	}
+
+	static String localKey(final Path localFile)
+	throws IOException
+	{
+		return "local:"+localFile.toAbsolutePath()
+			+":"+Files.size(localFile)
+			+":"+Files.getLastModifiedTime(localFile).toMillis();
+	}
+
+	/** returns the tag without quotes, or null if there is none or if it is a weak
+	    one (which tells only some version of the content, not the content itself) */
+	static String parseStrongETag(final String header)
+	{
+		if (header == null) return null;
+		String tag = header.trim();
+		if (tag.startsWith("W/")) return null;
+		if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) tag = tag.substring(1, tag.length()-1);
+		return tag.isEmpty() ? null : tag;
+	}
+
+	static void hashInto(final Path file, final MessageDigest hasher)
+	throws IOException
+	{
+		final byte[] buf = new byte[1 << 16];
+		try (InputStream is = Files.newInputStream(file)) {
+			int len;
+			while ((len = is.read(buf)) > 0) hasher.update(buf, 0, len);
+		}
+	}
+
+	/** makes the 'to' the same file as the 'from' (a hard link), or its copy if linking is not possible */
+	static void linkAtomically(final Path from, final Path to)
+	throws IOException
+	{
+		//NB: the temporary name must not resemble a snapshot filename
+		final Path tmp = to.resolveSibling("."+UUID.randomUUID().toString()+".part");
+		try {
+			Files.createLink(tmp, from);
+		} catch (IOException | UnsupportedOperationException e) {
+			//e.g. another file system, or one without links
+			Files.copy(from, tmp, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(tmp, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+
+	// --------------------- size of the cache ---------------------
+	void storeBlob(final Path partialFile, final String hash)
+	throws IOException
+	{
+		Files.move(partialFile, blobOf(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		touch(blobOf(hash));
+	}
+
+	/** marks the snapshot as just downloaded, the time of the last modification orders the eviction;
+	    NB: not touched when used later because the hard links in the project folders would change too */
+	static void touch(final Path blob)
+	{
+		try {
+			Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) { /* only the order of eviction is affected */ }
+	}
+
+	/** removes the earliest downloaded snapshots until the cache fits into the 'maxSizeBytes',
+	    NB: the hard links in the project folders keep their content */
+	public synchronized
+	void evict()
+	{
+		final List<Path> blobs;
+		try (Stream<Path> s = Files.list(cacheFolder)) {
+			blobs = s.filter(p -> p.getFileName().toString().endsWith(".mstdn") && Files.isRegularFile(p))
+			         .collect(Collectors.toList());
+		} catch (IOException e) {
+			System.out.println("Cannot list the snapshots cache "+cacheFolder+": "+e.getMessage());
+			return;
+		}
+
+		final List<long[]> sizesAndTimes = new ArrayList<>(blobs.size());
+		long total = 0;
+		for (Path b : blobs)
+		{
+			try {
+				final long[] st = { Files.size(b), Files.getLastModifiedTime(b).toMillis() };
+				sizesAndTimes.add(st);
+				total += st[0];
+			} catch (IOException e) {
+				sizesAndTimes.add(new long[] { 0, 0 });
+			}
+		}
+		if (total <= maxSizeBytes) return;
+
+		final List<Integer> order = new ArrayList<>(blobs.size());
+		for (int i = 0; i < blobs.size(); ++i) order.add(i);
+		order.sort(Comparator.comparingLong(i -> sizesAndTimes.get(i)[1]));
+		for (int i : order)
+		{
+			if (total <= maxSizeBytes) break;
+			try {
+				Files.deleteIfExists(blobs.get(i));
+				total -= sizesAndTimes.get(i)[0];
+			} catch (IOException e) {
+				System.out.println("Cannot evict "+blobs.get(i)+": "+e.getMessage());
+			}
+		}
+		pruneHashes();
+	}
+
+
+	// --------------------- persistence of hashes ---------------------
+	synchronized String getHash(final String key)
+	{
+		return hashes.getProperty(key);
+	}
+
+	synchronized void putHash(final String key, final String hash)
+	{
+		if (hash.equals(hashes.setProperty(key, hash))) return;
+		appendHash(key, hash);
+	}
+
+	synchronized void removeHash(final String key)
+	{
+		//NB: an empty value is read back as a removal
+		if (hashes.remove(key) != null) appendHash(key, "");
+	}
+
+	private void appendHash(final String key, final String hash)
+	{
+		if (++appendedChanges > Math.max(hashes.size(), 100))
+		{
+			saveHashes();
+			return;
+		}
+		try {
+			final Properties one = new Properties();
+			one.setProperty(key, hash);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			one.store(bytes, null);
+			//NB: the Properties format is ISO-8859-1, the date comment row is dropped
+			final StringBuilder rows = new StringBuilder();
+			for (String row : bytes.toString("ISO-8859-1").split("\n"))
+				if (!row.startsWith("#")) rows.append(row).append('\n');
+			Files.write(hashesFile, rows.toString().getBytes(StandardCharsets.ISO_8859_1),
+			            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			System.out.println("Cannot save "+hashesFile+": "+e.getMessage());
+		}
+	}
+
+	/** forgets the removed keys, hashes of local files that have changed or are gone, remote
+	    files whose snapshots are not in the cache anymore, and partial downloads that are gone;
+	    and rewrites the file with what is left */
+	private synchronized
+	void pruneHashes()
+	{
+		for (String key : hashes.stringPropertyNames())
+		{
+			final String hash = hashes.getProperty(key);
+			boolean stale = hash.isEmpty();
+			try {
+				if (!stale && key.startsWith("local:"))
+				{
+					//"local:PATH:SIZE:MTIME", where the PATH may contain colons too
+					final int mtimeColon = key.lastIndexOf(':');
+					final int sizeColon = key.lastIndexOf(':', mtimeColon-1);
+					final Path file = Paths.get(key.substring(6, sizeColon));
+					stale = !Files.isRegularFile(file) || !localKey(file).equals(key);
+				}
+				else if (!stale && key.startsWith("remote:"))
+					stale = !Files.isRegularFile(blobOf(hash));
+				else if (!stale && key.startsWith("partial:"))
+					stale = !Files.isRegularFile(partialFolder.resolve(URLEncoder.encode(key.substring(8),"UTF-8")+".part"));
+			} catch (IOException | RuntimeException e) {
+				stale = true;
+			}
+			if (stale) hashes.remove(key);
+		}
+		saveHashes();
+	}
+
+	private void saveHashes()
+	{
+		appendedChanges = 0;
+		final Path tmp = hashesFile.resolveSibling("hashes.properties.tmp");
+		try {
+			try (OutputStream os = Files.newOutputStream(tmp)) {
+				hashes.store(os, "content hashes of known snapshots");
+			}
+			Files.move(tmp, hashesFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.out.println("Cannot save "+hashesFile+": "+e.getMessage());
+		}
+	}
+}
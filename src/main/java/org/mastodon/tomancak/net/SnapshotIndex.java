@@ -0,0 +1,268 @@
+package org.mastodon.tomancak.net;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mastodon.tomancak.util.ContentHasher;
+import org.mastodon.tomancak.util.LineageFiles;
+
+/** Persistent index of metadata of the snapshot files in ONE dataset folder,
+    the index is kept in a (hidden) file inside the dataset folder itself and
+    allows to learn about the snapshots without parsing them */
+public class SnapshotIndex
+{
+	/** name of the file (inside the dataset folder) with the index */
+	public static final String indexFilename = ".snapshots.index";
+
+	/** metadata of one snapshot file */
+	public static class Record
+	{
+		public final String filename;
+		public final String author;
+		/** seconds since epoch (UTC), as read from the filename */
+		public final long timestamp;
+		/** size of the snapshot file in bytes */
+		public final long size;
+		/** last modification time of the snapshot file (millis since epoch), -1 if not known */
+		public final long mtime;
+		public final int spots;
+		public final int links;
+		/** SHA-256 of the snapshot file content, in hex; for delta snapshots, it is
+		    the hash of the full snapshot that is obtained after applying the delta */
+		public final String hash;
+		/** hash of the snapshot a delta snapshot is applied on, null for full snapshots */
+		public final String base;
+
+		public Record(final String filename, final long size, final long mtime,
+		              final int spots, final int links, final String hash)
+		{
+			this(filename, LineageFiles.authorOfLineageFile(filename),
+			     LineageFiles.dateTimeOfLineageFile(filename).toEpochSecond(ZoneOffset.UTC),
+			     size, mtime, spots, links, hash);
+		}
+
+		public Record(final String filename, final String author, final long timestamp,
+		              final long size, final long mtime, final int spots, final int links, final String hash)
+		{
+			this(filename, author, timestamp, size, mtime, spots, links, hash, null);
+		}
+
+		/** a record of a delta snapshot */
+		public Record(final String filename, final long size, final long mtime,
+		              final int spots, final int links, final String hash, final String base)
+		{
+			this(filename, LineageFiles.authorOfLineageFile(filename),
+			     LineageFiles.dateTimeOfLineageFile(filename).toEpochSecond(ZoneOffset.UTC),
+			     size, mtime, spots, links, hash, base);
+		}
+
+		public Record(final String filename, final String author, final long timestamp,
+		              final long size, final long mtime, final int spots, final int links,
+		              final String hash, final String base)
+		{
+			this.filename  = filename;
+			this.author    = author;
+			this.timestamp = timestamp;
+			this.size      = size;
+			this.mtime     = mtime;
+			this.spots     = spots;
+			this.links     = links;
+			this.hash      = hash;
+			this.base      = base;
+		}
+
+		public boolean isDelta()
+		{
+			return base != null;
+		}
+
+		/** the base column is left empty for full snapshots, the mtime column comes last */
+		String toLine()
+		{
+			return filename +'\t'+ author +'\t'+ timestamp +'\t'+ size
+			     +'\t'+ spots +'\t'+ links +'\t'+ hash +'\t'+ (base != null ? base : "") +'\t'+ mtime;
+		}
+
+		/** returns null if the line is not a valid record */
+		static Record fromLine(final String line)
+		{
+			//NB: lines written before the mtime column existed have 7 or 8 columns,
+			//    such records get mtime -1 and are thus never valid (and are re-indexed)
+			final String[] cols = line.split("\t");
+			if (cols.length < 7 || cols.length > 9) return null;
+			try {
+				final String base = cols.length > 7 && !cols[7].isEmpty() ? cols[7] : null;
+				return new Record(cols[0], cols[1], Long.parseLong(cols[2]), Long.parseLong(cols[3]),
+				                  cols.length == 9 ? Long.parseLong(cols[8]) : -1,
+				                  Integer.parseInt(cols[4]), Integer.parseInt(cols[5]), cols[6], base);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+
+	// --------------------- index management ---------------------
+	/** opens (and reads in) the index of the given dataset folder,
+	    or starts an empty one if the folder has no index yet */
+	public SnapshotIndex(final Path datasetFolder)
+	{
+		this.indexFile = datasetFolder.resolve(indexFilename);
+		load();
+	}
+
+	final Path indexFile;
+
+	/** maps filenames to their records */
+	private final Map<String,Record> records = new HashMap<>(100);
+	/** maps hashes to the records, for following chains of delta snapshots */
+	private final Map<String,Record> recordsByHash = new HashMap<>(100);
+
+	private
+	void load()
+	{
+		if (!Files.isRegularFile(indexFile)) return;
+
+		int linesCnt = 0;
+		try (BufferedReader r = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				//the later records (of the same filename) override the earlier ones
+				final Record rec = Record.fromLine(line);
+				if (rec != null) putIntoMaps(rec);
+				++linesCnt;
+			}
+		} catch (IOException e) {
+			System.out.println("Failed reading the index "+indexFile+", will rebuild it:");
+			e.printStackTrace();
+			records.clear();
+			recordsByHash.clear();
+			return;
+		}
+
+		//the index is append-only, squeeze it if it is mostly made of outdated records
+		if (linesCnt > 2*records.size() + 10) compact();
+	}
+
+	/** rewrites the index file to contain only the current records */
+	public synchronized
+	void compact()
+	{
+		final Path tmpFile = indexFile.resolveSibling(indexFilename+".tmp");
+		try {
+			try (BufferedWriter w = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+				for (Record rec : records.values())
+				{
+					w.write(rec.toLine());
+					w.newLine();
+				}
+			}
+			Files.move(tmpFile, indexFile,
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Failed compacting the index "+indexFile+":");
+			e.printStackTrace();
+		}
+	}
+
+	/** returns the record of the given file, or null if the file is not indexed */
+	public synchronized
+	Record get(final String filename)
+	{
+		return records.get(filename);
+	}
+
+	/** returns the record of a snapshot of the given content hash, or null if there is no such */
+	public synchronized
+	Record getByHash(final String hash)
+	{
+		return recordsByHash.get(hash);
+	}
+
+	/** returns the record of the given file only if the file on the disk
+	    (still) matches the record (in size and modification time), otherwise returns null */
+	public
+	Record getValid(final Path file)
+	{
+		final Record rec = get(file.getFileName().toString());
+		if (rec == null || rec.mtime < 0) return null;
+		try {
+			return Files.size(file) == rec.size
+			    && Files.getLastModifiedTime(file).toMillis() == rec.mtime ? rec : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** returns the last modification time of the file (millis since epoch),
+	    or -1 if it cannot be learned (which makes the record never valid) */
+	public static
+	long mtimeOf(final Path file)
+	{
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/** stores the record, also persistently */
+	public synchronized
+	void put(final Record rec)
+	{
+		putIntoMaps(rec);
+		try (BufferedWriter w = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			w.write(rec.toLine());
+			w.newLine();
+		} catch (IOException e) {
+			System.out.println("Failed updating the index "+indexFile+":");
+			e.printStackTrace();
+		}
+	}
+
+	private
+	void putIntoMaps(final Record rec)
+	{
+		final Record old = records.put(rec.filename, rec);
+		if (old != null && recordsByHash.get(old.hash) == old) recordsByHash.remove(old.hash);
+		recordsByHash.put(rec.hash, rec);
+	}
+
+	/** returns a snapshot (copy) of all current records */
+	public synchronized
+	Collection<Record> getAll()
+	{
+		return new ArrayList<>(records.values());
+	}
+
+
+	// --------------------- hashing ---------------------
+	/** returns SHA-256 of the file content, in hex */
+	public static
+	String hashOfFile(final Path file)
+	throws IOException
+	{
+		final MessageDigest md = ContentHasher.createHasher();
+		final byte[] buf = new byte[1 << 16];
+		try (InputStream is = Files.newInputStream(file)) {
+			int len;
+			while ((len = is.read(buf)) > 0) md.update(buf, 0, len);
+		}
+		return ContentHasher.toHex(md.digest());
+	}
+}
@@ -0,0 +1,255 @@
+package org.mastodon.tomancak.net;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.mastodon.tomancak.util.LineageFiles;
+
+/** In-memory listing of the snapshot files of ONE dataset folder, sorted by their
+    timestamps (and names). The listing is read from the disk only when it is needed
+    and is not up-to-date, which happens after a snapshot has been uploaded or after
+    the folder has been changed by anybody else (which a WatchService tells us). */
+public class SnapshotListing
+{
+	/** one snapshot file */
+	public static class Entry
+	{
+		public final String filename;
+		public final String author;
+		/** seconds since epoch (UTC), as read from the filename */
+		public final long timestamp;
+		public final long size;
+
+		Entry(final String filename, final long size)
+		{
+			this.filename = filename;
+			this.author = LineageFiles.authorOfLineageFile(filename);
+			this.timestamp = LineageFiles.dateTimeOfLineageFile(filename).toEpochSecond(ZoneOffset.UTC);
+			this.size = size;
+		}
+	}
+
+	static final Comparator<Entry> byTimeAndName
+		= Comparator.<Entry>comparingLong(e -> e.timestamp).thenComparing(e -> e.filename);
+
+	public SnapshotListing(final Path datasetFolder)
+	{
+		this.datasetFolder = datasetFolder;
+		this.watchKey = FolderWatcher.watch(datasetFolder, this);
+	}
+
+	final Path datasetFolder;
+	private final WatchKey watchKey;
+
+	/** the current listing, or null if it needs to be re-read */
+	private volatile List<Entry> entries = null;
+	/** increases with every invalidation, to notice invalidations during re-reading */
+	private final AtomicLong generation = new AtomicLong(0);
+
+	/** makes the next get() re-read the folder */
+	public void invalidate()
+	{
+		generation.incrementAndGet();
+		entries = null;
+	}
+
+	/** returns true if get() would return immediately (without reading the disk) */
+	public boolean isValid()
+	{
+		return entries != null;
+	}
+
+	/** returns the current (unmodifiable) listing, re-reads the folder if needed */
+	public List<Entry> get()
+	throws IOException
+	{
+		List<Entry> list = entries;
+		if (list != null) return list;
+
+		synchronized (this)
+		{
+			if (entries != null) return entries;
+
+			final long readGeneration = generation.get();
+			final List<Entry> newList = new ArrayList<>(1000);
+			try (Stream<Path> files = LineageFiles.listLineageFiles(datasetFolder)) {
+				files.forEach(p -> {
+					try {
+						newList.add(new Entry(p.getFileName().toString(), Files.size(p)));
+					} catch (IOException e) {
+						//the file has just disappeared, so it is not listed
+					} catch (RuntimeException e) {
+						//the filename cannot be understood, so it is not listed either
+					}
+				});
+			}
+			newList.sort(byTimeAndName);
+			list = Collections.unmodifiableList(newList);
+			//NB: if the folder changed meanwhile, the list is given out but not kept
+			if (generation.get() == readGeneration) entries = list;
+			return list;
+		}
+	}
+
+	/** stops watching the folder */
+	public void close()
+	{
+		FolderWatcher.unwatch(watchKey);
+	}
+
+
+	// --------------------- filtering ---------------------
+	/** returns the entries that pass all the given filters, where null (or false) means "no filter":
+	    'authors' lists the wanted authors, 'since' and 'until' (both inclusive) limit the timestamps,
+	    'latestPerAuthor' keeps only the newest snapshot of every author */
+	public static
+	List<Entry> filter(final List<Entry> entries, final Set<String> authors,
+	                   final Long since, final Long until, final boolean latestPerAuthor)
+	{
+		final List<Entry> out = new ArrayList<>(entries.size());
+		for (Entry e : entries)
+		{
+			if (authors != null && !authors.contains(e.author)) continue;
+			if (since != null && e.timestamp < since) continue;
+			if (until != null && e.timestamp > until) continue;
+			out.add(e);
+		}
+		if (!latestPerAuthor) return out;
+
+		//the entries are sorted, so the last one of every author wins
+		final Map<String,Entry> latest = new HashMap<>();
+		for (Entry e : out) latest.put(e.author, e);
+		final List<Entry> latestOut = new ArrayList<>(latest.values());
+		latestOut.sort(byTimeAndName);
+		return latestOut;
+	}
+
+	/** parses seconds since epoch (UTC), or the ISO date-time (e.g. 2020-04-06T23:43:15),
+	    or the date as it appears in the snapshot filenames (e.g. 2020-04-06__23-43-15) */
+	public static
+	long parseTimestamp(final String str)
+	{
+		if (str.matches("-?[0-9]+")) return Long.parseLong(str);
+		if (str.length() == 20 && str.charAt(10) == '_')
+			return LineageFiles.dateTimeOfLineageFile(str).toEpochSecond(ZoneOffset.UTC);
+		return LocalDateTime.parse(str).toEpochSecond(ZoneOffset.UTC);
+	}
+
+	/** returns the string as a JSON string literal (including the quotes) */
+	public static
+	String jsonQuote(final String str)
+	{
+		final StringBuilder sb = new StringBuilder(str.length()+2);
+		sb.append('"');
+		for (int i = 0; i < str.length(); ++i)
+		{
+			final char c = str.charAt(i);
+			switch (c)
+			{
+			case '"':  sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+				else sb.append(c);
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+
+
+	// --------------------- watching ---------------------
+	/** one thread that watches all dataset folders */
+	static class FolderWatcher implements Runnable
+	{
+		private static FolderWatcher instance = null;
+
+		private final WatchService watchService;
+		private final Map<WatchKey,SnapshotListing> listings = new ConcurrentHashMap<>(50);
+
+		private FolderWatcher(final WatchService watchService)
+		{
+			this.watchService = watchService;
+		}
+
+		/** returns null if the folder cannot be watched, the listing is then
+		    invalidated only by the uploads that go through the server */
+		static synchronized
+		WatchKey watch(final Path folder, final SnapshotListing listing)
+		{
+			try {
+				if (instance == null)
+				{
+					instance = new FolderWatcher(FileSystems.getDefault().newWatchService());
+					final Thread t = new Thread(instance, "snapshots-folders-watcher");
+					t.setDaemon(true);
+					t.start();
+				}
+				final WatchKey key = folder.register(instance.watchService,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+				instance.listings.put(key, listing);
+				return key;
+			} catch (IOException | UnsupportedOperationException e) {
+				System.out.println("Cannot watch "+folder+", will not notice changes made outside the server: "+e.getMessage());
+				return null;
+			}
+		}
+
+		static synchronized
+		void unwatch(final WatchKey key)
+		{
+			if (key == null || instance == null) return;
+			key.cancel();
+			instance.listings.remove(key);
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				final WatchKey key;
+				try {
+					key = watchService.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				boolean isRelevant = false;
+				for (WatchEvent<?> event : key.pollEvents())
+				{
+					//NB: the index and the temporary files change all the time, we ignore them
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					    || LineageFiles.lineageFilePattern.test(event.context().toString()))
+						isRelevant = true;
+				}
+
+				final SnapshotListing listing = listings.get(key);
+				if (isRelevant && listing != null) listing.invalidate();
+				if (!key.reset()) listings.remove(key);
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package org.mastodon.tomancak.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.tomancak.util.LineageDelta;
+import org.mastodon.tomancak.util.LineageFiles;
+
+/** Turns delta snapshots of ONE dataset folder back into full snapshots. A delta
+    is applied on its base, which is either a full snapshot, or a checkpoint (a full
+    snapshot rebuilt earlier), or another delta that needs to be rebuilt first.
+    Rebuilt snapshots are kept as checkpoints in a hidden sub-folder, named after
+    the hashes of the snapshots they stand for, so that every chain is walked at
+    most once and only from its latest checkpoint. These are the hashes of the
+    uploaders' files, not of the (re-serialized) checkpoints -- the hash of
+    a checkpoint's content is kept next to it and only that one is served. */
+public class SnapshotRebuilder
+{
+	/** name of the (hidden) sub-folder of the dataset folder with the rebuilt snapshots */
+	public static final String rebuiltFolderName = ".rebuilt";
+
+	/** a checkpoint is created in the background after so many deltas in a row */
+	public static int checkpointEvery = 8;
+
+	public SnapshotRebuilder(final Path datasetFolder, final SnapshotIndex snapshotIndex)
+	{
+		this.datasetFolder = datasetFolder;
+		this.rebuiltFolder = datasetFolder.resolve(rebuiltFolderName);
+		this.snapshotIndex = snapshotIndex;
+	}
+
+	final Path datasetFolder;
+	final Path rebuiltFolder;
+	final SnapshotIndex snapshotIndex;
+
+	/** returns the checkpoint file of the snapshot of the given hash */
+	public Path checkpointOf(final String hash)
+	{
+		return rebuiltFolder.resolve(hash+".mstdn");
+	}
+
+	/** canonical order of spots (see LineageDelta) of the checkpoint: the canonical
+	    id 'c' is the 'order[c]'-th spot in the checkpoint file */
+	Path orderOf(final String hash)
+	{
+		return rebuiltFolder.resolve(hash+".order");
+	}
+
+	/** hash of the content of the checkpoint */
+	Path contentHashFileOf(final String hash)
+	{
+		return rebuiltFolder.resolve(hash+".sha256");
+	}
+
+	/** returns the hash of the content of the checkpoint of the snapshot of the
+	    given hash, or null if there is no such checkpoint */
+	public String contentHashOf(final String hash)
+	throws IOException
+	{
+		final String known = contentHashes.get(hash);
+		if (known != null) return known;
+
+		final Path checkpoint = checkpointOf(hash);
+		if (!Files.isRegularFile(checkpoint)) return null;
+
+		final Path hashFile = contentHashFileOf(hash);
+		String contentHash;
+		if (Files.isRegularFile(hashFile))
+			contentHash = new String(Files.readAllBytes(hashFile), StandardCharsets.UTF_8).trim();
+		else
+		{
+			//checkpoint from before the hashes were kept
+			contentHash = SnapshotIndex.hashOfFile(checkpoint);
+			writeContentHash(hash, contentHash);
+		}
+		contentHashes.put(hash, contentHash);
+		return contentHash;
+	}
+
+	private final ConcurrentHashMap<String,String> contentHashes = new ConcurrentHashMap<>();
+
+	private
+	void writeContentHash(final String hash, final String contentHash)
+	throws IOException
+	{
+		final Path tmpHash = rebuiltFolder.resolve("."+UUID.randomUUID().toString()+".part");
+		Files.write(tmpHash, contentHash.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmpHash, contentHashFileOf(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+
+	// --------------------- rebuilding ---------------------
+	/** returns the full snapshot file of the given record: for full snapshots it is
+	    the file itself, for delta snapshots it is the checkpoint that is rebuilt
+	    first if it does not exist yet; the method may take a while and blocks */
+	public Path materialize(final SnapshotIndex.Record rec)
+	throws IOException
+	{
+		if (!rec.isDelta()) return datasetFolder.resolve(rec.filename);
+
+		final Path checkpoint = checkpointOf(rec.hash);
+		if (Files.isRegularFile(checkpoint)) return checkpoint;
+
+		synchronized (this)
+		{
+			//maybe someone else has just rebuilt it
+			if (Files.isRegularFile(checkpoint)) return checkpoint;
+			rebuild(rec);
+			return checkpoint;
+		}
+	}
+
+	/** returns true if the delta snapshot is far (in the number of deltas)
+	    from any full snapshot or checkpoint */
+	public boolean deservesCheckpoint(final SnapshotIndex.Record rec)
+	{
+		int deltas = 0;
+		SnapshotIndex.Record r = rec;
+		while (r != null && r.isDelta() && !Files.isRegularFile(checkpointOf(r.hash)))
+		{
+			if (++deltas >= checkpointEvery) return true;
+			r = snapshotIndex.getByHash(r.base);
+		}
+		return false;
+	}
+
+	/** rebuilds (a checkpoint of) the delta snapshot later on a background thread */
+	public void materializeLater(final SnapshotIndex.Record rec)
+	{
+		if (closed) return;
+		checkpointsExecutor.execute( () -> {
+			if (closed) return;
+			try {
+				final long time = System.currentTimeMillis();
+				materialize(rec);
+				System.out.println("Created checkpoint of "+datasetFolder.getFileName()+"/"+rec.filename
+					+" in "+(System.currentTimeMillis()-time)+" ms");
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Failed creating checkpoint of "+datasetFolder.getFileName()+"/"+rec.filename+":");
+				e.printStackTrace();
+			}
+		} );
+	}
+
+	/** no more checkpoints will be created in the background (the pending ones are skipped),
+	    the background thread itself is shared with the rebuilders of other datasets */
+	public void close()
+	{
+		closed = true;
+	}
+
+	private volatile boolean closed = false;
+
+	private static final ExecutorService checkpointsExecutor = Executors.newSingleThreadExecutor(r -> {
+		final Thread t = new Thread(r, "snapshots-checkpointer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private
+	void rebuild(final SnapshotIndex.Record rec)
+	throws IOException
+	{
+		//walk back the chain till a full snapshot or a checkpoint
+		final Deque<SnapshotIndex.Record> chain = new ArrayDeque<>();
+		SnapshotIndex.Record r = rec;
+		while (r.isDelta() && !Files.isRegularFile(checkpointOf(r.hash)))
+		{
+			chain.push(r);
+			final SnapshotIndex.Record base = snapshotIndex.getByHash(r.base);
+			if (base == null)
+				throw new IOException("Cannot rebuild "+rec.filename+", the base of "+r.filename+" is missing.");
+			r = base;
+		}
+
+		//load the start of the chain
+		final Model model = new Model();
+		int[] canonToPool;
+		if (r.isDelta())
+		{
+			LineageFiles.loadLineageFileIntoModel(checkpointOf(r.hash), model);
+			final int[] ranks = LineageDelta.canonicalOrderOf(model);
+			final int[] order = readOrder(orderOf(r.hash));
+			canonToPool = new int[order.length];
+			for (int c = 0; c < order.length; ++c) canonToPool[c] = ranks[order[c]];
+		}
+		else
+		{
+			LineageFiles.loadLineageFileIntoModel(datasetFolder.resolve(r.filename), model);
+			canonToPool = LineageDelta.canonicalOrderOf(model);
+		}
+
+		//apply the deltas
+		while (!chain.isEmpty())
+		{
+			r = chain.pop();
+			final LineageDelta delta = LineageDelta.read(datasetFolder.resolve(r.filename));
+			canonToPool = delta.applyTo(model, canonToPool);
+		}
+
+		//save (only) the requested end of the chain, together with
+		//its canonical order of spots expressed as ranks in the file
+		Files.createDirectories(rebuiltFolder);
+		int maxPoolIndex = -1;
+		for (int p : canonToPool) maxPoolIndex = Math.max(maxPoolIndex, p);
+		final int[] poolToRank = new int[maxPoolIndex+1];
+		int rank = 0;
+		for (Spot s : model.getGraph().vertices()) poolToRank[s.getInternalPoolIndex()] = rank++;
+		final int[] order = new int[canonToPool.length];
+		for (int c = 0; c < order.length; ++c) order[c] = poolToRank[canonToPool[c]];
+
+		final Path tmpOrder = rebuiltFolder.resolve("."+UUID.randomUUID().toString()+".part");
+		writeOrder(tmpOrder, order);
+		Files.move(tmpOrder, orderOf(rec.hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		//NB: the checkpoint appears last, its presence implies the presence of the order and hash
+		final Path tmpModel = rebuiltFolder.resolve("."+UUID.randomUUID().toString()+".part");
+		LineageFiles.saveModelIntoLineageFile(model, tmpModel);
+		final String contentHash = SnapshotIndex.hashOfFile(tmpModel);
+		writeContentHash(rec.hash, contentHash);
+		contentHashes.put(rec.hash, contentHash);
+		Files.move(tmpModel, checkpointOf(rec.hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	static
+	void writeOrder(final Path file, final int[] order)
+	throws IOException
+	{
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+			dos.writeInt(order.length);
+			for (int o : order) dos.writeInt(o);
+		}
+	}
+
+	static
+	int[] readOrder(final Path file)
+	throws IOException
+	{
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			final int[] order = new int[dis.readInt()];
+			for (int c = 0; c < order.length; ++c) order[c] = dis.readInt();
+			return order;
+		}
+	}
+}
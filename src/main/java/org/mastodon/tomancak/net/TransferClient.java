@@ -0,0 +1,284 @@
+package org.mastodon.tomancak.net;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Runs the HTTP requests (over HttpURLConnection) on a shared pool of daemon threads and
+    hands out their results as CompletableFutures. Every connection has the connect and the
+    read timeout set, a failed idempotent request is retried after an exponentially growing
+    pause, and a request is aborted (its connection is closed) when its future is cancelled.
+    The JVM keeps the connections alive and reuses them for the next requests to the same
+    server, provided the responses are read till their ends (which is what the helpers here do). */
+public class TransferClient
+{
+	/** the client shared by all FileTransfer methods */
+	public static
+	TransferClient getDefault()
+	{
+		return DefaultHolder.client;
+	}
+
+	/** how many requests the default client runs at the same time, to be set before its first use */
+	public static int defaultThreads = 8;
+
+	private static class DefaultHolder
+	{
+		static final TransferClient client = new TransferClient(defaultThreads);
+	}
+
+	/** 'threads' is how many requests can run at the same time */
+	public TransferClient(final int threads)
+	{
+		final AtomicInteger cnt = new AtomicInteger(0);
+		final ScheduledThreadPoolExecutor p = new ScheduledThreadPoolExecutor(threads, r -> {
+			final Thread t = new Thread(r, "transfer client "+cnt.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		p.setRemoveOnCancelPolicy(true);
+		this.pool = p;
+	}
+
+	private final ScheduledExecutorService pool;
+
+	public int connectTimeoutMillis = 10000;
+	public int readTimeoutMillis = 60000;
+
+	/** how many times an idempotent request is tried at most, and the pause before the
+	    first retry (which doubles with every next retry, up to the maxBackoffMillis) */
+	public int maxAttempts = 4;
+	public long initialBackoffMillis = 500;
+	public long maxBackoffMillis = 15000;
+
+
+	// --------------------- requests ---------------------
+	/** opens connections with the timeouts of the client, they are closed when the request is cancelled */
+	public interface Connector
+	{
+		HttpURLConnection open(final String url) throws IOException;
+	}
+
+	/** one attempt of a request, it is repeated if it throws a "retryable" IOException */
+	public interface Task<T>
+	{
+		T run(final Connector connector) throws IOException;
+	}
+
+	/** one attempt of a request over the given (not yet connected) connection */
+	public interface Exchange<T>
+	{
+		T exchange(final HttpURLConnection connection) throws IOException;
+	}
+
+	/** the server responded with the given (unexpected) status code */
+	public static class StatusException extends IOException
+	{
+		public final int code;
+
+		public StatusException(final int code, final String url)
+		{
+			super("Server responded "+code+" for "+url);
+			this.code = code;
+		}
+	}
+
+	/** runs the task in the background, retries it if it is 'idempotent' */
+	public <T>
+	CompletableFuture<T> submit(final boolean idempotent, final Task<T> task)
+	{
+		final Call<T> call = new Call<>(idempotent, task);
+		call.schedule(0);
+		return call;
+	}
+
+	/** runs the exchange over a connection to the 'url' in the background, retries it if it is 'idempotent' */
+	public <T>
+	CompletableFuture<T> send(final String url, final boolean idempotent, final Exchange<T> exchange)
+	{
+		return submit(idempotent, connector -> exchange.exchange(connector.open(url)));
+	}
+
+	/** GETs the 'url' and returns the lines of the response */
+	public
+	CompletableFuture<List<String>> getLines(final String url)
+	{
+		return send(url, true, conn -> {
+			expectOK(conn, url);
+			return readLines(conn);
+		});
+	}
+
+	/** returns a new connection with the timeouts of this client */
+	public
+	HttpURLConnection open(final String url)
+	throws IOException
+	{
+		final HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+		conn.setConnectTimeout(connectTimeoutMillis);
+		conn.setReadTimeout(readTimeoutMillis);
+		conn.setUseCaches(false);
+		return conn;
+	}
+
+
+	/** the future of one request, together with its current attempt */
+	class Call<T> extends CompletableFuture<T> implements Connector
+	{
+		final boolean idempotent;
+		final Task<T> task;
+		int attempts = 0;
+
+		/** to be able to abort the current attempt */
+		volatile Future<?> scheduled = null;
+		final List<HttpURLConnection> connections = new ArrayList<>(2);
+
+		Call(final boolean idempotent, final Task<T> task)
+		{
+			this.idempotent = idempotent;
+			this.task = task;
+		}
+
+		void schedule(final long delayMillis)
+		{
+			scheduled = pool.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+			//NB: cancel() might have come before 'scheduled' was set
+			if (isCancelled()) scheduled.cancel(true);
+		}
+
+		void attempt()
+		{
+			if (isDone()) return;
+			++attempts;
+			try {
+				complete( task.run(this) );
+			} catch (IOException e) {
+				if (isDone()) return;
+				if (idempotent && attempts < maxAttempts && isRetryable(e))
+				{
+					final long backoff = Math.min(initialBackoffMillis << Math.min(attempts-1, 20), maxBackoffMillis);
+					//NB: with a jitter, so that many clients failing at once do not come back at once
+					schedule(backoff/2 + ThreadLocalRandom.current().nextLong(backoff/2 + 1));
+				}
+				else completeExceptionally(e);
+			} catch (RuntimeException e) {
+				completeExceptionally(e);
+			} finally {
+				synchronized (connections) { connections.clear(); }
+			}
+		}
+
+		@Override
+		public HttpURLConnection open(final String url)
+		throws IOException
+		{
+			final HttpURLConnection conn = TransferClient.this.open(url);
+			synchronized (connections) { connections.add(conn); }
+			if (isCancelled()) throw new InterruptedIOException("Request to "+url+" was cancelled");
+			return conn;
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning)
+		{
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			final Future<?> s = scheduled;
+			if (s != null) s.cancel(true);
+			//closing the connection makes the blocked reading or writing fail right away
+			synchronized (connections) { connections.forEach(HttpURLConnection::disconnect); }
+			return cancelled;
+		}
+	}
+
+	/** timeouts, refused connections, broken connections and 5xx and 429 responses
+	    are worth trying again, a wrong URL or a missing file are not */
+	static
+	boolean isRetryable(final IOException e)
+	{
+		if (e instanceof StatusException)
+		{
+			final int code = ((StatusException)e).code;
+			return code >= 500 || code == 429;
+		}
+		return !(e instanceof FileNotFoundException || e instanceof MalformedURLException
+		      || e instanceof UnknownHostException);
+	}
+
+
+	// --------------------- helpers for the exchanges ---------------------
+	/** throws StatusException unless the response is 2xx, the (error) response is read out
+	    then so that the connection can be reused */
+	public static
+	void expectOK(final HttpURLConnection conn, final String url)
+	throws IOException
+	{
+		final int code = conn.getResponseCode();
+		if (code / 100 == 2) return;
+		drain(conn.getErrorStream());
+		throw new StatusException(code, url);
+	}
+
+	/** returns all lines of the response */
+	public static
+	List<String> readLines(final HttpURLConnection conn)
+	throws IOException
+	{
+		final List<String> lines = new ArrayList<>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) lines.add(line);
+		}
+		return lines;
+	}
+
+	/** reads the stream till its end and closes it */
+	public static
+	void drain(final InputStream is)
+	throws IOException
+	{
+		if (is == null) return;
+		try (InputStream i = is) {
+			final byte[] buf = new byte[8192];
+			while (i.read(buf) > 0) { /* just reading */ }
+		}
+	}
+
+	/** waits for the result of the future, for the callers who need to block (the future is
+	    cancelled if the waiting thread is interrupted) */
+	public static <T>
+	T await(final CompletableFuture<T> future)
+	throws IOException
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the server");
+		} catch (CancellationException e) {
+			throw new InterruptedIOException("The request was cancelled");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException("Request failed: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+}
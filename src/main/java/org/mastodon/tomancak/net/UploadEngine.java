@@ -0,0 +1,157 @@
+package org.mastodon.tomancak.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import io.undertow.server.HttpServerExchange;
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSourceChannel;
+
+import org.mastodon.tomancak.util.ContentHasher;
+
+/** Streams uploaded files from the request channel into a dataset folder. The data
+    goes through pooled direct buffers into a FileChannel of a temporary file (no copies
+    on the heap), and the file is moved to its final name only after it has arrived
+    completely, so that nobody can ever see (and download) a half-written file. */
+public class UploadEngine
+{
+	/** name of the (hidden) sub-folder of the dataset folder with files that are still arriving */
+	public static final String incomingFolderName = ".incoming";
+
+	public UploadEngine(final Path datasetFolder)
+	{
+		this.datasetFolder = datasetFolder;
+		this.incomingFolder = datasetFolder.resolve(incomingFolderName);
+	}
+
+	final Path datasetFolder;
+	final Path incomingFolder;
+
+	/** what has arrived and is now available under its final name */
+	public static class Result
+	{
+		public final Path file;
+		public final long size;
+		/** SHA-256 of the file content, in hex */
+		public final String hash;
+
+		Result(final Path file, final long size, final String hash)
+		{
+			this.file = file;
+			this.size = size;
+			this.hash = hash;
+		}
+	}
+
+
+	// --------------------- receiving ---------------------
+	/** Receives the body of the request into the file 'filename' in the dataset folder,
+	    must be called from a worker thread because it blocks while reading the request.
+	    An existing file of the same name is atomically replaced. If anything fails,
+	    nothing changes in the dataset folder and an IOException is thrown. */
+	public Result receive(final HttpServerExchange exchange, final String filename)
+	throws IOException
+	{
+		final long expectedSize = exchange.getRequestContentLength();
+		if (expectedSize > 0 && Files.getFileStore(datasetFolder).getUsableSpace() < expectedSize)
+			throw new IOException("Not enough free space for "+expectedSize+" bytes of "+filename);
+
+		final Path tmpFile = createTemporaryFile();
+		try {
+			final MessageDigest hasher = ContentHasher.createHasher();
+			long size = 0;
+
+			try (FileChannel fc = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+				//reserve the space for the whole file right away
+				if (expectedSize > 0)
+				{
+					fc.write(ByteBuffer.wrap(new byte[1]), expectedSize-1);
+					fc.position(0);
+				}
+
+				final StreamSourceChannel requestChannel = exchange.getRequestChannel();
+				final ByteBuffer buf = acquireBuffer();
+				try {
+					while (Channels.readBlocking(requestChannel, buf) >= 0)
+					{
+						buf.flip();
+						size += buf.remaining();
+						buf.mark();
+						hasher.update(buf);
+						buf.reset();
+						while (buf.hasRemaining()) fc.write(buf);
+						buf.clear();
+					}
+				} finally {
+					releaseBuffer(buf);
+				}
+
+				if (expectedSize >= 0 && size != expectedSize)
+					throw new IOException("Received "+size+" bytes of "+filename+" but "+expectedSize+" were announced");
+
+				fc.truncate(size);
+				fc.force(true);
+			}
+
+			final Path file = commit(tmpFile, filename);
+			return new Result(file, size, ContentHasher.toHex(hasher.digest()));
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmpFile);
+			throw e;
+		}
+	}
+
+	/** creates an empty temporary file in the incoming folder, on the same
+	    file system as the dataset folder so that commit() can be atomic */
+	Path createTemporaryFile()
+	throws IOException
+	{
+		Files.createDirectories(incomingFolder);
+		return Files.createFile(incomingFolder.resolve(UUID.randomUUID().toString()+".part"));
+	}
+
+	/** atomically moves the (completely arrived) temporary file to its final name */
+	Path commit(final Path tmpFile, final String filename)
+	throws IOException
+	{
+		final Path file = datasetFolder.resolve(filename);
+		Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+
+	/** returns true if the filename is a plain name that stays inside the dataset folder */
+	public static boolean isSafeFilename(final String filename)
+	{
+		return filename != null && !filename.isEmpty()
+			&& filename.indexOf('/') < 0 && filename.indexOf('\\') < 0
+			&& !filename.startsWith(".");
+	}
+
+
+	// --------------------- buffers ---------------------
+	static final int bufferSize = 1 << 18;
+
+	/** direct buffers are expensive to create and are not promptly collected, we recycle them */
+	private static final BlockingQueue<ByteBuffer> buffersPool = new ArrayBlockingQueue<>(32);
+
+	static ByteBuffer acquireBuffer()
+	{
+		final ByteBuffer buf = buffersPool.poll();
+		return buf != null ? buf : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	static void releaseBuffer(final ByteBuffer buf)
+	{
+		buf.clear();
+		buffersPool.offer(buf); //the buffer is dropped if the pool is full
+	}
+}
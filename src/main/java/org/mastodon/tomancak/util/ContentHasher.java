@@ -0,0 +1,90 @@
+package org.mastodon.tomancak.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of the raw entries of a snapshot (SnapshotHeader.rawDigest), independent of how they are compressed:
+ * every entry is cut into blocks of 'blockSize' bytes (at least one, the last may be shorter),
+ * every block is hashed with SHA-256, and the raw digest is SHA-256 of all the block hashes
+ * of all entries in the order of writing. The block hashes can thus be computed in parallel.
+ * It is not the hash of the snapshot file (SHA-256 of its bytes), by which the snapshots are
+ * indexed, served and cached.
+ */
+public class ContentHasher
+{
+	static final int blockSize = 1 << 20;
+
+	private final MessageDigest contentDigest = createHasher();
+	private final MessageDigest blockDigest = createHasher();
+	private int blockLength = 0;
+	private boolean entryHasBlocks = false;
+
+	/** hashes the data of the current entry, for sequential writers */
+	void update(final byte[] data, int off, int len)
+	{
+		while (len > 0)
+		{
+			//NB: full block is closed only when more data comes, so the last block is never empty
+			if (blockLength == blockSize) closeBlock();
+			final int n = Math.min(len, blockSize - blockLength);
+			blockDigest.update(data, off, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	void update(final int b)
+	{
+		if (blockLength == blockSize) closeBlock();
+		blockDigest.update((byte)b);
+		++blockLength;
+	}
+
+	private void closeBlock()
+	{
+		contentDigest.update(blockDigest.digest());
+		blockLength = 0;
+		entryHasBlocks = true;
+	}
+
+	/** ends the current entry, for sequential writers */
+	void finishEntry()
+	{
+		if (blockLength > 0 || !entryHasBlocks) closeBlock();
+		entryHasBlocks = false;
+	}
+
+	/** adds hash of the next block, for writers that hash the blocks themselves */
+	void addBlockHash(final byte[] blockHash)
+	{
+		contentDigest.update(blockHash);
+	}
+
+	/** returns the raw digest in hex, and resets this hasher */
+	String digest()
+	{
+		return toHex(contentDigest.digest());
+	}
+
+	/** returns a new SHA-256 digest, the hash of all snapshots and their parts */
+	public static
+	MessageDigest createHasher()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static
+	String toHex(final byte[] digest)
+	{
+		final StringBuilder sb = new StringBuilder(2*digest.length);
+		for (byte b : digest) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
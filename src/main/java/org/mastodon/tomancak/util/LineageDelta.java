@@ -0,0 +1,326 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Changes of a lineage since its base snapshot: removed links and spots, modified
+ * (moved) spots, and added spots and links. Spots are referred to by their "canonical ids":
+ * For a full snapshot, these are the ranks of the spots in the order in which they appear
+ * in the snapshot file (which is the order of iterating the spots of the saved model).
+ * For a snapshot created from a base with a delta, these are the surviving base spots
+ * (in the order of their base ids) followed by the added spots (in the order of the delta).
+ * Both sides (client recording the changes and server applying them) follow this rule,
+ * and so the delta never refers to the internal (and volatile) indices of the Mastodon pools.
+ *
+ * The delta file starts with a short plain header (magic, hashes, spots and links counts)
+ * followed by the gzipped changes.
+ */
+public class LineageDelta
+{
+	static final int MAGIC = 0x4D444C54; //"MDLT"
+	static final int VERSION = 1;
+
+	/** hash of the snapshot this delta is applied on */
+	public String baseHash;
+	/** hash of the snapshot this delta creates */
+	public String hash;
+	/** counts after the delta is applied */
+	public int spots, links;
+
+	/** number of spots in the base snapshot */
+	int baseSpotsCnt;
+
+	/** pairs of base ids (source,target) */
+	int[] removedLinks = new int[0];
+	/** base ids, ascending */
+	int[] removedSpots = new int[0];
+
+	/** base ids */
+	int[] modifiedSpots = new int[0];
+	SpotData[] modifiedSpotsData = new SpotData[0];
+
+	SpotData[] addedSpots = new SpotData[0];
+	/** pairs of (source,target) where ids below baseSpotsCnt are base ids,
+	    and the id baseSpotsCnt+k refers to the k-th added spot */
+	int[] addedLinks = new int[0];
+
+
+	static class SpotData
+	{
+		int timepoint;
+		final double[] pos = new double[3];
+		final double[][] cov = new double[3][3];
+		/** empty if the spot has no label of its own */
+		String label = "";
+
+		SpotData() {}
+
+		SpotData(final Spot s)
+		{
+			timepoint = s.getTimepoint();
+			s.localize(pos);
+			s.getCovariance(cov);
+			//NB: a spot without a label tells its (client-side) pool index instead, which is not sent
+			final String l = s.getLabel();
+			if (l != null && !l.equals(Integer.toString(s.getInternalPoolIndex()))) label = l;
+		}
+
+		void write(final DataOutputStream dos) throws IOException
+		{
+			dos.writeInt(timepoint);
+			for (double p : pos) dos.writeDouble(p);
+			for (int r = 0; r < 3; ++r)
+				for (int c = r; c < 3; ++c) dos.writeDouble(cov[r][c]);
+			dos.writeUTF(label);
+		}
+
+		static SpotData read(final DataInputStream dis) throws IOException
+		{
+			final SpotData sd = new SpotData();
+			sd.timepoint = dis.readInt();
+			for (int d = 0; d < 3; ++d) sd.pos[d] = dis.readDouble();
+			for (int r = 0; r < 3; ++r)
+				for (int c = r; c < 3; ++c) sd.cov[r][c] = sd.cov[c][r] = dis.readDouble();
+			sd.label = dis.readUTF();
+			return sd;
+		}
+	}
+
+	/** returns the number of individual changes in this delta */
+	public int size()
+	{
+		return removedLinks.length/2 + removedSpots.length + modifiedSpots.length
+			+ addedSpots.length + addedLinks.length/2;
+	}
+
+
+	// --------------- applying ---------------
+	/**
+	 * Applies the changes on the model that holds the base snapshot. The 'canonToPool'
+	 * maps canonical ids of the base snapshot to internal pool indices of the spots in the
+	 * model. Returns the same mapping but for the snapshot created by this delta.
+	 */
+	public int[] applyTo(final Model model, final int[] canonToPool)
+	throws IOException
+	{
+		if (canonToPool.length != baseSpotsCnt)
+			throw new IOException("Delta expects a base of "+baseSpotsCnt
+				+" spots but was given a base of "+canonToPool.length+" spots.");
+
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap<Spot,Link> ids = graph.getGraphIdBimap();
+		final Spot s = graph.vertexRef();
+		final Spot t = graph.vertexRef();
+		final Link l = graph.edgeRef();
+
+		try {
+			for (int i = 0; i < removedLinks.length; i += 2)
+			{
+				ids.getVertex(canonToPool[removedLinks[i]], s);
+				ids.getVertex(canonToPool[removedLinks[i+1]], t);
+				final Link e = graph.getEdge(s, t, l);
+				if (e != null) graph.remove(e);
+			}
+
+			for (int i = 0; i < modifiedSpots.length; ++i)
+			{
+				final SpotData sd = modifiedSpotsData[i];
+				ids.getVertex(canonToPool[modifiedSpots[i]], s);
+				s.setPosition(sd.pos);
+				s.setCovariance(sd.cov);
+				if (!sd.label.isEmpty()) s.setLabel(sd.label);
+			}
+
+			final boolean[] isRemoved = new boolean[baseSpotsCnt];
+			for (int id : removedSpots)
+			{
+				isRemoved[id] = true;
+				graph.remove( ids.getVertex(canonToPool[id], s) );
+			}
+
+			final int[] addedPool = new int[addedSpots.length];
+			for (int k = 0; k < addedSpots.length; ++k)
+			{
+				final SpotData sd = addedSpots[k];
+				final Spot ns = graph.addVertex(s).init(sd.timepoint, sd.pos, sd.cov);
+				if (!sd.label.isEmpty()) ns.setLabel(sd.label);
+				addedPool[k] = ns.getInternalPoolIndex();
+			}
+
+			for (int i = 0; i < addedLinks.length; i += 2)
+			{
+				ids.getVertex(poolIndexOf(addedLinks[i],   canonToPool, addedPool), s);
+				ids.getVertex(poolIndexOf(addedLinks[i+1], canonToPool, addedPool), t);
+				graph.addEdge(s, t, l).init();
+			}
+
+			//the new canonical order: surviving base spots, then the added ones
+			final int[] newCanonToPool = new int[baseSpotsCnt - removedSpots.length + addedSpots.length];
+			int c = 0;
+			for (int id = 0; id < baseSpotsCnt; ++id)
+				if (!isRemoved[id]) newCanonToPool[c++] = canonToPool[id];
+			for (int p : addedPool) newCanonToPool[c++] = p;
+			return newCanonToPool;
+		} finally {
+			graph.releaseRef(s);
+			graph.releaseRef(t);
+			graph.releaseRef(l);
+		}
+	}
+
+	private
+	int poolIndexOf(final int id, final int[] canonToPool, final int[] addedPool)
+	{
+		return id < baseSpotsCnt ? canonToPool[id] : addedPool[id - baseSpotsCnt];
+	}
+
+	/** returns canonical ids of a full snapshot loaded into the model,
+	    that is, pool indices of the spots in the order of iterating them */
+	public static
+	int[] canonicalOrderOf(final Model model)
+	{
+		return canonicalOrderOf(model.getGraph());
+	}
+
+	public static
+	int[] canonicalOrderOf(final ModelGraph graph)
+	{
+		final int[] canonToPool = new int[graph.vertices().size()];
+		int c = 0;
+		for (Spot s : graph.vertices()) canonToPool[c++] = s.getInternalPoolIndex();
+		return canonToPool;
+	}
+
+
+	// --------------- file I/O ---------------
+	public
+	void write(final OutputStream os)
+	throws IOException
+	{
+		final DataOutputStream header = new DataOutputStream(os);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeUTF(baseHash);
+		header.writeUTF(hash);
+		header.writeInt(spots);
+		header.writeInt(links);
+		header.flush();
+
+		final GZIPOutputStream gz = new GZIPOutputStream(os, 1 << 16);
+		final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(gz, 1 << 16));
+		dos.writeInt(baseSpotsCnt);
+		writeInts(dos, removedLinks);
+		writeInts(dos, removedSpots);
+		writeInts(dos, modifiedSpots);
+		for (SpotData sd : modifiedSpotsData) sd.write(dos);
+		dos.writeInt(addedSpots.length);
+		for (SpotData sd : addedSpots) sd.write(dos);
+		writeInts(dos, addedLinks);
+		dos.flush();
+		gz.finish();
+	}
+
+	public
+	byte[] toBytes()
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(1 << 12);
+		try {
+			write(bos);
+		} catch (IOException e) {
+			//cannot happen with ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	public static
+	LineageDelta read(final Path file)
+	throws IOException
+	{
+		try (InputStream is = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+			final LineageDelta d = readHeader(new DataInputStream(is));
+			final DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(is, 1 << 16), 1 << 16));
+			d.baseSpotsCnt = dis.readInt();
+			d.removedLinks = readInts(dis);
+			d.removedSpots = readInts(dis);
+			d.modifiedSpots = readInts(dis);
+			d.modifiedSpotsData = new SpotData[d.modifiedSpots.length];
+			for (int i = 0; i < d.modifiedSpotsData.length; ++i) d.modifiedSpotsData[i] = SpotData.read(dis);
+			d.addedSpots = new SpotData[dis.readInt()];
+			for (int i = 0; i < d.addedSpots.length; ++i) d.addedSpots[i] = SpotData.read(dis);
+			d.addedLinks = readInts(dis);
+			return d;
+		}
+	}
+
+	/** reads only the plain header (without the changes), or returns null if the file is not a delta */
+	public static
+	LineageDelta readHeader(final Path file)
+	throws IOException
+	{
+		if (!isDeltaFile(file)) return null;
+		try (InputStream is = Files.newInputStream(file)) {
+			return readHeader(new DataInputStream(is));
+		}
+	}
+
+	private static
+	LineageDelta readHeader(final DataInputStream dis)
+	throws IOException
+	{
+		if (dis.readInt() != MAGIC) throw new IOException("Not a lineage delta file.");
+		if (dis.readInt() != VERSION) throw new IOException("Unsupported version of a lineage delta file.");
+		final LineageDelta d = new LineageDelta();
+		d.baseHash = dis.readUTF();
+		d.hash = dis.readUTF();
+		d.spots = dis.readInt();
+		d.links = dis.readInt();
+		return d;
+	}
+
+	/** returns true if the file starts as a lineage delta file */
+	public static
+	boolean isDeltaFile(final Path file)
+	throws IOException
+	{
+		try (DataInputStream dis = new DataInputStream(Files.newInputStream(file))) {
+			return dis.readInt() == MAGIC;
+		} catch (java.io.EOFException e) {
+			return false;
+		}
+	}
+
+	private static
+	void writeInts(final DataOutputStream dos, final int[] ints)
+	throws IOException
+	{
+		dos.writeInt(ints.length);
+		for (int i : ints) dos.writeInt(i);
+	}
+
+	private static
+	int[] readInts(final DataInputStream dis)
+	throws IOException
+	{
+		final int[] ints = new int[dis.readInt()];
+		for (int i = 0; i < ints.length; ++i) ints[i] = dis.readInt();
+		return ints;
+	}
+}
@@ -7,6 +7,7 @@ import org.mastodon.mamut.project.MamutProject;
 import org.mastodon.mamut.importer.ModelImporter;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.File;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
@@ -16,8 +17,15 @@ import java.util.stream.Stream;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
 import java.util.Date;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
 
 public class LineageFiles
 {
@@ -26,9 +34,11 @@ public class LineageFiles
 	final SimpleDateFormat dateFormatter
 		= new SimpleDateFormat("yyyy-MM-dd__HH-mm-ss__");
 
+	/** tests the whole filename, including that its date part is a real date (e.g. not 2020-02-30) */
 	static public
 	final Predicate<String> lineageFilePattern
-		= Pattern.compile("[2-9][0-9][0-9][0-9]-[01][0-9]-[0-3][0-9]__[012][0-9]-[0-5][0-9]-[0-5][0-9]__.*\\.mstdn").asPredicate();
+		= Pattern.compile("^[2-9][0-9][0-9][0-9]-[01][0-9]-[0-3][0-9]__[012][0-9]-[0-5][0-9]-[0-5][0-9]__.*\\.mstdn$").asPredicate()
+		  .and(LineageFiles::hasValidDate);
 
 
 	static public
@@ -66,6 +76,31 @@ public class LineageFiles
 		return filename.substring(0,20);
 	}
 
+	/** parses the date part of the filename, e.g., "2020-04-06__23-43-15" */
+	static public
+	LocalDateTime dateTimeOfLineageFile(final String filename)
+	{
+		final String date = dateOfLineageFile(filename);
+		return LocalDateTime.of(
+				Integer.parseInt(date.substring(0,4)),
+				Integer.parseInt(date.substring(5,7)),
+				Integer.parseInt(date.substring(8,10)),
+				Integer.parseInt(date.substring(12,14)),
+				Integer.parseInt(date.substring(15,17)),
+				Integer.parseInt(date.substring(18,20)) );
+	}
+
+	static private
+	boolean hasValidDate(final String filename)
+	{
+		try {
+			dateTimeOfLineageFile(filename);
+			return true;
+		} catch (DateTimeException e) {
+			return false;
+		}
+	}
+
 	static public
 	String authorOfLineageFile(final String filename)
 	{
@@ -93,21 +128,83 @@ public class LineageFiles
 	}
 
 
+	/** snapshots with uncompressed entries are memory-mapped, others are read via Mastodon's reader */
 	static public
 	void loadLineageFileIntoModel(final Path filename, final Model model)
 	throws IOException
 	{
-		final ZippedModelReader reader = new ZippedModelReader(filename);
+		final MamutProject.ProjectReader reader = MappedZippedModelReader.isStoredSnapshot(filename)
+			? new MappedZippedModelReader(filename)
+			: new ZippedModelReader(filename);
 		model.loadRaw( reader );
 		reader.close();
 	}
 
+	/** how the snapshots can be saved, see setCompression() */
+	static public final String COMPRESSION_STORED = "stored";
+	static public final String COMPRESSION_FAST = "fast";
+	static public final String COMPRESSION_DEFAULT = "default";
+	static public final String COMPRESSION_MAX = "max";
+	static public final String COMPRESSION_MASTODON = "Mastodon's writer";
+
+	/** Sets how the snapshots are saved from now on: "stored" (not compressed at all, the largest
+	    files but the fastest to save, and such snapshots are read memory-mapped), "fast", "default"
+	    (the level Mastodon uses) or "max" compression (these are all compressed on multiple threads),
+	    or "Mastodon's writer" (Mastodon's own single-threaded writer with its fixed compression level,
+	    the fallback if anything goes wrong with the others). */
+	static public
+	void setCompression(final String compression)
+	{
+		switch (compression)
+		{
+		case COMPRESSION_STORED:   compressionLevel = Deflater.NO_COMPRESSION; break;
+		case COMPRESSION_FAST:     compressionLevel = Deflater.BEST_SPEED; break;
+		case COMPRESSION_DEFAULT:  compressionLevel = Deflater.DEFAULT_COMPRESSION; break;
+		case COMPRESSION_MAX:      compressionLevel = Deflater.BEST_COMPRESSION; break;
+		case COMPRESSION_MASTODON: break;
+		default:
+			throw new IllegalArgumentException("Unknown compression of snapshots: "+compression);
+		}
+		parallelCompression = !compression.equals(COMPRESSION_MASTODON);
+		LineageFiles.compression = compression;
+	}
+
+	static public
+	String getCompression()
+	{
+		return compression;
+	}
+
+	static private volatile String compression = COMPRESSION_DEFAULT;
+	static private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	static private volatile boolean parallelCompression = true;
+
 	static public
 	void saveModelIntoLineageFile(final Model model, final Path filename)
 	throws IOException
 	{
-		final ZippedModelWriter writer = new ZippedModelWriter(filename);
+		final SnapshotHeader header = SnapshotHeader.describe(model, filename);
+		final MamutProject.ProjectWriter writer = parallelCompression
+			? new ParallelZippedModelWriter(filename, compressionLevel, ForkJoinPool.commonPool(), header)
+			: new ZippedModelWriter(filename, header);
 		model.saveRaw( writer );
 		writer.close();
 	}
+
+	/** reads only the header entry of the snapshot (which is cheap, the zip central
+	    directory tells where the entry is), returns null if the snapshot has no header
+	    (older snapshots, or delta snapshots) */
+	static public
+	SnapshotHeader readSnapshotHeader(final Path filename)
+	throws IOException
+	{
+		if (LineageDelta.isDeltaFile(filename)) return null;
+		try (ZipFile zip = new ZipFile(filename.toFile())) {
+			final ZipEntry entry = zip.getEntry(SnapshotHeader.entryName);
+			if (entry == null) return null;
+			try (InputStream is = zip.getInputStream(entry)) {
+				return SnapshotHeader.read(is);
+			}
+		}
+	}
 }
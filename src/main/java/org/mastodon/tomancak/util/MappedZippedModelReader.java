@@ -0,0 +1,230 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.mamut.project.MamutProject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The same as ZippedModelReader but for snapshots whose entries are "stored"
+ * (not compressed, see ParallelZippedModelWriter with Deflater.NO_COMPRESSION):
+ * the entries are memory-mapped and read directly from the mapped regions,
+ * without any inflating and without any intermediate buffers of the zip streams.
+ */
+public class MappedZippedModelReader implements MamutProject.ProjectReader
+{
+	public MappedZippedModelReader(final Path filename) throws IOException
+	{
+		channel = FileChannel.open(filename, StandardOpenOption.READ);
+		try {
+			entries = readCentralDirectory(channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		this.filename = filename;
+	}
+
+	private final Path filename;
+	private final FileChannel channel;
+	private final Map<String,Entry> entries;
+
+	/** returns true if the snapshot file has both raw entries stored (not compressed) */
+	public static
+	boolean isStoredSnapshot(final Path filename)
+	{
+		try (FileChannel ch = FileChannel.open(filename, StandardOpenOption.READ)) {
+			final Map<String,Entry> e = readCentralDirectory(ch);
+			return e.containsKey("model.raw") && e.get("model.raw").isStored()
+			    && e.containsKey("tags.raw")  && e.get("tags.raw").isStored();
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+
+	// -------- zip structures --------
+	static class Entry
+	{
+		int method;
+		long size;
+		long localHeaderOffset;
+
+		boolean isStored()
+		{
+			return method == 0;
+		}
+	}
+
+	/** reads the list of entries from the end of the zip file */
+	static
+	Map<String,Entry> readCentralDirectory(final FileChannel ch) throws IOException
+	{
+		//the end record is the last 22 bytes, unless the file has a comment
+		final long fileSize = ch.size();
+		final int tailSize = (int)Math.min(fileSize, 22 + 0xFFFF);
+		final ByteBuffer tail = readAt(ch, fileSize - tailSize, tailSize);
+		int endPos = tailSize - 22;
+		while (endPos >= 0 && tail.getInt(endPos) != 0x06054b50) --endPos;
+		if (endPos < 0) throw new IOException("Not a zip file.");
+
+		final int entriesCnt = tail.getShort(endPos + 10) & 0xFFFF;
+		final long centralSize = tail.getInt(endPos + 12) & 0xFFFFFFFFL;
+		final long centralOffset = tail.getInt(endPos + 16) & 0xFFFFFFFFL;
+
+		final Map<String,Entry> entries = new HashMap<>(4);
+		final ByteBuffer central = readAt(ch, centralOffset, (int)centralSize);
+		int pos = 0;
+		for (int i = 0; i < entriesCnt; ++i)
+		{
+			if (central.getInt(pos) != 0x02014b50) throw new IOException("Corrupted zip central directory.");
+			final Entry e = new Entry();
+			e.method = central.getShort(pos + 10) & 0xFFFF;
+			final long compressedSize = central.getInt(pos + 20) & 0xFFFFFFFFL;
+			e.size = central.getInt(pos + 24) & 0xFFFFFFFFL;
+			final int nameLength = central.getShort(pos + 28) & 0xFFFF;
+			final int extraLength = central.getShort(pos + 30) & 0xFFFF;
+			final int commentLength = central.getShort(pos + 32) & 0xFFFF;
+			e.localHeaderOffset = central.getInt(pos + 42) & 0xFFFFFFFFL;
+
+			final byte[] name = new byte[nameLength];
+			central.position(pos + 46);
+			central.get(name);
+			if (e.isStored() && compressedSize != e.size) throw new IOException("Corrupted stored zip entry.");
+			entries.put(new String(name, StandardCharsets.UTF_8), e);
+
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	static
+	ByteBuffer readAt(final FileChannel ch, final long position, final int length) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining())
+			if (ch.read(buf, position + buf.position()) < 0) throw new IOException("Unexpected end of the zip file.");
+		buf.flip();
+		return buf;
+	}
+
+	/** maps the data of the (stored) entry */
+	private
+	InputStream openEntry(final String name) throws IOException
+	{
+		final Entry e = entries.get(name);
+		if (e == null) throw new IOException("No "+name+" in "+filename);
+		if (!e.isStored()) throw new IOException("Entry "+name+" in "+filename+" is compressed, cannot be mapped.");
+		if (e.size > Integer.MAX_VALUE) throw new IOException("Entry "+name+" in "+filename+" is too large to be mapped.");
+
+		//the data follows the local header whose extra field may differ from the central one
+		final ByteBuffer header = readAt(channel, e.localHeaderOffset, 30);
+		if (header.getInt(0) != 0x04034b50) throw new IOException("Corrupted zip local header.");
+		final long dataOffset = e.localHeaderOffset + 30
+			+ (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+
+		return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, e.size));
+	}
+
+	/** InputStream that reads straight from the (mapped) buffer */
+	static class MappedInputStream extends InputStream
+	{
+		private final ByteBuffer buf;
+
+		MappedInputStream(final ByteBuffer buf)
+		{
+			this.buf = buf;
+		}
+
+		@Override
+		public int read()
+		{
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+		{
+			if (len == 0) return 0;
+			if (!buf.hasRemaining()) return -1;
+			final int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(final long n)
+		{
+			final int skipped = (int)Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return buf.remaining();
+		}
+	}
+
+
+	// -------- the zip entries --------
+	@Override
+	public InputStream getRawModelInputStream() throws IOException
+	{
+		return openEntry("model.raw");
+	}
+
+	@Override
+	public InputStream getRawTagsInputStream() throws IOException
+	{
+		return openEntry("tags.raw");
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		//NB: the mapped regions stay valid (until garbage collected) even after the channel is closed
+		channel.close();
+	}
+
+
+	/** fake input stream that saves nothing */
+	private final InputStream nullOutput = new InputStream() {
+		@Override
+		public int read()
+		{ return 0; /* does nothing, intentionally */ }
+	};
+
+	// -------- methods that offer "no-read" streams --------
+	@Override
+	public InputStream getProjectXmlInputStream()
+	{
+		return nullOutput;
+	}
+
+	@Override
+	public InputStream getFeatureInputStream(String featureKey)
+	{
+		return nullOutput;
+	}
+
+	@Override
+	public Collection<String> getFeatureKeys() {
+		return null;
+	}
+
+	@Override
+	public InputStream getGuiInputStream() throws IOException {
+		return null;
+	}
+}
@@ -0,0 +1,424 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTags;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.spatial.VertexPositionListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Listens to a Model and records which spots and links have been added, removed
+ * or moved since the last reported snapshot (the "base"), and creates LineageDelta
+ * of these. The recorder must see all changes since the base was saved, that's why
+ * a delta can be created only after the first full snapshot is reported with this
+ * recorder attached. Changes that the recorder cannot follow (e.g., reloading the
+ * whole model) make it require a full snapshot again.
+ *
+ * Only the geometry of spots (position, covariance) and the structure of the graph
+ * are recorded in the delta (spots whose covariance was changed without moving them, which
+ * no listener tells, are found by comparing them with the base, as the labels and tags below), together with the labels of added and moved spots. The delta
+ * cannot carry tags nor labels of other spots, so if these were modified (as found by
+ * comparing them with the base when the delta is to be created), no delta is created and
+ * a full snapshot is needed.
+ */
+public class ModelChangesRecorder
+implements GraphListener<Spot,Link>, VertexPositionListener<Spot>
+{
+	/** returns the recorder attached to the model, attaches a new one if there was none */
+	public static synchronized
+	ModelChangesRecorder of(final Model model)
+	{
+		return recorders.computeIfAbsent(model, ModelChangesRecorder::new);
+	}
+	private static final Map<Model,ModelChangesRecorder> recorders = new WeakHashMap<>();
+
+	private ModelChangesRecorder(final Model model)
+	{
+		this.graph = model.getGraph();
+		this.ref = graph.vertexRef();
+		this.tagSetModel = model.getTagSetModel();
+		graph.addGraphListener(this);
+		graph.addVertexPositionListener(this);
+	}
+
+	private final ModelGraph graph;
+	private final Spot ref;
+	private final TagSetModel<Spot,Link> tagSetModel;
+
+	/** hash of the base snapshot, null if there is no base (and a full snapshot is needed) */
+	private String baseHash = null;
+	private int baseSpotsCnt = 0;
+
+	/** maps pool indices of spots to their canonical ids in the base, -1 for spots not in the base */
+	private int[] poolToBase = new int[0];
+
+	private final BitSet removedBaseSpots = new BitSet();
+	private final BitSet movedBaseSpots = new BitSet();
+	/** pool indices of added (and not removed) spots, in the order of addition */
+	private final Set<Integer> addedSpots = new LinkedHashSet<>();
+	/** pool indices of added (and not removed) links, in the order of addition */
+	private final Set<Integer> addedLinks = new LinkedHashSet<>();
+	/** base links that were removed, as source and target base ids */
+	private final Set<Long> removedBaseLinks = new LinkedHashSet<>();
+
+	/** labels and tags (see tagsOf()) of the base spots, by base ids */
+	private String[] baseLabels = new String[0];
+	private int[] baseSpotTags = new int[0];
+	/** hashes of the covariances of the base spots, by base ids */
+	private long[] baseShapes = new long[0];
+	private final double[][] cov = new double[3][3];
+	/** tags of the tagged base links, by source and target base ids */
+	private final Map<Long,Integer> baseLinkTags = new HashMap<>();
+	/** the tag sets (and their tags) defined in the base */
+	private int baseTagSetsSignature = 0;
+
+
+	// --------------- reporting ---------------
+	/** returns the hash of the base snapshot if a delta can be created, or null if not */
+	public synchronized
+	String getBaseHash()
+	{
+		return baseHash;
+	}
+
+	/** Makes the current state of the model the new base, should be called right after
+	    the model was saved into a full snapshot of the given hash and before any other
+	    change of the model can happen (that is, under the model's read lock). */
+	public synchronized
+	void rebase(final String hash)
+	{
+		final int[] canonToPool = LineageDelta.canonicalOrderOf(graph);
+		int maxPoolIndex = -1;
+		for (int p : canonToPool) maxPoolIndex = Math.max(maxPoolIndex, p);
+
+		poolToBase = new int[maxPoolIndex+1];
+		Arrays.fill(poolToBase, -1);
+		for (int c = 0; c < canonToPool.length; ++c) poolToBase[canonToPool[c]] = c;
+		baseSpotsCnt = canonToPool.length;
+
+		clearChanges();
+		recordAttributes();
+		baseHash = hash;
+	}
+
+	/** Creates a delta from the base to the current state of the model, and makes the
+	    current state the new base of the given hash. It must be called under the same
+	    conditions as rebase(), returns null if there is no base to create the delta from. */
+	public synchronized
+	LineageDelta cutDelta(final String hash)
+	{
+		if (baseHash == null) return null;
+		if (attributesChanged())
+		{
+			invalidate();
+			return null;
+		}
+
+		final LineageDelta d = new LineageDelta();
+		d.baseHash = baseHash;
+		d.hash = hash;
+		d.spots = graph.vertices().size();
+		d.links = graph.edges().size();
+		d.baseSpotsCnt = baseSpotsCnt;
+
+		d.removedLinks = new int[2*removedBaseLinks.size()];
+		int i = 0;
+		for (long pair : removedBaseLinks)
+		{
+			d.removedLinks[i++] = (int)(pair >> 32);
+			d.removedLinks[i++] = (int)pair;
+		}
+
+		d.removedSpots = removedBaseSpots.stream().toArray();
+
+		//new canonical ids: surviving base spots keep their order, added spots follow
+		final int[] baseToNew = new int[baseSpotsCnt];
+		int newId = 0;
+		for (int b = 0; b < baseSpotsCnt; ++b)
+			baseToNew[b] = removedBaseSpots.get(b) ? -1 : newId++;
+
+		final List<Integer> moved = new ArrayList<>(movedBaseSpots.cardinality());
+		final List<LineageDelta.SpotData> movedData = new ArrayList<>(movedBaseSpots.cardinality());
+		final int[] addedPool = new int[addedSpots.size()];
+		final LineageDelta.SpotData[] addedData = new LineageDelta.SpotData[addedSpots.size()];
+
+		//NB: position of every spot is read only now, it is the latest one
+		for (int p = 0; p < poolToBase.length; ++p)
+		{
+			final int b = poolToBase[p];
+			if (b >= 0 && movedBaseSpots.get(b))
+			{
+				moved.add(b);
+				movedData.add(new LineageDelta.SpotData(graph.getGraphIdBimap().getVertex(p, ref)));
+			}
+		}
+		i = 0;
+		for (int p : addedSpots)
+		{
+			addedPool[i] = p;
+			addedData[i++] = new LineageDelta.SpotData(graph.getGraphIdBimap().getVertex(p, ref));
+		}
+		d.modifiedSpots = moved.stream().mapToInt(Integer::intValue).toArray();
+		d.modifiedSpotsData = movedData.toArray(new LineageDelta.SpotData[0]);
+		d.addedSpots = addedData;
+
+		//ids of added spots in the delta (see LineageDelta.addedLinks)
+		final int[] newPoolToId = poolToBase.length >= maxOf(addedPool)+1 ? poolToBase.clone()
+		                        : Arrays.copyOf(poolToBase, maxOf(addedPool)+1);
+		for (int k = 0; k < addedPool.length; ++k) newPoolToId[addedPool[k]] = baseSpotsCnt + k;
+
+		final Link lRef = graph.edgeRef();
+		final Spot sRef = graph.vertexRef();
+		d.addedLinks = new int[2*addedLinks.size()];
+		i = 0;
+		for (int l : addedLinks)
+		{
+			final Link link = graph.getGraphIdBimap().getEdge(l, lRef);
+			d.addedLinks[i++] = newPoolToId[ link.getSource(sRef).getInternalPoolIndex() ];
+			d.addedLinks[i++] = newPoolToId[ link.getTarget(sRef).getInternalPoolIndex() ];
+		}
+		graph.releaseRef(lRef);
+		graph.releaseRef(sRef);
+
+		//advance the base
+		for (int p = 0; p < newPoolToId.length; ++p)
+		{
+			final int id = newPoolToId[p];
+			newPoolToId[p] = id < 0 ? -1 : (id < baseSpotsCnt ? baseToNew[id] : newId + id - baseSpotsCnt);
+		}
+		poolToBase = newPoolToId;
+		baseSpotsCnt = newId + addedPool.length;
+		clearChanges();
+		recordAttributes();
+		baseHash = hash;
+
+		return d;
+	}
+
+	/** forgets the base, the next report must be a full snapshot */
+	public synchronized
+	void invalidate()
+	{
+		baseHash = null;
+		clearChanges();
+	}
+
+	private
+	void clearChanges()
+	{
+		removedBaseSpots.clear();
+		movedBaseSpots.clear();
+		addedSpots.clear();
+		addedLinks.clear();
+		removedBaseLinks.clear();
+	}
+
+	// --------------- shapes, labels and tags ---------------
+	/** remembers the covariances, labels and tags of the (just made) base */
+	private
+	void recordAttributes()
+	{
+		final List<TagSetStructure.TagSet> tagSets = tagSetModel.getTagSetStructure().getTagSets();
+		final ObjTags<Spot> spotTags = tagSetModel.getVertexTags();
+		final ObjTags<Link> linkTags = tagSetModel.getEdgeTags();
+		baseTagSetsSignature = signatureOf(tagSets);
+
+		baseLabels = new String[baseSpotsCnt];
+		baseSpotTags = new int[baseSpotsCnt];
+		baseShapes = new long[baseSpotsCnt];
+		for (Spot s : graph.vertices())
+		{
+			final int b = baseIdOf(s);
+			if (b < 0) continue;
+			baseShapes[b] = shapeOf(s);
+			baseLabels[b] = s.getLabel();
+			baseSpotTags[b] = tagsOf(spotTags, tagSets, s);
+		}
+
+		baseLinkTags.clear();
+		if (tagSets.isEmpty()) return;
+		for (Link l : graph.edges())
+		{
+			final int t = tagsOf(linkTags, tagSets, l);
+			if (t != 0) baseLinkTags.put(baseIdsOf(l), t);
+		}
+	}
+
+	/** returns true if a label or a tag was modified since the base in a way the delta cannot tell,
+	    and marks base spots whose covariance was modified (but were not moved) as modified */
+	private
+	boolean attributesChanged()
+	{
+		final List<TagSetStructure.TagSet> tagSets = tagSetModel.getTagSetStructure().getTagSets();
+		final ObjTags<Spot> spotTags = tagSetModel.getVertexTags();
+		final ObjTags<Link> linkTags = tagSetModel.getEdgeTags();
+		if (signatureOf(tagSets) != baseTagSetsSignature) return true;
+
+		for (Spot s : graph.vertices())
+		{
+			final int b = baseIdOf(s);
+			final int t = tagsOf(spotTags, tagSets, s);
+			if (b < 0)
+			{
+				//added spot, its label is in the delta
+				if (t != 0) return true;
+				continue;
+			}
+			if (t != baseSpotTags[b]) return true;
+			if (!movedBaseSpots.get(b) && shapeOf(s) != baseShapes[b]) movedBaseSpots.set(b);
+			if (!movedBaseSpots.get(b) && !Objects.equals(s.getLabel(), baseLabels[b])) return true;
+		}
+
+		if (tagSets.isEmpty()) return false;
+		for (Link l : graph.edges())
+		{
+			final int t = tagsOf(linkTags, tagSets, l);
+			if (addedLinks.contains(l.getInternalPoolIndex()))
+			{
+				if (t != 0) return true;
+			}
+			else if (t != baseLinkTags.getOrDefault(baseIdsOf(l), 0)) return true;
+		}
+		return false;
+	}
+
+	/** returns a hash of the covariance of the spot */
+	private
+	long shapeOf(final Spot spot)
+	{
+		spot.getCovariance(cov);
+		long h = 0;
+		for (int r = 0; r < 3; ++r)
+			for (int c = r; c < 3; ++c) h = (h ^ Double.doubleToLongBits(cov[r][c])) * 0x9E3779B97F4A7C15L;
+		return h;
+	}
+
+	/** returns a hash of all tags of the object, 0 if it has none */
+	private static <O>
+	int tagsOf(final ObjTags<O> objTags, final List<TagSetStructure.TagSet> tagSets, final O obj)
+	{
+		int h = 0;
+		for (TagSetStructure.TagSet ts : tagSets)
+		{
+			final TagSetStructure.Tag t = objTags.tags(ts).get(obj);
+			h = 1000003*h ^ (t == null ? 0 : ((ts.id() << 16) ^ t.id()) + 1);
+		}
+		return h;
+	}
+
+	private static
+	int signatureOf(final List<TagSetStructure.TagSet> tagSets)
+	{
+		int h = 1;
+		for (TagSetStructure.TagSet ts : tagSets)
+		{
+			h = 31*h + Objects.hash(ts.id(), ts.getName());
+			for (TagSetStructure.Tag t : ts.getTags())
+				h = 31*h + Objects.hash(t.id(), t.label(), t.color());
+		}
+		return h;
+	}
+
+	/** source and target base ids of the link, as used in removedBaseLinks */
+	private
+	long baseIdsOf(final Link link)
+	{
+		final int s = baseIdOf(link.getSource(ref));
+		final int t = baseIdOf(link.getTarget(ref));
+		return ((long)s << 32) | (t & 0xFFFFFFFFL);
+	}
+
+	private static
+	int maxOf(final int[] values)
+	{
+		int max = -1;
+		for (int v : values) max = Math.max(max, v);
+		return max;
+	}
+
+	private
+	int baseIdOf(final Spot spot)
+	{
+		final int p = spot.getInternalPoolIndex();
+		return p < poolToBase.length ? poolToBase[p] : -1;
+	}
+
+
+	// --------------- listening ---------------
+	@Override
+	public synchronized
+	void graphRebuilt()
+	{
+		invalidate();
+	}
+
+	@Override
+	public synchronized
+	void vertexAdded(final Spot spot)
+	{
+		if (baseHash == null) return;
+		final int p = spot.getInternalPoolIndex();
+		if (p < poolToBase.length) poolToBase[p] = -1; //NB: the slot might have belonged to a removed base spot
+		addedSpots.add(p);
+	}
+
+	@Override
+	public synchronized
+	void vertexRemoved(final Spot spot)
+	{
+		if (baseHash == null) return;
+		final int b = baseIdOf(spot);
+		if (b >= 0)
+		{
+			removedBaseSpots.set(b);
+			movedBaseSpots.clear(b);
+			poolToBase[spot.getInternalPoolIndex()] = -1;
+		}
+		else addedSpots.remove(spot.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized
+	void edgeAdded(final Link link)
+	{
+		if (baseHash == null) return;
+		addedLinks.add(link.getInternalPoolIndex());
+	}
+
+	@Override
+	public synchronized
+	void edgeRemoved(final Link link)
+	{
+		if (baseHash == null) return;
+		if (addedLinks.remove(link.getInternalPoolIndex())) return;
+
+		//a link of the base, its spots are still in the base
+		final int s = baseIdOf(link.getSource(ref));
+		final int t = baseIdOf(link.getTarget(ref));
+		if (s >= 0 && t >= 0) removedBaseLinks.add( ((long)s << 32) | (t & 0xFFFFFFFFL) );
+	}
+
+	@Override
+	public synchronized
+	void vertexPositionChanged(final Spot spot)
+	{
+		if (baseHash == null) return;
+		final int b = baseIdOf(spot);
+		if (b >= 0) movedBaseSpots.set(b);
+	}
+}
@@ -0,0 +1,288 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.project.MamutProject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Duplicates a Model in memory. It uses the same raw (de)serialization that Mastodon
+ * uses for its project files, which copies the pools of spots and links and the tags
+ * as they are, but nothing is compressed and nothing touches the disk. The source
+ * model can be serialized on a helper thread while the copy is being filled, the data
+ * then flows between the two threads through a (small) pipe and is never held whole.
+ */
+public class ModelCloner
+{
+	/** size of the pipe between the two threads */
+	public static int pipeSize = 1 << 20;
+
+	/** returns a new model (with the same units) of the same content as the given one */
+	public static
+	Model clone(final Model model)
+	throws IOException
+	{
+		return clone(model, true);
+	}
+
+	public static
+	Model clone(final Model model, final boolean concurrently)
+	throws IOException
+	{
+		final Model copy = LineageFiles.createEmptyModelWithUnitsOf(model);
+		copy(model, copy, concurrently);
+		return copy;
+	}
+
+	/** fills the (empty) model 'to' with the content of the model 'from', if 'concurrently'
+	    the 'from' is serialized on a helper thread while 'to' is filled on this thread,
+	    otherwise the 'from' is serialized into memory first (which needs more memory) */
+	public static
+	void copy(final Model from, final Model to, final boolean concurrently)
+	throws IOException
+	{
+		if (!concurrently)
+		{
+			serialize(from).loadInto(to);
+			return;
+		}
+
+		final PipedInputStream modelIn = new PipedInputStream(pipeSize);
+		final PipedInputStream tagsIn  = new PipedInputStream(pipeSize);
+		final PipedOutputStream modelOut = new PipedOutputStream(modelIn);
+		final PipedOutputStream tagsOut  = new PipedOutputStream(tagsIn);
+
+		final FutureTask<Void> saving = new FutureTask<>(() -> {
+			try {
+				from.saveRaw( new StreamsWriter(modelOut, tagsOut) );
+			} finally {
+				//makes the reading side see the end, also when saving has failed
+				modelOut.close();
+				tagsOut.close();
+			}
+			return null;
+		});
+		final Thread saver = new Thread(saving, "lineage cloning");
+		saver.setDaemon(true);
+		saver.start();
+
+		final StreamsReader reader = new StreamsReader(modelIn, tagsIn);
+		try {
+			to.loadRaw( reader );
+		} catch (IOException | RuntimeException e) {
+			//makes the saving side fail too (if it is still saving), rather than wait forever
+			reader.close();
+			waitFor(saving);
+			throw e;
+		}
+		reader.close();
+		waitFor(saving);
+	}
+
+	/** the raw serialization of a model, held in memory */
+	public static class Serialized
+	{
+		private final MemoryWriter writer;
+		private final String spaceUnits, timeUnits;
+
+		private Serialized(final MemoryWriter writer, final Model model)
+		{
+			this.writer = writer;
+			this.spaceUnits = model.getSpaceUnits();
+			this.timeUnits = model.getTimeUnits();
+		}
+
+		/** fills the (empty) model with the serialized content */
+		public void loadInto(final Model to)
+		throws IOException
+		{
+			final StreamsReader reader = new StreamsReader(writer.model.toInputStream(), writer.tags.toInputStream());
+			to.loadRaw( reader );
+			reader.close();
+		}
+
+		/** returns a new model (with the units of the serialized one) of the serialized content */
+		public Model toModel()
+		throws IOException
+		{
+			final Model copy = new Model(spaceUnits, timeUnits);
+			loadInto(copy);
+			return copy;
+		}
+	}
+
+	/** serializes the model into memory, which is the only part of cloning during which
+	    the model must not change; the copy can be made later from the returned data */
+	public static
+	Serialized serialize(final Model model)
+	throws IOException
+	{
+		final MemoryWriter writer = new MemoryWriter();
+		model.saveRaw( writer );
+		writer.close();
+		return new Serialized(writer, model);
+	}
+
+	private static
+	void waitFor(final FutureTask<Void> saving)
+	throws IOException
+	{
+		try {
+			saving.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while cloning a lineage", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException("Failed cloning a lineage", e.getCause());
+		}
+	}
+
+
+	// -------- the writer and the reader over given streams --------
+	/** ByteArrayOutputStream that is read back without copying its content */
+	static class MemoryOutputStream extends ByteArrayOutputStream
+	{
+		InputStream toInputStream()
+		{
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	static class MemoryWriter extends StreamsWriter
+	{
+		final MemoryOutputStream model, tags;
+
+		MemoryWriter()
+		{
+			this(new MemoryOutputStream(), new MemoryOutputStream());
+		}
+
+		private MemoryWriter(final MemoryOutputStream model, final MemoryOutputStream tags)
+		{
+			super(model, tags);
+			this.model = model;
+			this.tags = tags;
+		}
+	}
+
+	static class StreamsWriter implements MamutProject.ProjectWriter
+	{
+		private final OutputStream model, tags;
+
+		StreamsWriter(final OutputStream model, final OutputStream tags)
+		{
+			this.model = model;
+			this.tags = tags;
+		}
+
+		@Override
+		public OutputStream getRawModelOutputStream()
+		{
+			return model;
+		}
+
+		@Override
+		public OutputStream getRawTagsOutputStream()
+		{
+			return tags;
+		}
+
+		@Override
+		public void close()
+		{ /* the streams are closed by those who write into them */ }
+
+		/** fake output stream that saves nothing */
+		private final OutputStream nullOutput = new OutputStream() {
+			@Override
+			public void write(int i)
+			{ /* does nothing, intentionally */ }
+		};
+
+		// -------- methods that offer "no-save" streams --------
+		@Override
+		public OutputStream getProjectXmlOutputStream()
+		{
+			return nullOutput;
+		}
+
+		@Override
+		public OutputStream getFeatureOutputStream(String featureKey)
+		{
+			return nullOutput;
+		}
+
+		@Override
+		public OutputStream getGuiOutputStream() throws IOException {
+			return null;
+		}
+	}
+
+	static class StreamsReader implements MamutProject.ProjectReader
+	{
+		private final InputStream model, tags;
+
+		StreamsReader(final InputStream model, final InputStream tags)
+		{
+			this.model = model;
+			this.tags = tags;
+		}
+
+		@Override
+		public InputStream getRawModelInputStream()
+		{
+			return model;
+		}
+
+		@Override
+		public InputStream getRawTagsInputStream()
+		{
+			return tags;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			model.close();
+			tags.close();
+		}
+
+		/** fake input stream that saves nothing */
+		private final InputStream nullOutput = new InputStream() {
+			@Override
+			public int read()
+			{ return 0; /* does nothing, intentionally */ }
+		};
+
+		// -------- methods that offer "no-read" streams --------
+		@Override
+		public InputStream getProjectXmlInputStream()
+		{
+			return nullOutput;
+		}
+
+		@Override
+		public InputStream getFeatureInputStream(String featureKey)
+		{
+			return nullOutput;
+		}
+
+		@Override
+		public Collection<String> getFeatureKeys() {
+			return null;
+		}
+
+		@Override
+		public InputStream getGuiInputStream() throws IOException {
+			return null;
+		}
+	}
+}
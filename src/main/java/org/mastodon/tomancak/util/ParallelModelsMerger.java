@@ -0,0 +1,119 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.tomancak.merging.MergeDatasets;
+import org.mastodon.mamut.tomancak.merging.MergeModels;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Merges many models into one as a balanced binary tree of the usual pairwise merges
+ * (MergeModels.merge() with the same parameters at every step). Independent merges run
+ * in parallel on a ForkJoinPool, the wall time thus grows with the depth of the tree
+ * (that is, with log2 of the number of models) rather than with the number of models.
+ */
+public class ParallelModelsMerger
+{
+	public ParallelModelsMerger(final MergeModelDialog params)
+	{
+		this(params.distCutoff, params.mahalanobisDistCutoff, params.ratioThreshold);
+	}
+
+	public ParallelModelsMerger(final double distCutoff, final double mahalanobisDistCutoff,
+	                            final double ratioThreshold)
+	{
+		this.distCutoff = distCutoff;
+		this.mahalanobisDistCutoff = mahalanobisDistCutoff;
+		this.ratioThreshold = ratioThreshold;
+	}
+
+	final double distCutoff, mahalanobisDistCutoff, ratioThreshold;
+
+	public ForkJoinPool pool = ForkJoinPool.commonPool();
+
+
+	// -------- timings --------
+	/** merges of the same height in the tree, the first stage merges the given models */
+	public static class Stage
+	{
+		public int merges = 0;
+		/** wall time from the start of the first merge to the end of the last merge */
+		public long firstStart = Long.MAX_VALUE, lastEnd = 0;
+		/** sum of the times of all merges */
+		public long totalTime = 0;
+
+		synchronized void add(final long start, final long end)
+		{
+			++merges;
+			firstStart = Math.min(firstStart, start);
+			lastEnd = Math.max(lastEnd, end);
+			totalTime += end-start;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			return String.format(Locale.ROOT, "%d merges in %.2f s (%.2f s when one after another)",
+				merges, (lastEnd-firstStart)/1e9, totalTime/1e9);
+		}
+	}
+
+	/** timings of the last mergeAll(), stages are listed from the first one */
+	public final List<Stage> stages = new ArrayList<>();
+
+
+	// -------- merging --------
+	/** returns a new model with all given models merged together (or the only given model),
+	    the given models are not changed but must not be changed while this is running */
+	public Model mergeAll(final List<Model> models)
+	{
+		if (models.isEmpty()) throw new IllegalArgumentException("No models to merge.");
+		stages.clear();
+		return pool.invoke(new MergeTask(models));
+	}
+
+	private Stage stage(final int height)
+	{
+		synchronized (stages)
+		{
+			while (stages.size() < height) stages.add(new Stage());
+			return stages.get(height-1);
+		}
+	}
+
+	class MergeTask extends RecursiveTask<Model>
+	{
+		final List<Model> models;
+		int height = 0;
+
+		MergeTask(final List<Model> models)
+		{
+			this.models = models;
+		}
+
+		@Override
+		protected Model compute()
+		{
+			if (models.size() == 1) return models.get(0);
+
+			final int half = (models.size()+1) / 2;
+			final MergeTask left = new MergeTask(models.subList(0, half));
+			final MergeTask right = new MergeTask(models.subList(half, models.size()));
+			right.fork();
+			final Model a = left.compute();
+			final Model b = right.join();
+			height = Math.max(left.height, right.height) + 1;
+
+			final long start = System.nanoTime();
+			final Model output = LineageFiles.createEmptyModelWithUnitsOf(a);
+			MergeModels.merge( a, b, new MergeDatasets.OutputDataSet( output ),
+				distCutoff, mahalanobisDistCutoff, ratioThreshold );
+			stage(height).add(start, System.nanoTime());
+			return output;
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.mamut.project.MamutProject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The same as ZippedModelWriter but the raw streams are cut into blocks that are
+ * compressed in parallel on a ForkJoinPool. Every block is deflated with the tail
+ * of its preceding block as a dictionary and is byte-aligned with a sync flush, so
+ * the compressed blocks simply concatenate into one regular deflate stream. The
+ * output is a plain zip file (without zip64 extensions, so entries are limited to
+ * 4 GB) that ZippedModelReader, Mastodon's ReadZip and any other zip tool can read.
+ *
+ * The compression level goes from Deflater.NO_COMPRESSION, for which the entries
+ * are "stored" (not compressed at all), to Deflater.BEST_COMPRESSION.
+ */
+public class ParallelZippedModelWriter implements MamutProject.ProjectWriter
+{
+	/** size of the blocks that are compressed (and hashed) independently */
+	public static final int blockSize = ContentHasher.blockSize;
+	/** how much of the previous block is used as a dictionary (the deflate window) */
+	static final int dictionarySize = 1 << 15;
+
+	public ParallelZippedModelWriter(final Path filename) throws IOException
+	{
+		this(filename, Deflater.DEFAULT_COMPRESSION, ForkJoinPool.commonPool());
+	}
+
+	public ParallelZippedModelWriter(final Path filename, final int level) throws IOException
+	{
+		this(filename, level, ForkJoinPool.commonPool());
+	}
+
+	public ParallelZippedModelWriter(final Path filename, final int level, final ForkJoinPool pool) throws IOException
+	{
+		this(filename, level, pool, null);
+	}
+
+	/** the header, if given, is completed with the raw digest and written as the last entry */
+	public ParallelZippedModelWriter(final Path filename, final int level, final ForkJoinPool pool,
+	                                 final SnapshotHeader header) throws IOException
+	{
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Compression level must be between "
+				+Deflater.NO_COMPRESSION+" and "+Deflater.BEST_COMPRESSION+", or "+Deflater.DEFAULT_COMPRESSION);
+
+		this.level = level;
+		this.pool = pool;
+		this.header = header;
+		this.maxBlocksInFlight = 2 * pool.getParallelism() + 1;
+		this.channel = FileChannel.open(filename, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		final LocalDateTime now = LocalDateTime.now();
+		dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() / 2);
+		dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+	}
+
+	private final int level;
+	private final ForkJoinPool pool;
+	private final SnapshotHeader header;
+	private final ContentHasher contentHasher = new ContentHasher();
+	private final int maxBlocksInFlight;
+	private final FileChannel channel;
+	private final int dosTime, dosDate;
+
+	/** finished entries, for the central directory */
+	private final List<EntryOutputStream> entries = new ArrayList<>(4);
+	/** the entry that is currently being written, or null */
+	private EntryOutputStream currentEntry = null;
+
+	private boolean isStored()
+	{
+		return level == Deflater.NO_COMPRESSION;
+	}
+
+
+	// -------- the zip entries --------
+	@Override
+	public OutputStream getRawModelOutputStream() throws IOException
+	{
+		return startEntry("model.raw");
+	}
+
+	@Override
+	public OutputStream getRawTagsOutputStream() throws IOException
+	{
+		return startEntry("tags.raw");
+	}
+
+	private
+	OutputStream startEntry(final String name) throws IOException
+	{
+		if (currentEntry != null) currentEntry.close();
+		currentEntry = new EntryOutputStream(name);
+		return currentEntry;
+	}
+
+	private class EntryOutputStream extends OutputStream
+	{
+		final byte[] name;
+		final long headerOffset;
+		final CRC32 crc = new CRC32();
+		long uncompressedSize = 0;
+		long compressedSize = 0;
+		boolean isClosed = false;
+
+		byte[] block = new byte[blockSize];
+		int blockLength = 0;
+		/** the last submitted block, its tail is the dictionary of the next block */
+		byte[] previousBlock = null;
+		final Deque<Future<Block>> blocksInFlight = new ArrayDeque<>();
+
+		EntryOutputStream(final String name) throws IOException
+		{
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.headerOffset = channel.position();
+			//placeholder, the header is re-written when the entry is complete
+			writeFully(localHeader());
+		}
+
+		@Override
+		public void write(final int b) throws IOException
+		{
+			if (isClosed) throw new IOException("The zip entry is closed already.");
+			if (blockLength == block.length) submitBlock(false);
+			block[blockLength++] = (byte)b;
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException
+		{
+			if (isClosed) throw new IOException("The zip entry is closed already.");
+			while (len > 0)
+			{
+				if (blockLength == block.length) submitBlock(false);
+				final int n = Math.min(len, block.length - blockLength);
+				System.arraycopy(b, off, block, blockLength, n);
+				blockLength += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/** NB: a full block is submitted only when more data comes, so the last block is known for sure */
+		private void submitBlock(final boolean isLast) throws IOException
+		{
+			crc.update(block, 0, blockLength);
+			uncompressedSize += blockLength;
+
+			final byte[] data = block;
+			final int length = blockLength;
+			final byte[] dictionary = previousBlock;
+			final boolean isHashed = header != null;
+			blocksInFlight.addLast( pool.submit(() -> compressBlock(data, length, dictionary, isLast, level, isHashed)) );
+
+			previousBlock = block;
+			block = new byte[blockSize];
+			blockLength = 0;
+
+			//keeps the memory bounded
+			while (blocksInFlight.size() > maxBlocksInFlight) writeOldestBlock();
+		}
+
+		private void writeOldestBlock() throws IOException
+		{
+			final Block compressed;
+			try {
+				compressed = blocksInFlight.pollFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while compressing "+new String(name,StandardCharsets.UTF_8), e);
+			} catch (ExecutionException e) {
+				throw new IOException("Failed compressing "+new String(name,StandardCharsets.UTF_8), e.getCause());
+			}
+			writeFully(ByteBuffer.wrap(compressed.data, 0, compressed.length));
+			compressedSize += compressed.length;
+			if (compressed.hash != null) contentHasher.addBlockHash(compressed.hash);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (isClosed) return;
+			isClosed = true;
+
+			submitBlock(true);
+			while (!blocksInFlight.isEmpty()) writeOldestBlock();
+			previousBlock = null;
+			block = null;
+
+			if (compressedSize > 0xFFFFFFFFL || uncompressedSize > 0xFFFFFFFFL)
+				throw new IOException("Zip entry "+new String(name,StandardCharsets.UTF_8)+" is too large (over 4 GB).");
+
+			final long endOffset = channel.position();
+			channel.position(headerOffset);
+			writeFully(localHeader());
+			channel.position(endOffset);
+
+			entries.add(this);
+			if (currentEntry == this) currentEntry = null;
+		}
+
+		ByteBuffer localHeader()
+		{
+			final ByteBuffer h = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+			h.putInt(0x04034b50);
+			h.putShort((short)20);           //version needed to extract
+			h.putShort((short)0);            //flags
+			h.putShort((short)(isStored() ? 0 : 8));
+			h.putShort((short)dosTime);
+			h.putShort((short)dosDate);
+			h.putInt((int)crc.getValue());
+			h.putInt((int)compressedSize);
+			h.putInt((int)uncompressedSize);
+			h.putShort((short)name.length);
+			h.putShort((short)0);            //extra field length
+			h.put(name);
+			h.flip();
+			return h;
+		}
+
+		ByteBuffer centralHeader()
+		{
+			final ByteBuffer h = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+			h.putInt(0x02014b50);
+			h.putShort((short)20);           //version made by
+			h.putShort((short)20);           //version needed to extract
+			h.putShort((short)0);            //flags
+			h.putShort((short)(isStored() ? 0 : 8));
+			h.putShort((short)dosTime);
+			h.putShort((short)dosDate);
+			h.putInt((int)crc.getValue());
+			h.putInt((int)compressedSize);
+			h.putInt((int)uncompressedSize);
+			h.putShort((short)name.length);
+			h.putShort((short)0);            //extra field length
+			h.putShort((short)0);            //comment length
+			h.putShort((short)0);            //disk number
+			h.putShort((short)0);            //internal attributes
+			h.putInt(0);                     //external attributes
+			h.putInt((int)headerOffset);
+			h.put(name);
+			h.flip();
+			return h;
+		}
+	}
+
+	/** a block ready to be written */
+	static class Block
+	{
+		final byte[] data;
+		final int length;
+		/** SHA-256 of the uncompressed block, or null */
+		final byte[] hash;
+
+		Block(final byte[] data, final int length, final byte[] hash)
+		{
+			this.data = data;
+			this.length = length;
+			this.hash = hash;
+		}
+	}
+
+	/** deflates (and hashes) the block as a part of one longer deflate stream, runs on the pool */
+	static
+	Block compressBlock(final byte[] data, final int length, final byte[] dictionary,
+	                    final boolean isLast, final int level, final boolean isHashed)
+	{
+		byte[] hash = null;
+		if (isHashed)
+		{
+			final MessageDigest md = ContentHasher.createHasher();
+			md.update(data, 0, length);
+			hash = md.digest();
+		}
+		if (level == Deflater.NO_COMPRESSION) return new Block(data, length, hash);
+
+		final Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null)
+				deflater.setDictionary(dictionary, dictionary.length - dictionarySize, dictionarySize);
+			deflater.setInput(data, 0, length);
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(length/2 + 64);
+			final byte[] buf = new byte[1 << 16];
+			if (isLast)
+			{
+				deflater.finish();
+				while (!deflater.finished())
+					out.write(buf, 0, deflater.deflate(buf));
+			}
+			else
+			{
+				//NB: sync flush ends the output on a byte boundary without ending the stream
+				int n;
+				do {
+					n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+					out.write(buf, 0, n);
+				} while (n == buf.length);
+			}
+			final byte[] compressed = out.toByteArray();
+			return new Block(compressed, compressed.length, hash);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private
+	void writeFully(final ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining()) channel.write(buf);
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			if (currentEntry != null) currentEntry.close();
+			if (header != null)
+			{
+				header.rawDigest = contentHasher.digest();
+				try (OutputStream os = startEntry(SnapshotHeader.entryName)) {
+					header.write(os);
+				}
+			}
+
+			//central directory and its end record
+			final long centralOffset = channel.position();
+			for (EntryOutputStream e : entries) writeFully(e.centralHeader());
+			final long centralSize = channel.position() - centralOffset;
+
+			final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(0x06054b50);
+			end.putShort((short)0);          //number of this disk
+			end.putShort((short)0);          //disk with the central directory
+			end.putShort((short)entries.size());
+			end.putShort((short)entries.size());
+			end.putInt((int)centralSize);
+			end.putInt((int)centralOffset);
+			end.putShort((short)0);          //comment length
+			end.flip();
+			writeFully(end);
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	/** fake output stream that saves nothing */
+	private final OutputStream nullOutput = new OutputStream() {
+		@Override
+		public void write(int i)
+		{ /* does nothing, intentionally */ }
+	};
+
+	// -------- methods that offer "no-save" streams --------
+	@Override
+	public OutputStream getProjectXmlOutputStream()
+	{
+		return nullOutput;
+	}
+
+	@Override
+	public OutputStream getFeatureOutputStream(String featureKey)
+	{
+		return nullOutput;
+	}
+
+	@Override
+	public OutputStream getGuiOutputStream() throws IOException {
+		return null;
+	}
+}
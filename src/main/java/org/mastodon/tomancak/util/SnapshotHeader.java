@@ -0,0 +1,148 @@
+package org.mastodon.tomancak.util;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Metadata of a snapshot that is stored in the snapshot itself, in the small
+ * entry 'header.properties' next to 'model.raw' and 'tags.raw', so that the
+ * snapshot can be described without reading (and inflating) the whole model.
+ * The entry is written by both ZippedModelWriter and ParallelZippedModelWriter,
+ * and is read with LineageFiles.readSnapshotHeader().
+ */
+public class SnapshotHeader
+{
+	/** name of the zip entry with the header */
+	public static final String entryName = "header.properties";
+	public static final int currentVersion = 1;
+
+	public int version = currentVersion;
+	public String author = "";
+	public LocalDateTime timestamp;
+	public int spots, links;
+	/** the range of timepoints with spots, both are -1 if there are no spots */
+	public int minTimepoint = -1, maxTimepoint = -1;
+	/** bounding box of positions of all spots, both are zeros if there are no spots */
+	public final double[] bboxMin = new double[3];
+	public final double[] bboxMax = new double[3];
+	/** digest of the raw entries (see ContentHasher), filled in by the writers; NB: it is
+	    NOT the hash of the snapshot file, which is what the server indexes and uses as ETag */
+	public String rawDigest = "";
+
+	/** describes the current content of the model, should be called under the model's read lock
+	    (or at least when the model is not changing), author and time are taken from the
+	    snapshot filename if it follows the naming convention */
+	public static
+	SnapshotHeader describe(final Model model, final Path filename)
+	{
+		final SnapshotHeader h = new SnapshotHeader();
+		final String name = filename.getFileName().toString();
+		if (LineageFiles.lineageFilePattern.test(name))
+		{
+			h.author = LineageFiles.authorOfLineageFile(name);
+			h.timestamp = LineageFiles.dateTimeOfLineageFile(name);
+		}
+		else h.timestamp = LocalDateTime.now().withNano(0);
+
+		h.spots = model.getGraph().vertices().size();
+		h.links = model.getGraph().edges().size();
+
+		final double[] pos = new double[3];
+		boolean isFirst = true;
+		for (Spot s : model.getGraph().vertices())
+		{
+			s.localize(pos);
+			final int t = s.getTimepoint();
+			if (isFirst)
+			{
+				h.minTimepoint = h.maxTimepoint = t;
+				System.arraycopy(pos, 0, h.bboxMin, 0, 3);
+				System.arraycopy(pos, 0, h.bboxMax, 0, 3);
+				isFirst = false;
+				continue;
+			}
+			h.minTimepoint = Math.min(h.minTimepoint, t);
+			h.maxTimepoint = Math.max(h.maxTimepoint, t);
+			for (int d = 0; d < 3; ++d)
+			{
+				h.bboxMin[d] = Math.min(h.bboxMin[d], pos[d]);
+				h.bboxMax[d] = Math.max(h.bboxMax[d], pos[d]);
+			}
+		}
+		return h;
+	}
+
+
+	// --------------- (de)serialization ---------------
+	public
+	void write(final OutputStream os)
+	throws IOException
+	{
+		final Properties p = new Properties();
+		p.setProperty("version", Integer.toString(version));
+		p.setProperty("author", author);
+		p.setProperty("timestamp", timestamp.toString());
+		p.setProperty("spots", Integer.toString(spots));
+		p.setProperty("links", Integer.toString(links));
+		p.setProperty("timepoints", minTimepoint+" "+maxTimepoint);
+		p.setProperty("bboxMin", coords(bboxMin));
+		p.setProperty("bboxMax", coords(bboxMax));
+		p.setProperty("rawDigest", rawDigest);
+		p.store(os, "Mastodon collaborative snapshot");
+	}
+
+	/** throws IOException if the header is not valid */
+	public static
+	SnapshotHeader read(final InputStream is)
+	throws IOException
+	{
+		final Properties p = new Properties();
+		p.load(is);
+
+		final SnapshotHeader h = new SnapshotHeader();
+		try {
+			h.version = Integer.parseInt(p.getProperty("version"));
+			h.author = p.getProperty("author", "");
+			h.timestamp = LocalDateTime.parse(p.getProperty("timestamp"));
+			h.spots = Integer.parseInt(p.getProperty("spots"));
+			h.links = Integer.parseInt(p.getProperty("links"));
+			final String[] tp = p.getProperty("timepoints").split(" ");
+			h.minTimepoint = Integer.parseInt(tp[0]);
+			h.maxTimepoint = Integer.parseInt(tp[1]);
+			parseCoords(p.getProperty("bboxMin"), h.bboxMin);
+			parseCoords(p.getProperty("bboxMax"), h.bboxMax);
+			h.rawDigest = p.getProperty("rawDigest", "");
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid snapshot header: "+e.getMessage());
+		}
+		return h;
+	}
+
+	private static
+	String coords(final double[] c)
+	{
+		return String.format(Locale.ROOT, "%s %s %s", c[0], c[1], c[2]);
+	}
+
+	private static
+	void parseCoords(final String s, final double[] c)
+	{
+		final String[] v = s.split(" ");
+		for (int d = 0; d < 3; ++d) c[d] = Double.parseDouble(v[d]);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "%d spots, %d links, timepoints %d-%d, by %s at %s",
+			spots, links, minTimepoint, maxTimepoint, author, timestamp);
+	}
+}
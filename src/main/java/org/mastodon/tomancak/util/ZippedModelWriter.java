@@ -3,6 +3,7 @@ package org.mastodon.tomancak.util;
 import org.mastodon.mamut.project.MamutProject;
 import org.mastodon.mamut.project.WriteZip;
 
+import java.io.FilterOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -12,29 +13,96 @@ public class ZippedModelWriter implements MamutProject.ProjectWriter
 	/** the main output source */
 	private final WriteZip zip;
 
+	/** optional, written as the last entry */
+	private final SnapshotHeader header;
+	private final ContentHasher contentHasher = new ContentHasher();
+	private HashingOutputStream currentEntry = null;
+
 	public ZippedModelWriter(final Path filename) throws IOException
+	{
+		this(filename, null);
+	}
+
+	/** the header, if given, is completed with the raw digest and written as the last entry */
+	public ZippedModelWriter(final Path filename, final SnapshotHeader header) throws IOException
 	{
 		zip = new WriteZip(filename.toFile());
+		this.header = header;
 	}
 
 	@Override
 	public OutputStream getRawModelOutputStream() throws IOException
 	{
-		return zip.getOutputStream("model.raw");
+		return hashed(zip.getOutputStream("model.raw"));
 	}
 
 	@Override
 	public OutputStream getRawTagsOutputStream() throws IOException
 	{
-		return zip.getOutputStream("tags.raw");
+		return hashed(zip.getOutputStream("tags.raw"));
 	}
 
 	@Override
 	public void close() throws IOException
 	{
+		if (header != null)
+		{
+			if (currentEntry != null) currentEntry.finish();
+			header.rawDigest = contentHasher.digest();
+			try (OutputStream os = zip.getOutputStream(SnapshotHeader.entryName)) {
+				header.write(os);
+			}
+		}
 		zip.close();
 	}
 
+	private OutputStream hashed(final OutputStream entry)
+	{
+		if (header == null) return entry;
+		if (currentEntry != null) currentEntry.finish();
+		currentEntry = new HashingOutputStream(entry);
+		return currentEntry;
+	}
+
+	/** feeds the content hasher with the entry data on its way to the zip */
+	private class HashingOutputStream extends FilterOutputStream
+	{
+		boolean isFinished = false;
+
+		HashingOutputStream(final OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException
+		{
+			contentHasher.update(b);
+			out.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			contentHasher.update(b, off, len);
+			out.write(b, off, len);
+		}
+
+		void finish()
+		{
+			if (isFinished) return;
+			contentHasher.finishEntry();
+			isFinished = true;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			finish();
+			out.close();
+		}
+	}
+
 
 	/** fake output stream that saves nothing */
 	private final OutputStream nullOutput = new OutputStream() {
@@ -0,0 +1,304 @@
+package org.mastodon.tomancak;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.tomancak.net.DatasetServer;
+import org.mastodon.tomancak.net.FileTransfer;
+import org.mastodon.tomancak.net.SnapshotCache;
+import org.mastodon.tomancak.net.TransferClient;
+import org.mastodon.tomancak.util.LineageFiles;
+import org.mastodon.tomancak.util.SnapshotHeader;
+
+/** starts a DatasetServer on a free port of localhost and lets N simulated annotators
+    work with it concurrently: every annotator periodically uploads its snapshot (which
+    grows with every upload), lists the dataset, and downloads the latest snapshot of
+    some teammate; at the end, all annotators upload at the same moment (as they do when
+    a session is over); reports throughput and latencies of the requests, and heap and
+    threads of the JVM (which hosts both the server and the annotators),
+    usage: serverLoadTest [annotators] [seconds] [secondsBetweenReports] [initialSpots] [spotsGrowth] */
+public class serverLoadTest
+{
+    // ------------- latencies -------------
+    static class Latencies
+    {
+        final List<Long> nanos = new ArrayList<>(10000);
+        long bytes = 0;
+        int failures = 0;
+
+        synchronized void add(final long time, final long transferredBytes)
+        {
+            nanos.add(time);
+            bytes += transferredBytes;
+        }
+
+        synchronized void failed()
+        {
+            ++failures;
+        }
+
+        synchronized String report(final double seconds)
+        {
+            final long[] sorted = nanos.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            return String.format(Locale.ROOT,
+                "%6d requests, %7.1f req/s, %7.1f MB/s, latency p50 %7.1f ms, p95 %7.1f ms, p99 %7.1f ms, max %7.1f ms, %d failed",
+                sorted.length, sorted.length/seconds, bytes/seconds/1e6,
+                percentile(sorted,50), percentile(sorted,95), percentile(sorted,99), percentile(sorted,100), failures);
+        }
+
+        static double percentile(final long[] sorted, final int p)
+        {
+            if (sorted.length == 0) return 0;
+            final int idx = (int)Math.ceil(p/100.0 * sorted.length) - 1;
+            return sorted[Math.max(idx,0)] / 1e6;
+        }
+    }
+
+    static final Map<String,Latencies> latencies = new ConcurrentHashMap<>();
+
+    interface Request { long run() throws IOException; }
+
+    /** runs the request, and notes how long it took and how many bytes it has moved */
+    static void measure(final String endpoint, final Request request)
+    {
+        final Latencies l = latencies.computeIfAbsent(endpoint, k -> new Latencies());
+        final long start = System.nanoTime();
+        try {
+            final long bytes = request.run();
+            l.add(System.nanoTime() - start, bytes);
+        } catch (IOException e) {
+            l.failed();
+            System.out.println(endpoint+" failed: "+e.getMessage());
+        }
+    }
+
+
+    // ------------- JVM monitoring -------------
+    static volatile long maxUsedHeap = 0;
+    static volatile int maxThreads = 0;
+    static volatile int maxServerThreads = 0;
+
+    static void startMonitoring()
+    {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final Thread t = new Thread(() -> {
+            while (true)
+            {
+                final Runtime rt = Runtime.getRuntime();
+                maxUsedHeap = Math.max(maxUsedHeap, rt.totalMemory() - rt.freeMemory());
+                maxThreads = Math.max(maxThreads, threads.getThreadCount());
+                //NB: Undertow's IO and worker threads are named XNIO-...
+                maxServerThreads = Math.max(maxServerThreads, (int)Thread.getAllStackTraces().keySet().stream()
+                        .filter(th -> th.getName().startsWith("XNIO")).count());
+                try { Thread.sleep(200); } catch (InterruptedException e) { return; }
+            }
+        }, "load-test monitor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+    // ------------- annotators -------------
+    static final DateTimeFormatter fileDateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd__HH-mm-ss__");
+    static final String dataset = "loadtest";
+
+    static class Annotator implements Runnable
+    {
+        final int id;
+        final String name;
+        final Path folder;
+        final List<Path> growingSnapshots;
+        final String datasetURL;
+        final long endTime;
+        final int secondsBetweenReports;
+        final Phaser finalSpike;
+        final SnapshotCache cache;
+        final Random rnd;
+
+        int uploadsCnt = 0;
+
+        Annotator(final int id, final Path workFolder, final List<Path> growingSnapshots,
+                  final String datasetURL, final long endTime, final int secondsBetweenReports,
+                  final Phaser finalSpike)
+        throws IOException
+        {
+            this.id = id;
+            this.name = "annotator"+id;
+            this.folder = Files.createDirectories(workFolder.resolve(name));
+            this.growingSnapshots = growingSnapshots;
+            this.datasetURL = datasetURL;
+            this.endTime = endTime;
+            this.secondsBetweenReports = secondsBetweenReports;
+            this.finalSpike = finalSpike;
+            //NB: not the default cache in the user's home folder
+            this.cache = new SnapshotCache(folder.resolve("cache"));
+            this.rnd = new Random(id);
+        }
+
+        void upload() throws IOException
+        {
+            //the names tell the (simulated) time of the report, ten minutes apart
+            final Path template = growingSnapshots.get(Math.min(uploadsCnt, growingSnapshots.size()-1));
+            final String filename = LocalDateTime.of(2020,4,6,8,0).plusMinutes(10L*uploadsCnt).format(fileDateFormat)
+                    + name + ".mstdn";
+            Files.copy(template, folder.resolve(filename));
+            final SnapshotHeader header = LineageFiles.readSnapshotHeader(template);
+
+            measure("/put", () -> {
+                FileTransfer.postParticularFile(datasetURL, filename, header.spots, header.links, folder);
+                return Files.size(folder.resolve(filename));
+            });
+            Files.delete(folder.resolve(filename));
+            ++uploadsCnt;
+        }
+
+        @Override
+        public void run()
+        {
+            boolean arrived = false;
+            try {
+                //not all at once at the beginning
+                Thread.sleep(rnd.nextInt(1000 * secondsBetweenReports));
+
+                while (System.currentTimeMillis() + 1000L*secondsBetweenReports < endTime)
+                {
+                    upload();
+
+                    final List<String> files = new ArrayList<>();
+                    measure("/list", () -> {
+                        final Collection<String> list = FileTransfer.listAvailableFiles(datasetURL);
+                        files.addAll(list);
+                        return list.stream().mapToLong(String::length).sum();
+                    });
+
+                    //the latest work of some teammate (names start with time, the latest is the "largest")
+                    final List<String> teammates = new ArrayList<>();
+                    files.stream().map(LineageFiles::authorOfLineageFile).distinct()
+                            .filter(a -> !a.equals(name)).forEach(teammates::add);
+                    if (!teammates.isEmpty())
+                    {
+                        final String teammate = teammates.get(rnd.nextInt(teammates.size()));
+                        final String wanted = files.stream()
+                                .filter(f -> LineageFiles.authorOfLineageFile(f).equals(teammate))
+                                .max(Comparator.naturalOrder()).get();
+                        measure("/files", () -> Files.size(cache.fetch(datasetURL, wanted, folder)));
+                    }
+
+                    //with some jitter around the given period
+                    Thread.sleep((long)(1000L*secondsBetweenReports * (0.5 + rnd.nextDouble())));
+                }
+
+                //the end of the session: everyone reports at the same moment
+                arrived = true;
+                finalSpike.awaitAdvanceInterruptibly(finalSpike.arrive(), 60, TimeUnit.SECONDS);
+                upload();
+            } catch (InterruptedException | TimeoutException e) {
+                System.out.println(name+" interrupted");
+            } catch (IOException e) {
+                System.out.println(name+" failed: "+e.getMessage());
+            } finally {
+                //a failed annotator must not keep the others waiting for it
+                if (!arrived) finalSpike.arriveAndDeregister();
+            }
+        }
+    }
+
+
+    // ------------- the test -------------
+    public static void main(String[] args)
+    throws Exception
+    {
+        final int annotators    = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int seconds       = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        final int betweenReport = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        final int initialSpots  = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        final int spotsGrowth   = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+
+        //every annotator shall have its request running, not waiting for a free thread
+        TransferClient.defaultThreads = Math.max(annotators, TransferClient.defaultThreads);
+
+        final Path workFolder = Files.createTempDirectory("serverLoadTest");
+        final Path serverFolder = Files.createDirectories(workFolder.resolve("server"));
+        Files.createDirectories(serverFolder.resolve(dataset));
+
+        //snapshots of growing sizes, the annotators upload copies of them
+        final int uploadsPerAnnotator = seconds / betweenReport + 2;
+        final List<Path> growingSnapshots = new ArrayList<>(uploadsPerAnnotator);
+        System.out.println("Creating "+uploadsPerAnnotator+" snapshots from "+initialSpots+" to "
+                +(initialSpots+(uploadsPerAnnotator-1)*spotsGrowth)+" spots...");
+        final Path templates = Files.createDirectories(workFolder.resolve("templates"));
+        for (int i = 0; i < uploadsPerAnnotator; ++i)
+        {
+            final Model model = syntheticLineages.create(initialSpots + i*spotsGrowth);
+            final Path file = templates.resolve("2020-01-01__00-00-00__template"+i+".mstdn");
+            LineageFiles.saveModelIntoLineageFile(model, file);
+            growingSnapshots.add(file);
+        }
+
+        final int port;
+        try (ServerSocket s = new ServerSocket(0)) { port = s.getLocalPort(); }
+        final DatasetServer server = new DatasetServer(serverFolder.toString()).setPort(port);
+        server.start();
+        server.awaitReady();
+        final String datasetURL = "http://localhost:"+port+"/"+dataset;
+
+        System.out.println("Running "+annotators+" annotators for "+seconds+" s, reporting every ~"+betweenReport+" s...");
+        startMonitoring();
+        final long startTime = System.currentTimeMillis();
+        final long endTime = startTime + 1000L*seconds;
+        final Phaser finalSpike = new Phaser(annotators) {
+            @Override
+            protected boolean onAdvance(final int phase, final int registeredParties)
+            {
+                if (registeredParties > 0)
+                    System.out.println("All "+registeredParties+" remaining annotators are reporting at once now...");
+                return true;
+            }
+        };
+        final List<Thread> threads = new ArrayList<>(annotators);
+        for (int i = 0; i < annotators; ++i)
+        {
+            final Thread t = new Thread(new Annotator(i, workFolder, growingSnapshots, datasetURL,
+                                                      endTime, betweenReport, finalSpike), "annotator"+i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join(TimeUnit.SECONDS.toMillis(seconds + 600));
+        final double elapsed = (System.currentTimeMillis() - startTime) / 1000.0;
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "Results after %.1f s:", elapsed));
+        new TreeMap<>(latencies).forEach( (endpoint,l) ->
+                System.out.println(String.format("%-7s %s", endpoint, l.report(elapsed))) );
+        System.out.println(String.format(Locale.ROOT, "peak heap used: %.1f MB (of max %.1f MB), peak threads: %d (of which %d server's XNIO)",
+                maxUsedHeap/1e6, Runtime.getRuntime().maxMemory()/1e6, maxThreads, maxServerThreads));
+
+        server.stop();
+        try (Stream<Path> files = Files.walk(workFolder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
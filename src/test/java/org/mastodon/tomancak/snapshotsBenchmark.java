@@ -0,0 +1,98 @@
+package org.mastodon.tomancak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.project.MamutProject;
+import org.mastodon.tomancak.util.MappedZippedModelReader;
+import org.mastodon.tomancak.util.ParallelZippedModelWriter;
+import org.mastodon.tomancak.util.ZippedModelReader;
+import org.mastodon.tomancak.util.ZippedModelWriter;
+
+/** compares the snapshot writers and readers on a large synthetic lineage,
+    usage: snapshotsBenchmark [noOfSpots] [repetitions] */
+public class snapshotsBenchmark
+{
+    interface WriterFactory { MamutProject.ProjectWriter create(Path file) throws IOException; }
+    interface ReaderFactory { MamutProject.ProjectReader create(Path file) throws IOException; }
+
+    static long save(final Model model, final Path file, final WriterFactory wf, final int reps)
+    throws IOException
+    {
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < reps; ++r)
+        {
+            final long time = System.nanoTime();
+            final MamutProject.ProjectWriter w = wf.create(file);
+            model.saveRaw(w);
+            w.close();
+            best = Math.min(best, System.nanoTime() - time);
+        }
+        return best;
+    }
+
+    static long load(final Path file, final ReaderFactory rf, final int reps)
+    throws IOException
+    {
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < reps; ++r)
+        {
+            final Model model = new Model();
+            final long time = System.nanoTime();
+            final MamutProject.ProjectReader rd = rf.create(file);
+            model.loadRaw(rd);
+            rd.close();
+            best = Math.min(best, System.nanoTime() - time);
+        }
+        return best;
+    }
+
+    static void report(final String what, final long nanos, final Path file)
+    throws IOException
+    {
+        System.out.printf("%-40s %9.1f ms %12d bytes%n", what, nanos/1e6, Files.size(file));
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        final int spots = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final int reps  = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        System.out.println("Creating lineage of "+spots+" spots...");
+        final Model model = syntheticLineages.create(spots);
+        final Path folder = Files.createTempDirectory("snapshotsBenchmark");
+        final Path mastodonFile = folder.resolve("mastodon.mstdn");
+        final Path storedFile   = folder.resolve("stored.mstdn");
+        final Path deflatedFile = folder.resolve("deflated.mstdn");
+
+        System.out.println("\nSaving (best of "+reps+"):");
+        report("ZippedModelWriter (Mastodon)", save(model, mastodonFile, ZippedModelWriter::new, reps), mastodonFile);
+
+        final int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION })
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                final ForkJoinPool pool = new ForkJoinPool(threads);
+                final Path file = level == Deflater.NO_COMPRESSION ? storedFile : deflatedFile;
+                report("Parallel, level "+level+", "+threads+" threads",
+                       save(model, file, f -> new ParallelZippedModelWriter(f, level, pool), reps), file);
+                pool.shutdown();
+                if (level == Deflater.NO_COMPRESSION) break; //nothing to parallelize
+            }
+
+        System.out.println("\nLoading (best of "+reps+"):");
+        report("ZippedModelReader, Mastodon's file", load(mastodonFile, ZippedModelReader::new, reps), mastodonFile);
+        report("ZippedModelReader, stored file",     load(storedFile, ZippedModelReader::new, reps), storedFile);
+        report("MappedZippedModelReader, stored",    load(storedFile, MappedZippedModelReader::new, reps), storedFile);
+
+        Files.delete(mastodonFile);
+        Files.delete(storedFile);
+        Files.delete(deflatedFile);
+        Files.delete(folder);
+    }
+}
@@ -0,0 +1,69 @@
+package org.mastodon.tomancak;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/** creates large lineages, reproducibly, for benchmarks and load tests */
+public class syntheticLineages
+{
+    /** probability that a track divides at a spot */
+    static final double divisionRate = 0.01;
+
+    /** creates a model with the given number of spots, organized in 'tracks' tracks
+        that run along time and occasionally divide, positions are random walks */
+    public static Model create(final int spots, final int tracks, final long seed)
+    {
+        final Random rnd = new Random(seed);
+        final Model model = new Model();
+        final ModelGraph graph = model.getGraph();
+        final Spot parent = graph.vertexRef();
+        final Spot child = graph.vertexRef();
+        final Link link = graph.edgeRef();
+
+        //pool indices of the tracks' last spots
+        final Deque<Integer> heads = new ArrayDeque<>(2*tracks);
+        final double[] pos = new double[3];
+        int cnt = 0;
+
+        graph.getLock().writeLock().lock();
+        try {
+            for (int i = 0; i < tracks && cnt < spots; ++i, ++cnt)
+            {
+                for (int d = 0; d < 3; ++d) pos[d] = 1000.0 * rnd.nextDouble();
+                heads.addLast( graph.addVertex(child).init(0, pos, 5.0).getInternalPoolIndex() );
+            }
+
+            while (cnt < spots)
+            {
+                graph.getGraphIdBimap().getVertex(heads.pollFirst(), parent);
+                final int divisions = rnd.nextDouble() < divisionRate ? 2 : 1;
+                for (int k = 0; k < divisions && cnt < spots; ++k, ++cnt)
+                {
+                    parent.localize(pos);
+                    for (int d = 0; d < 3; ++d) pos[d] += 2.0*rnd.nextGaussian();
+                    graph.addVertex(child).init(parent.getTimepoint()+1, pos, 5.0);
+                    child.setLabel("s"+cnt);
+                    graph.addEdge(parent, child, link).init();
+                    heads.addLast(child.getInternalPoolIndex());
+                }
+            }
+        } finally {
+            graph.getLock().writeLock().unlock();
+            graph.releaseRef(parent);
+            graph.releaseRef(child);
+            graph.releaseRef(link);
+        }
+        return model;
+    }
+
+    public static Model create(final int spots)
+    {
+        return create(spots, Math.max(1, spots/500), 42);
+    }
+}